@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.benchmark;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.sql.util.Database;
+
+/**
+ * Creates the table used in the benchmarks. The table has an id column
+ * {@code id} and a configurable number of value columns named {@code c1},
+ * {@code c2}, ...
+ *
+ * @author Christoph Böhme
+ */
+final class BenchmarkTable {
+
+	static final String NAME = "Bench";
+	static final String ID_COLUMN = "id";
+	static final String COLUMN_PREFIX = "c";
+
+	private BenchmarkTable() {
+		throw new AssertionError("No instances allowed");
+	}
+
+	static void create(final Database database, final int columns)
+			throws SQLException {
+		final StringBuilder sql = new StringBuilder();
+		sql.append("CREATE TABLE ").append(NAME).append(" (")
+				.append(ID_COLUMN).append(" VARCHAR(20) PRIMARY KEY");
+		for (int i = 1; i <= columns; ++i) {
+			sql.append(", ").append(COLUMN_PREFIX).append(i).append(" VARCHAR(30)");
+		}
+		sql.append(")");
+		database.run(sql.toString());
+	}
+
+	static void fill(final Database database, final int columns, final int rows)
+			throws SQLException {
+		final StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(NAME).append(" SELECT X");
+		for (int i = 1; i <= columns; ++i) {
+			sql.append(", 'value-").append(i).append("-' || X");
+		}
+		sql.append(" FROM SYSTEM_RANGE(1, ").append(rows).append(")");
+		database.run(sql.toString());
+	}
+
+	static String insertStatement(final int columns) {
+		final StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(NAME).append(" (").append(ID_COLUMN);
+		for (int i = 1; i <= columns; ++i) {
+			sql.append(", ").append(COLUMN_PREFIX).append(i);
+		}
+		sql.append(") VALUES (:_ID");
+		for (int i = 1; i <= columns; ++i) {
+			sql.append(", :").append(COLUMN_PREFIX).append(i);
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
+}
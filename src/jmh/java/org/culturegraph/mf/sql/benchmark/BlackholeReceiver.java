@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.benchmark;
+
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stream receiver which passes all events into a JMH {@link Blackhole}.
+ *
+ * @author Christoph Böhme
+ */
+final class BlackholeReceiver extends DefaultStreamReceiver {
+
+	private Blackhole blackhole;
+
+	void setBlackhole(final Blackhole blackhole) {
+		this.blackhole = blackhole;
+	}
+
+	@Override
+	public void startRecord(final String identifier) {
+		blackhole.consume(identifier);
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		blackhole.consume(name);
+		blackhole.consume(value);
+	}
+
+}
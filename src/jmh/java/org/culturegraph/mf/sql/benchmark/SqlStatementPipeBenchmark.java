@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.benchmark;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.mf.sql.SqlStatementPipe;
+import org.culturegraph.mf.sql.util.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how many ad-hoc statements per second {@link SqlStatementPipe}
+ * executes. Each statement looks up a single row by its key.
+ *
+ * @author Christoph Böhme
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SqlStatementPipeBenchmark {
+
+	private static final int ROWS = 10000;
+	private static final int STATEMENTS = 1000;
+
+	@Param({"10"})
+	public int columns;
+
+	private final BlackholeReceiver receiver = new BlackholeReceiver();
+
+	private Database database;
+	private SqlStatementPipe pipe;
+
+	private String[] statements;
+
+	@Setup
+	public void setup() throws SQLException {
+		database = new Database("jdbc:h2:mem:statement-benchmark");
+		BenchmarkTable.create(database, columns);
+		BenchmarkTable.fill(database, columns, ROWS);
+
+		pipe = new SqlStatementPipe(database.getClosableConnection());
+		pipe.setIdColumnLabel(BenchmarkTable.ID_COLUMN);
+		pipe.setReceiver(receiver);
+
+		statements = new String[STATEMENTS];
+		for (int i = 0; i < STATEMENTS; ++i) {
+			final int key = 1 + i * (ROWS / STATEMENTS);
+			statements[i] = "SELECT * FROM " + BenchmarkTable.NAME + " WHERE " +
+					BenchmarkTable.ID_COLUMN + " = '" + key + "'";
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		pipe.closeStream();
+		database.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STATEMENTS)
+	public void executeStatements(final Blackhole blackhole) {
+		receiver.setBlackhole(blackhole);
+		for (final String statement : statements) {
+			pipe.process(statement);
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.benchmark;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.mf.sql.SqlStreamSink;
+import org.culturegraph.mf.sql.util.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many records per second {@link SqlStreamSink} inserts into a
+ * table.
+ *
+ * @author Christoph Böhme
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SqlStreamSinkBenchmark {
+
+	private static final int RECORDS = 1000;
+
+	@Param({"10"})
+	public int columns;
+
+	@Param({"1", "100"})
+	public int batchSize;
+
+	private Database database;
+	private SqlStreamSink sink;
+
+	private String[] ids;
+	private String[] names;
+	private String[][] values;
+
+	@Setup
+	public void setup() throws SQLException {
+		database = new Database("jdbc:h2:mem:sink-benchmark");
+		BenchmarkTable.create(database, columns);
+
+		sink = new SqlStreamSink(database.getClosableConnection());
+		sink.setQuery(BenchmarkTable.insertStatement(columns));
+		sink.setBatchSize(batchSize);
+
+		ids = new String[RECORDS];
+		names = new String[columns];
+		values = new String[RECORDS][columns];
+		for (int i = 0; i < columns; ++i) {
+			names[i] = BenchmarkTable.COLUMN_PREFIX + (i + 1);
+		}
+		for (int i = 0; i < RECORDS; ++i) {
+			ids[i] = "id-" + i;
+			for (int j = 0; j < columns; ++j) {
+				values[i][j] = "value-" + j + "-" + i;
+			}
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void clearTable() throws SQLException {
+		database.run("TRUNCATE TABLE " + BenchmarkTable.NAME);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sink.closeStream();
+		database.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void writeRecords() {
+		for (int i = 0; i < RECORDS; ++i) {
+			sink.startRecord(ids[i]);
+			for (int j = 0; j < names.length; ++j) {
+				sink.literal(names[j], values[i][j]);
+			}
+			sink.endRecord();
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.benchmark;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.mf.sql.SqlStreamSource;
+import org.culturegraph.mf.sql.util.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how many records per second {@link SqlStreamSource} reads from a
+ * table with a varying number of columns. The wide tables show the cost of
+ * per-column work in the row loop.
+ *
+ * @author Christoph Böhme
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SqlStreamSourceBenchmark {
+
+	private static final int ROWS = 10000;
+
+	@Param({"10", "100", "200"})
+	public int columns;
+
+	private final BlackholeReceiver receiver = new BlackholeReceiver();
+
+	private Database database;
+	private SqlStreamSource<String> source;
+
+	@Setup
+	public void setup() throws SQLException {
+		database = new Database("jdbc:h2:mem:source-benchmark");
+		BenchmarkTable.create(database, columns);
+		BenchmarkTable.fill(database, columns, ROWS);
+
+		source = new SqlStreamSource<>(database.getClosableConnection());
+		source.setStatement("SELECT * FROM " + BenchmarkTable.NAME);
+		source.setIdColumnLabel(BenchmarkTable.ID_COLUMN);
+		source.setReceiver(receiver);
+	}
+
+	@TearDown
+	public void tearDown() {
+		source.closeStream();
+		database.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void readRecords(final Blackhole blackhole) {
+		receiver.setBlackhole(blackhole);
+		source.process("");
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the resolution of literal names to placeholder positions which
+ * {@link PreparedQuery#setParameter(String, String)} performs for each
+ * literal. Run with {@code -prof gc}; {@code gc.alloc.rate.norm} must be
+ * zero bytes per operation.
+ * <p>
+ * The benchmark uses copies of the parameter names so that lookups compare
+ * string contents as they do for names received from upstream modules.
+ *
+ * @author Christoph Böhme
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParameterBindingBenchmark {
+
+	private static final int LITERALS = 64;
+
+	@Param({"4", "32"})
+	public int parameters;
+
+	private ParameterPlan plan;
+	private String[] literalNames;
+
+	@Setup
+	public void setup() {
+		final StringBuilder sql = new StringBuilder("INSERT INTO t VALUES (:_ID");
+		for (int i = 0; i < parameters; ++i) {
+			sql.append(", :column").append(i);
+		}
+		sql.append(", :unused)");
+		plan = ParameterPlan.parse(sql.toString());
+
+		literalNames = new String[LITERALS];
+		for (int i = 0; i < LITERALS; ++i) {
+			// Every eighth literal has no matching parameter:
+			final String name = i % 8 == 7 ? "unknown" : "column" + i % parameters;
+			literalNames[i] = new String(name.toCharArray());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LITERALS)
+	public void resolveLiterals(final Blackhole blackhole) {
+		for (final String name : literalNames) {
+			final int slot = plan.getSlot(name);
+			if (slot != ParameterPlan.NO_SLOT) {
+				final int[] positions = plan.getPositions(slot);
+				for (int i = 0; i < positions.length; ++i) {
+					blackhole.consume(positions[i]);
+				}
+			}
+		}
+	}
+
+}
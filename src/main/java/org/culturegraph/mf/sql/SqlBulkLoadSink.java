@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.annotations.Description;
+import org.culturegraph.mf.framework.annotations.In;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.sql.util.BulkLoader;
+import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.JdbcUtil.Dialect;
+
+/**
+ * Writes records into a table using the bulk loading facility of the
+ * database. Each record becomes one row. The columns are set with
+ * {@link #setColumns(String)}; a column receives the value of the literal with
+ * the same name. A column can be mapped to a literal with a different name by
+ * writing {@code column=literal}. The record id is available as literal
+ * {@value #ID_LITERAL}. If a record contains a literal more than once, the
+ * last value is used. Columns without a literal are set to NULL.
+ * <p>
+ * Records are collected in chunks which are loaded with {@code COPY} on
+ * PostgreSQL, {@code LOAD DATA LOCAL INFILE} on MySQL and {@code CSVREAD} on
+ * H2. For other databases the rows are inserted with batched statements. See
+ * {@link BulkLoader} for details. Each chunk is committed according to the
+ * auto-commit setting of the connection.
+ *
+ * @author Christoph Böhme
+ * @see SqlStreamSink
+ */
+@Description("Writes records into a table using the bulk loading facility " +
+		"of the database.")
+@In(StreamReceiver.class)
+public final class SqlBulkLoadSink extends DefaultStreamReceiver {
+
+	public static final String ID_LITERAL = "_ID";
+
+	public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+	private final Connection connection;
+
+	private String table;
+	private String[] columns;
+	private final Map<String, Integer> columnIndices = new HashMap<>();
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private boolean nativeLoad = true;
+
+	private BulkLoader loader;
+	private List<String[]> chunk;
+	private String[] currentRow;
+
+	public SqlBulkLoadSink(final String dataSource) {
+		this(JdbcUtil.getConnection(dataSource));
+	}
+
+	public SqlBulkLoadSink(final Connection connection) {
+		this.connection = connection;
+	}
+
+	public void setTable(final String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets the columns to load as comma-separated list. Each entry is either
+	 * a column name or {@code column=literal}.
+	 *
+	 * @param columnMapping list of columns
+	 */
+	public void setColumns(final String columnMapping) {
+		final String[] entries = columnMapping.split(",");
+		columns = new String[entries.length];
+		columnIndices.clear();
+		for (int i = 0; i < entries.length; ++i) {
+			final String entry = entries[i].trim();
+			final int separator = entry.indexOf('=');
+			if (separator < 0) {
+				columns[i] = entry;
+				columnIndices.put(entry, Integer.valueOf(i));
+			} else {
+				columns[i] = entry.substring(0, separator).trim();
+				columnIndices.put(entry.substring(separator + 1).trim(),
+						Integer.valueOf(i));
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of records which are loaded at once. The default is
+	 * {@value #DEFAULT_CHUNK_SIZE}.
+	 *
+	 * @param chunkSize number of records per chunk
+	 */
+	public void setChunkSize(final int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets whether the bulk loading facility of the database is used. If set
+	 * to false, the rows are always inserted with batched statements. The
+	 * default is true.
+	 *
+	 * @param nativeLoad false to insert rows with batched statements
+	 */
+	public void setNativeLoad(final boolean nativeLoad) {
+		this.nativeLoad = nativeLoad;
+	}
+
+	/**
+	 * Returns the dialect whose bulk loading facility is used or
+	 * {@link Dialect#GENERIC} if the rows are inserted with batched statements.
+	 * Returns null before the first record was received.
+	 */
+	public Dialect getLoadDialect() {
+		return loader == null ? null : loader.getDialect();
+	}
+
+	@Override
+	public void startRecord(final String id) {
+		if (loader == null) {
+			loader = BulkLoader.forConnection(connection, table, columns,
+					nativeLoad);
+			chunk = new ArrayList<>(chunkSize);
+		}
+		currentRow = new String[columns.length];
+		literal(ID_LITERAL, id);
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		final Integer index = columnIndices.get(name);
+		if (index != null) {
+			currentRow[index.intValue()] = value;
+		}
+	}
+
+	@Override
+	public void endRecord() {
+		chunk.add(currentRow);
+		currentRow = null;
+		if (chunk.size() >= chunkSize) {
+			loadChunk();
+		}
+	}
+
+	private void loadChunk() {
+		loader.load(chunk);
+		chunk.clear();
+	}
+
+	@Override
+	public void closeStream() {
+		try {
+			if (loader != null) {
+				loadChunk();
+			}
+		} finally {
+			if (loader != null) {
+				loader.close();
+			}
+			JdbcUtil.closeConnection(connection);
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.annotations.Description;
+import org.culturegraph.mf.framework.annotations.In;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Record;
+
+/**
+ * Executes a prepared query for each record received using several worker
+ * threads. Each worker has its own connection from the data source and its
+ * own prepared statement. The query is written in the same way as for
+ * {@link SqlStreamSink}.
+ * <p>
+ * Received records are buffered and handed to the workers in batches of
+ * {@link #setBatchSize(int)} records. Each batch is executed as a JDBC batch.
+ * If the workers cannot keep up, the pipeline blocks once
+ * {@link #setQueueCapacity(int)} batches per worker are waiting.
+ * <p>
+ * By default, batches are distributed to whichever worker is idle, so records
+ * may be written in a different order than they were received. If ordered
+ * mode is enabled, records with the same id are always written by the same
+ * worker in the order in which they were received.
+ * <p>
+ * If a worker fails, the first error is rethrown on the pipeline thread with
+ * the next record or when the stream is closed. All workers are stopped at
+ * this point. When the stream is closed, all pending records are written
+ * before the connections are closed.
+ *
+ * @author Christoph Böhme
+ * @see SqlStreamSink
+ */
+@Description("Executes a prepared query for each record received using several connections in parallel.")
+@In(StreamReceiver.class)
+public final class SqlParallelStreamSink extends DefaultStreamReceiver {
+
+	public static final String ID_PARAMETER = SqlStreamSink.ID_PARAMETER;
+
+	public static final int DEFAULT_WORKERS = 4;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+	private static final List<Record> END_OF_STREAM = Collections.emptyList();
+
+	private final DataSource dataSource;
+	private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+	private String sql;
+	private int workerCount = DEFAULT_WORKERS;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private boolean ordered;
+	private boolean inferParameterTypes;
+
+	private Thread[] workers;
+	private List<BlockingQueue<List<Record>>> queues;
+	private List<List<Record>> pendingBatches;
+	private Record currentRecord;
+
+	public SqlParallelStreamSink(final String dataSource) {
+		this(JdbcUtil.getDataSource(dataSource));
+	}
+
+	public SqlParallelStreamSink(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public void setQuery(final String sql) {
+		this.sql = sql;
+	}
+
+	/**
+	 * Sets the number of worker threads and thus the number of connections.
+	 * The default is {@value #DEFAULT_WORKERS}.
+	 *
+	 * @param workerCount number of workers
+	 */
+	public void setWorkers(final int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Sets the number of records which are handed to a worker at once. The
+	 * default is {@value #DEFAULT_BATCH_SIZE}.
+	 *
+	 * @param batchSize number of records per batch
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of batches per worker which may wait to be written before
+	 * the pipeline is blocked. The default is {@value #DEFAULT_QUEUE_CAPACITY}.
+	 *
+	 * @param queueCapacity number of waiting batches per worker
+	 */
+	public void setQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets whether the workers infer the types of query parameters. See
+	 * {@link SqlStreamSink#setInferParameterTypes(boolean)}.
+	 *
+	 * @param inferParameterTypes true to infer parameter types
+	 */
+	public void setInferParameterTypes(final boolean inferParameterTypes) {
+		this.inferParameterTypes = inferParameterTypes;
+	}
+
+	/**
+	 * Enables ordered mode. In ordered mode all records with the same id are
+	 * written by the same worker in the order in which they were received.
+	 *
+	 * @param ordered true to enable ordered mode
+	 */
+	public void setOrdered(final boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	@Override
+	public void startRecord(final String id) {
+		throwIfWorkerFailed();
+		if (workers == null) {
+			startWorkers();
+		}
+		currentRecord = new Record(id);
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		assert currentRecord != null: "startRecord was not called";
+		currentRecord.addLiteral(name, value);
+	}
+
+	@Override
+	public void endRecord() {
+		assert currentRecord != null: "startRecord was not called";
+		final int partition = getPartition(currentRecord.getId());
+		final List<Record> batch = pendingBatches.get(partition);
+		batch.add(currentRecord);
+		currentRecord = null;
+		if (batch.size() >= batchSize) {
+			handOver(partition);
+		}
+	}
+
+	@Override
+	public void closeStream() {
+		if (workers == null) {
+			return;
+		}
+		try {
+			for (int i = 0; i < pendingBatches.size(); ++i) {
+				if (!pendingBatches.get(i).isEmpty()) {
+					handOver(i);
+				}
+			}
+		} finally {
+			stopWorkers();
+		}
+		throwIfWorkerFailed();
+	}
+
+	private void startWorkers() {
+		final int partitionCount = ordered ? workerCount : 1;
+		final int capacity = ordered ? queueCapacity : queueCapacity * workerCount;
+		queues = new ArrayList<>(partitionCount);
+		pendingBatches = new ArrayList<>(partitionCount);
+		for (int i = 0; i < partitionCount; ++i) {
+			queues.add(new ArrayBlockingQueue<>(capacity));
+			pendingBatches.add(new ArrayList<>(batchSize));
+		}
+		workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; ++i) {
+			final Worker worker = new Worker(queues.get(i % partitionCount));
+			workers[i] = new Thread(worker, "sql-parallel-stream-sink-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	private int getPartition(final String id) {
+		if (pendingBatches.size() == 1) {
+			return 0;
+		}
+		return (Objects.hashCode(id) & Integer.MAX_VALUE) % pendingBatches.size();
+	}
+
+	private void handOver(final int partition) {
+		put(queues.get(partition), pendingBatches.get(partition));
+		pendingBatches.set(partition, new ArrayList<>(batchSize));
+		throwIfWorkerFailed();
+	}
+
+	private void stopWorkers() {
+		if (workers == null) {
+			return;
+		}
+		final Thread[] stoppedWorkers = workers;
+		workers = null;
+		for (int i = 0; i < stoppedWorkers.length; ++i) {
+			put(queues.get(i % queues.size()), END_OF_STREAM);
+		}
+		try {
+			for (final Thread worker : stoppedWorkers) {
+				worker.join();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		}
+	}
+
+	private static void put(final BlockingQueue<List<Record>> queue,
+			final List<Record> batch) {
+		try {
+			queue.put(batch);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		}
+	}
+
+	/**
+	 * Stops the workers and throws an exception if a worker has failed. The
+	 * workers are stopped so that their connections are closed even if the
+	 * stream is not closed after the exception.
+	 */
+	private void throwIfWorkerFailed() {
+		final Throwable error = firstError.get();
+		if (error != null) {
+			stopWorkers();
+			throw new MetafactureException("Writing records failed", error);
+		}
+	}
+
+	/**
+	 * Takes batches from a queue and writes them with its own
+	 * {@link SqlStreamSink}. After a failure of any worker the worker keeps
+	 * taking batches from the queue without writing them so that the pipeline
+	 * does not block. Records which have not been sent to the database yet are
+	 * discarded.
+	 */
+	private final class Worker implements Runnable {
+
+		private final BlockingQueue<List<Record>> queue;
+
+		Worker(final BlockingQueue<List<Record>> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			SqlStreamSink sink = null;
+			try {
+				sink = new SqlStreamSink(JdbcUtil.getConnection(dataSource));
+				sink.setQuery(sql);
+				sink.setBatchSize(batchSize);
+				sink.setInferParameterTypes(inferParameterTypes);
+				writeBatches(sink);
+			} catch (final Throwable e) {
+				firstError.compareAndSet(null, e);
+				drainQueue();
+			} finally {
+				if (sink != null) {
+					closeSink(sink);
+				}
+			}
+		}
+
+		private void writeBatches(final SqlStreamSink sink) {
+			List<Record> batch = take();
+			while (batch != END_OF_STREAM) {
+				if (firstError.get() == null) {
+					for (final Record record : batch) {
+						record.replay(sink);
+					}
+				}
+				batch = take();
+			}
+		}
+
+		private void drainQueue() {
+			while (take() != END_OF_STREAM) {
+				/* Discard batch */
+			}
+		}
+
+		private void closeSink(final SqlStreamSink sink) {
+			try {
+				if (firstError.get() == null) {
+					sink.closeStream();
+				} else {
+					sink.discard();
+				}
+			} catch (final Throwable e) {
+				firstError.compareAndSet(null, e);
+			}
+		}
+
+		private List<Record> take() {
+			try {
+				return queue.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,571 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.annotations.Description;
+import org.culturegraph.mf.framework.annotations.In;
+import org.culturegraph.mf.framework.annotations.Out;
+import org.culturegraph.mf.framework.helpers.DefaultObjectPipe;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.sql.util.BinaryEncoding;
+import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Metrics;
+import org.culturegraph.mf.sql.util.PreparedQuery;
+import org.culturegraph.mf.sql.util.Record;
+
+/**
+ * Executes a query split into several partitions which are read concurrently
+ * on separate connections. Like {@link SqlStreamSource}, the module executes
+ * the query for each object received and passes the string value of the
+ * object into the query as a parameter named ":obj". Each row of the result
+ * sets is emitted as a new record.
+ * <p>
+ * The query is split on a numeric column. In {@link SplitMode#RANGE} mode the
+ * module determines the minimum and maximum value of the split column and
+ * divides this range into partitions of equal width. In
+ * {@link SplitMode#MODULO} mode each partition contains the rows whose split
+ * column value modulo the number of partitions is equal to the partition
+ * number. Rows with a null value in the split column are read with the last
+ * partition.
+ * <p>
+ * All records are emitted from the thread which called {@link #process}. By
+ * default, records are emitted in the order in which the partitions produce
+ * them. In ordered mode the records of the first partition are emitted first,
+ * then those of the second partition and so on. If reading a partition fails,
+ * the other readers are cancelled and {@link #process} throws an exception.
+ *
+ * @param <T> object type
+ * @author Christoph Böhme
+ * @see SqlStreamSource
+ */
+@Description("Executes a query split into several partitions which are read concurrently.")
+@In(Object.class)
+@Out(StreamReceiver.class)
+public final class SqlPartitionedSource<T> extends
+		DefaultObjectPipe<T, StreamReceiver> {
+
+	/**
+	 * Strategies for splitting the query into partitions.
+	 */
+	public enum SplitMode {
+		/**
+		 * Each partition covers a range of values of equal width between the
+		 * minimum and the maximum value of the split column.
+		 */
+		RANGE,
+
+		/**
+		 * Each partition contains the rows whose split column value modulo the
+		 * number of partitions equals the partition number.
+		 */
+		MODULO
+	}
+
+	public static final String PARAMETER = SqlStreamSource.PARAMETER;
+
+	public static final int DEFAULT_PARTITIONS = 4;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	private static final String PARTITION_ALIAS = "partitioned_query";
+	private static final String LOWER_BOUND = "lower_bound";
+	private static final String UPPER_BOUND = "upper_bound";
+
+	private static final Record END_OF_PARTITION = new Record(null);
+	private static final long OFFER_TIMEOUT = 100;
+	private static final long POLL_TIMEOUT = 100;
+	private static final long CLOSE_TIMEOUT = 10;
+
+	private final DataSource dataSource;
+
+	private String sql;
+	private String splitColumn;
+	private SplitMode splitMode = SplitMode.RANGE;
+	private int partitionCount = DEFAULT_PARTITIONS;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private boolean ordered;
+	private String idColumnLabel = PreparedQuery.DEFAULT_ID_COLUMN;
+	private int fetchSize;
+	private BinaryEncoding binaryEncoding = BinaryEncoding.DRIVER;
+
+	private ExecutorService executor;
+
+	public SqlPartitionedSource(final String dataSource) {
+		this(JdbcUtil.getDataSource(dataSource));
+	}
+
+	public SqlPartitionedSource(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public void setStatement(final String sql) {
+		this.sql = sql;
+	}
+
+	/**
+	 * Sets the column on which the query is split. The column must be numeric.
+	 *
+	 * @param splitColumn name of the split column
+	 */
+	public void setSplitColumn(final String splitColumn) {
+		this.splitColumn = splitColumn;
+	}
+
+	public void setSplitMode(final SplitMode splitMode) {
+		this.splitMode = splitMode;
+	}
+
+	/**
+	 * Sets the number of partitions and thus the number of concurrent
+	 * connections. The default is {@value #DEFAULT_PARTITIONS}.
+	 *
+	 * @param partitionCount number of partitions
+	 */
+	public void setPartitions(final int partitionCount) {
+		this.partitionCount = partitionCount;
+	}
+
+	/**
+	 * Sets the number of records which are buffered for each partition before
+	 * reading the partition is paused. The default is
+	 * {@value #DEFAULT_QUEUE_CAPACITY}.
+	 *
+	 * @param queueCapacity number of buffered records per partition
+	 */
+	public void setQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Enables ordered mode. In ordered mode all records of a partition are
+	 * emitted before the records of the next partition.
+	 *
+	 * @param ordered true to emit records ordered by partition
+	 */
+	public void setOrdered(final boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	public void setIdColumnLabel(final String idColumnLabel) {
+		this.idColumnLabel = idColumnLabel;
+	}
+
+	/**
+	 * Sets the number of rows which each partition fetches from the database
+	 * at once. The default value of zero lets the driver decide.
+	 *
+	 * @param fetchSize number of rows to fetch at once
+	 */
+	public void setFetchSize(final int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns. The default is
+	 * {@link BinaryEncoding#DRIVER}. With {@link BinaryEncoding#SKIP} binary
+	 * columns are not emitted.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	@Override
+	public void process(final T obj) {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(partitionCount,
+					new ReaderThreadFactory());
+		}
+		final String parameter = obj.toString();
+		final List<String> partitions = createPartitions(parameter);
+		final Run run = new Run(partitions.size());
+		for (int i = 0; i < partitions.size(); ++i) {
+			executor.execute(new PartitionReader(run, i, partitions.get(i),
+					parameter));
+		}
+		run.emitRecords(getReceiver());
+	}
+
+	@Override
+	protected void onCloseStream() {
+		if (executor != null) {
+			// Cancelled readers may still be closing their connections:
+			executor.shutdown();
+			try {
+				executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private List<String> createPartitions(final String parameter) {
+		final List<String> conditions = new ArrayList<>();
+		if (splitMode == SplitMode.MODULO) {
+			for (int i = 0; i < partitionCount; ++i) {
+				conditions.add("ABS(MOD(" + splitColumn + ", " + partitionCount +
+						")) = " + i);
+			}
+		} else {
+			final long[] bounds = queryBounds(parameter);
+			if (bounds != null) {
+				// Computed with BigInteger because the range of the split column
+				// may exceed Long.MAX_VALUE:
+				final BigInteger max = BigInteger.valueOf(bounds[1]);
+				final BigInteger width = max.subtract(BigInteger.valueOf(bounds[0]))
+						.divide(BigInteger.valueOf(partitionCount)).add(BigInteger.ONE);
+				BigInteger lower = BigInteger.valueOf(bounds[0]);
+				while (lower.compareTo(max) <= 0) {
+					final BigInteger upper = lower.add(width);
+					if (upper.compareTo(max) > 0) {
+						conditions.add(splitColumn + " >= " + lower);
+					} else {
+						conditions.add(splitColumn + " >= " + lower + " AND " +
+								splitColumn + " < " + upper);
+					}
+					lower = upper;
+				}
+			}
+		}
+		final String nullCondition = splitColumn + " IS NULL";
+		if (conditions.isEmpty()) {
+			conditions.add(nullCondition);
+		} else {
+			final int last = conditions.size() - 1;
+			conditions.set(last, conditions.get(last) + " OR " + nullCondition);
+		}
+
+		final List<String> partitions = new ArrayList<>(conditions.size());
+		for (final String condition : conditions) {
+			partitions.add("SELECT * FROM (" + sql + ") " + PARTITION_ALIAS +
+					" WHERE " + condition);
+		}
+		return partitions;
+	}
+
+	private long[] queryBounds(final String parameter) {
+		final String boundsSql = "SELECT MIN(" + splitColumn + ") AS " +
+				LOWER_BOUND + ", MAX(" + splitColumn + ") AS " + UPPER_BOUND +
+				" FROM (" + sql + ") " + PARTITION_ALIAS;
+		final BoundsReceiver bounds = new BoundsReceiver();
+		final Connection connection = JdbcUtil.getConnection(dataSource);
+		try {
+			final PreparedQuery query = new PreparedQuery(connection, boundsSql,
+					false);
+			query.setMetrics(Metrics.getQueryMetrics(SqlPartitionedSource.class));
+			try {
+				query.setParameter(PARAMETER, parameter);
+				query.execute(bounds);
+			} finally {
+				query.close();
+			}
+		} finally {
+			JdbcUtil.closeConnection(connection);
+		}
+		if (bounds.lower == null || bounds.upper == null) {
+			return null;
+		}
+		try {
+			return new long[] { Long.parseLong(bounds.lower),
+					Long.parseLong(bounds.upper) };
+		} catch (final NumberFormatException e) {
+			throw new MetafactureException("Split column " + splitColumn +
+					" must contain integer values", e);
+		}
+	}
+
+	/**
+	 * Receives the result of the query for the bounds of the split column.
+	 */
+	private static final class BoundsReceiver extends DefaultStreamReceiver {
+
+		String lower;
+		String upper;
+
+		@Override
+		public void literal(final String name, final String value) {
+			if (LOWER_BOUND.equalsIgnoreCase(name)) {
+				lower = value;
+			} else if (UPPER_BOUND.equalsIgnoreCase(name)) {
+				upper = value;
+			}
+		}
+
+	}
+
+	/**
+	 * The queues and error state shared by the partition readers of one call
+	 * of {@link SqlPartitionedSource#process(Object)}.
+	 */
+	private final class Run {
+
+		private final List<BlockingQueue<Record>> queues = new ArrayList<>();
+		private final int partitions;
+		private final AtomicReference<Throwable> firstError =
+				new AtomicReference<>();
+		private final Set<PreparedQuery> runningQueries =
+				ConcurrentHashMap.newKeySet();
+
+		private volatile boolean cancelled;
+
+		Run(final int partitions) {
+			this.partitions = partitions;
+			if (ordered) {
+				for (int i = 0; i < partitions; ++i) {
+					queues.add(new ArrayBlockingQueue<Record>(queueCapacity));
+				}
+			} else {
+				queues.add(new ArrayBlockingQueue<Record>(queueCapacity * partitions));
+			}
+		}
+
+		BlockingQueue<Record> getQueue(final int partition) {
+			return queues.get(partition % queues.size());
+		}
+
+		void emitRecords(final StreamReceiver receiver) {
+			try {
+				int finishedPartitions = 0;
+				int currentQueue = 0;
+				while (finishedPartitions < partitions) {
+					final Record record = take(queues.get(currentQueue));
+					if (record == END_OF_PARTITION) {
+						finishedPartitions += 1;
+						if (ordered) {
+							currentQueue += 1;
+						}
+					} else {
+						record.replay(receiver);
+					}
+				}
+			} catch (final RuntimeException e) {
+				cancel();
+				throw e;
+			}
+		}
+
+		/**
+		 * Takes the next record from {@code queue}. The error state is checked
+		 * before each record and while waiting so that a failing partition is
+		 * noticed even if the pipeline waits for another partition.
+		 */
+		private Record take(final BlockingQueue<Record> queue) {
+			try {
+				while (true) {
+					throwIfFailed();
+					final Record record = queue.poll(POLL_TIMEOUT,
+							TimeUnit.MILLISECONDS);
+					if (record != null) {
+						return record;
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+
+		private void throwIfFailed() {
+			final Throwable error = firstError.get();
+			if (error != null) {
+				throw new MetafactureException("Reading partition failed", error);
+			}
+		}
+
+		/**
+		 * Stops all readers. Running statements are cancelled. Readers which
+		 * are already receiving rows notice the cancellation with the next row
+		 * or while they wait for space in a full queue.
+		 */
+		private void cancel() {
+			cancelled = true;
+			for (final BlockingQueue<Record> queue : queues) {
+				queue.clear();
+			}
+			for (final PreparedQuery query : runningQueries) {
+				query.cancel();
+			}
+		}
+
+		/**
+		 * Registers a query so that it is cancelled with the run. Returns false
+		 * if the run has already been cancelled.
+		 */
+		boolean startQuery(final PreparedQuery query) {
+			runningQueries.add(query);
+			return !cancelled;
+		}
+
+		void endQuery(final PreparedQuery query) {
+			runningQueries.remove(query);
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Records the error of a reader and cancels the other readers.
+		 */
+		void fail(final Throwable error) {
+			firstError.compareAndSet(null, error);
+			cancel();
+		}
+
+	}
+
+	/**
+	 * Reads the rows of one partition on its own connection and passes them as
+	 * records to the pipeline thread.
+	 */
+	private final class PartitionReader extends DefaultStreamReceiver
+			implements Runnable {
+
+		private final Run run;
+		private final int partition;
+		private final String partitionSql;
+		private final String parameter;
+		private final BlockingQueue<Record> queue;
+
+		private Record currentRecord;
+
+		PartitionReader(final Run run, final int partition,
+				final String partitionSql, final String parameter) {
+			this.run = run;
+			this.partition = partition;
+			this.partitionSql = partitionSql;
+			this.parameter = parameter;
+			queue = run.getQueue(partition);
+		}
+
+		@Override
+		public void run() {
+			try {
+				readPartition();
+			} catch (final Throwable e) {
+				reportFailure(e);
+			} finally {
+				if (!run.isCancelled()) {
+					put(END_OF_PARTITION);
+				}
+			}
+		}
+
+		private void readPartition() {
+			final Connection connection = JdbcUtil.getConnection(dataSource);
+			try {
+				final PreparedQuery query = new PreparedQuery(connection,
+						partitionSql, idColumnLabel, false);
+				try {
+					query.setFetchSize(fetchSize);
+					query.setBinaryEncoding(binaryEncoding);
+					query.setMetrics(Metrics.getQueryMetrics(SqlPartitionedSource.class));
+					query.setParameter(PARAMETER, parameter);
+					if (run.startQuery(query)) {
+						query.execute(this);
+					}
+				} finally {
+					run.endQuery(query);
+					query.close();
+				}
+			} catch (final RuntimeException e) {
+				// Closing the connection may wait for the statements of the
+				// other partitions. These are only cancelled once we report:
+				reportFailure(e);
+				throw e;
+			} finally {
+				JdbcUtil.closeConnection(connection);
+			}
+		}
+
+		private void reportFailure(final Throwable error) {
+			if (!run.isCancelled()) {
+				run.fail(error);
+			}
+		}
+
+		@Override
+		public void startRecord(final String id) {
+			if (run.isCancelled()) {
+				throw new MetafactureException("Reading partition " + partition +
+						" was cancelled");
+			}
+			currentRecord = new Record(id);
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			currentRecord.addLiteral(name, value);
+		}
+
+		@Override
+		public void endRecord() {
+			put(currentRecord);
+			currentRecord = null;
+		}
+
+		private void put(final Record record) {
+			try {
+				while (!run.isCancelled()) {
+					if (queue.offer(record, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Creates daemon threads for the partition readers.
+	 */
+	private static final class ReaderThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "sql-partitioned-source-" +
+					threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
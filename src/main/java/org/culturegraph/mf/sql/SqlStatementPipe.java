@@ -22,8 +22,10 @@
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.annotations.Out;
 import org.culturegraph.mf.framework.helpers.DefaultObjectPipe;
+import org.culturegraph.mf.sql.util.BinaryEncoding;
 import org.culturegraph.mf.sql.util.DirectQuery;
 import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Metrics;
 
 /**
  * Executes the received string object as an SQL statement. Each row of the
@@ -49,6 +51,8 @@ public final class SqlStatementPipe extends
 	private final Connection connection;
 
 	private String idColumnLabel = DirectQuery.DEFAULT_ID_COLUMN;
+	private int fetchSize;
+	private BinaryEncoding binaryEncoding = BinaryEncoding.DRIVER;
 	private DirectQuery query;
 
 	public SqlStatementPipe(final String dataSource) {
@@ -63,10 +67,37 @@ public void setIdColumnLabel(final String idColumnLabel) {
 		this.idColumnLabel = idColumnLabel;
 	}
 
+	/**
+	 * Sets the number of rows which are fetched from the database at once.
+	 * Setting a fetch size allows drivers to stream large result sets instead
+	 * of reading them into memory completely. On PostgreSQL this requires
+	 * switching off auto-commit; the module then wraps each statement in its own
+	 * transaction. The default value of zero lets the driver decide.
+	 *
+	 * @param fetchSize number of rows to fetch at once
+	 */
+	public void setFetchSize(final int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns. The default is
+	 * {@link BinaryEncoding#DRIVER}. With {@link BinaryEncoding#SKIP} binary
+	 * columns are not emitted.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
 	@Override
 	public void process(final String sql) {
 		if (query == null) {
 			query = new DirectQuery(connection, idColumnLabel, true);
+			query.setFetchSize(fetchSize);
+			query.setBinaryEncoding(binaryEncoding);
+			query.setMetrics(Metrics.getQueryMetrics(SqlStatementPipe.class));
 		}
 		query.execute(sql, getReceiver());
 	}
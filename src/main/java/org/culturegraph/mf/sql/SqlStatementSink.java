@@ -17,11 +17,15 @@
 
 import java.sql.Connection;
 
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.annotations.Description;
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.helpers.DefaultObjectReceiver;
+import org.culturegraph.mf.sql.util.ChunkedTransaction;
 import org.culturegraph.mf.sql.util.DirectQuery;
 import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Metrics;
+import org.culturegraph.mf.sql.util.WriteBehindQueue;
 
 /**
  * Executes the received string object as an SQL statement. Any result sets
@@ -29,6 +33,15 @@
  * <p>
  * Use {@link SqlStatementPipe} if access to the result sets is required.
  * <p>
+ * By default, the module uses the auto-commit mode of the connection. If a
+ * commit interval or a commit time limit is set, auto-commit is switched off
+ * and the statements are committed in chunks instead. If a statement fails,
+ * the open chunk is rolled back. The last chunk is committed when the stream
+ * is closed.
+ * <p>
+ * In write-behind mode (see {@link #setWriteBehind(int)}) the statements are
+ * queued and executed by a separate thread.
+ * <p>
  * In many situations it can be preferable to use prepared statements instead of
  * raw SQL statements. Use {@link SqlStreamSink} in such situations.
  *
@@ -41,9 +54,13 @@
 public final class SqlStatementSink extends DefaultObjectReceiver<String> {
 
 	private final Connection connection;
+	private final ChunkedTransaction transaction;
 
 	private final DirectQuery query;
 
+	private int writeBehind;
+	private WriteBehindQueue<String> writeBehindQueue;
+
 	public SqlStatementSink(final String dataSource) {
 		this(JdbcUtil.getConnection(dataSource));
 	}
@@ -51,17 +68,101 @@ public SqlStatementSink(final String dataSource) {
 	public SqlStatementSink(final Connection connection) {
 		this.connection = connection;
 		query = new DirectQuery(connection, false);
+		query.setMetrics(Metrics.getQueryMetrics(SqlStatementSink.class));
+		transaction = new ChunkedTransaction(connection);
+	}
+
+	/**
+	 * Sets the number of statements which are executed in one transaction. A
+	 * value of zero (the default) leaves transaction handling to the
+	 * connection.
+	 *
+	 * @param commitInterval number of statements per transaction
+	 */
+	public void setCommitInterval(final int commitInterval) {
+		transaction.setCommitInterval(commitInterval);
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a transaction is kept open before
+	 * it is committed. A value of zero (the default) disables the time limit.
+	 *
+	 * @param commitTimeLimit maximum duration of a transaction
+	 */
+	public void setCommitTimeLimit(final int commitTimeLimit) {
+		transaction.setCommitTimeLimit(commitTimeLimit);
+	}
+
+	/**
+	 * Sets the number of statements which are queued for a separate writer
+	 * thread. Errors of the writer are thrown on the next statement or when
+	 * the stream is closed; statements received after an error are discarded.
+	 * Closing the stream waits until all queued statements have been
+	 * executed. A value of zero (the default) executes the statements on the
+	 * pipeline thread.
+	 *
+	 * @param writeBehind maximum number of queued statements
+	 */
+	public void setWriteBehind(final int writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Returns the number of statements waiting for the writer thread.
+	 */
+	public int getWriteBehindQueueDepth() {
+		return writeBehindQueue == null ? 0 : writeBehindQueue.getQueueDepth();
+	}
+
+	/**
+	 * Returns the time in milliseconds the most recently executed statement
+	 * waited for the writer thread.
+	 */
+	public long getWriteBehindLag() {
+		return writeBehindQueue == null ? 0 : writeBehindQueue.getLag();
 	}
 
 	@Override
 	public void process(final String sql) {
-		query.execute(sql);
+		if (writeBehind > 0) {
+			if (writeBehindQueue == null) {
+				writeBehindQueue = new WriteBehindQueue<>(
+						"sql-statement-sink-writer", writeBehind, this::execute);
+			}
+			writeBehindQueue.put(sql);
+		} else {
+			execute(sql);
+		}
+	}
+
+	private void execute(final String sql) {
+		transaction.begin();
+		try {
+			query.execute(sql);
+			transaction.operationCompleted();
+			if (transaction.isCommitDue()) {
+				transaction.commit();
+			}
+		} catch (final MetafactureException e) {
+			transaction.rollback();
+			throw e;
+		}
 	}
 
 	@Override
 	public void closeStream() {
-		query.close();
-		JdbcUtil.closeConnection(connection);
+		try {
+			if (writeBehindQueue != null) {
+				writeBehindQueue.close();
+			}
+			transaction.finish();
+		} catch (final MetafactureException e) {
+			transaction.rollback();
+			throw e;
+		} finally {
+			query.close();
+			JdbcUtil.closeConnection(connection);
+		}
 	}
 
 }
@@ -16,20 +16,59 @@
 package org.culturegraph.mf.sql;
 
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
+import javax.sql.DataSource;
+
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.framework.annotations.Description;
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.annotations.Out;
 import org.culturegraph.mf.framework.helpers.DefaultStreamPipe;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.sql.util.BinaryEncoding;
+import org.culturegraph.mf.sql.util.ConcurrentLookupExecutor;
 import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.LookupCache;
+import org.culturegraph.mf.sql.util.Metrics;
 import org.culturegraph.mf.sql.util.PreparedQuery;
+import org.culturegraph.mf.sql.util.Record;
+import org.culturegraph.mf.sql.util.SlowQueryLog;
 
 /**
  * Executes a prepared query for each record received. Each row of the result
  * sets produced by the query is emitted as a new record. The module also emits
  * generated keys as new records.
  * <p>
+ * If a cache size is set, the records emitted for a combination of parameter
+ * values are kept in memory and replayed when a record with the same parameter
+ * values is received again. This saves database round trips when the pipe is
+ * used to look up the same data for many records.
+ * <p>
+ * Keyed lookups can be batched by setting a lookup batch size. The key
+ * parameter (by default {@value #ID_PARAMETER}) is then expanded into a list
+ * of placeholders so that the query must use it in an {@code IN} list, e.g.
+ * {@code SELECT * FROM t WHERE key IN (:_ID)}. The module collects the keys of
+ * several records and looks them up in a single query. The rows returned are
+ * assigned to the records by comparing the key column (by default the id
+ * column) with the key. Records are emitted in the order in which they were
+ * received. All records in a batch must have the same values for the other
+ * parameters; a record with different values starts a new batch.
+ * <p>
+ * If a concurrency greater than one is set, up to this number of lookups run
+ * at the same time, each on its own connection. The results are emitted in
+ * the order in which the records were received. Concurrent lookups require a
+ * data source and cannot be combined with caching or batching.
+ * <p>
  * Use {@link SqlStreamSink} for SQL statements which do not produce any result
  * sets.
  *
@@ -43,18 +82,47 @@ public final class SqlStreamPipe extends DefaultStreamPipe<StreamReceiver> {
 
 	public static final String ID_PARAMETER = "_ID";
 
-	private final Connection connection;
+	private static final int MAX_PENDING_FACTOR = 4;
+
+	private final DataSource dataSource;
+	private Connection connection;
 
 	private String idColumnLabel = PreparedQuery.DEFAULT_ID_COLUMN;
 	private String sql;
+	private int fetchSize;
+	private BinaryEncoding binaryEncoding = BinaryEncoding.DRIVER;
+	private boolean inferParameterTypes;
+	private int cacheSize;
+	private int cacheTimeToLive;
+	private int lookupBatchSize;
+	private String keyParameter = ID_PARAMETER;
+	private String keyColumnLabel;
+	private int concurrency;
+	private int slowQueryThreshold;
+	private int slowQuerySamplePercentage;
 
 	private PreparedQuery query;
+	private int idSlot;
+	private LookupCache<List<String>, List<Record>> cache;
+	private String[] boundValues;
+
+	private int keySlot;
+	private final List<PendingLookup> pendingLookups = new ArrayList<>();
+	private final Set<String> pendingKeys = new LinkedHashSet<>();
+
+	private ConcurrentLookupExecutor lookupExecutor;
+	private String[] lookupValues;
 
 	public SqlStreamPipe(final String dataSource) {
-		this.connection = JdbcUtil.getConnection(dataSource);
+		this(JdbcUtil.getDataSource(dataSource));
+	}
+
+	public SqlStreamPipe(final DataSource dataSource) {
+		this.dataSource = dataSource;
 	}
 
 	public SqlStreamPipe(final Connection connection) {
+		this.dataSource = null;
 		this.connection = connection;
 	}
 
@@ -66,33 +134,540 @@ public void setIdColumnLabel(final String idColumnLabel){
 		this.idColumnLabel = idColumnLabel;
 	}
 
+	/**
+	 * Sets the number of rows which are fetched from the database at once.
+	 * Setting a fetch size allows drivers to stream large result sets instead
+	 * of reading them into memory completely. On PostgreSQL this requires
+	 * switching off auto-commit; the module then wraps each query in its own
+	 * transaction. The default value of zero lets the driver decide.
+	 *
+	 * @param fetchSize number of rows to fetch at once
+	 */
+	public void setFetchSize(final int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns. The default is
+	 * {@link BinaryEncoding#DRIVER}. With {@link BinaryEncoding#SKIP} binary
+	 * columns are not emitted.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	/**
+	 * Sets whether the types of query parameters are inferred from the
+	 * parameter metadata of the statement. Values of typed parameters are
+	 * bound with typed setters instead of as strings. Types can also be
+	 * declared in the query, e.g. {@code :count::int}. Inference is switched
+	 * off by default.
+	 *
+	 * @param inferParameterTypes true to infer parameter types
+	 */
+	public void setInferParameterTypes(final boolean inferParameterTypes) {
+		this.inferParameterTypes = inferParameterTypes;
+	}
+
+	/**
+	 * Sets the maximum number of parameter value combinations whose results
+	 * are cached. The least recently used results are evicted first. A value
+	 * of zero (the default) disables the cache.
+	 *
+	 * @param cacheSize number of cached lookups
+	 */
+	public void setCacheSize(final int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which cached results expire. A value
+	 * of zero (the default) keeps results until they are evicted.
+	 *
+	 * @param cacheTimeToLive lifetime of cached results in milliseconds
+	 */
+	public void setCacheTimeToLive(final int cacheTimeToLive) {
+		this.cacheTimeToLive = cacheTimeToLive;
+	}
+
+	/**
+	 * Returns the number of records whose results were replayed from the
+	 * cache.
+	 */
+	public long getCacheHits() {
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	/**
+	 * Returns the number of records for which the query was executed although
+	 * the cache was enabled.
+	 */
+	public long getCacheMisses() {
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * Sets the number of keys which are looked up in a single query. A value
+	 * of zero or one (the default) executes the query for each record.
+	 *
+	 * @param lookupBatchSize number of keys per query
+	 */
+	public void setLookupBatchSize(final int lookupBatchSize) {
+		this.lookupBatchSize = lookupBatchSize;
+	}
+
+	/**
+	 * Sets the name of the parameter which receives the list of keys in
+	 * batched lookups. The default is {@value #ID_PARAMETER}.
+	 *
+	 * @param keyParameter name of the key parameter
+	 */
+	public void setKeyParameter(final String keyParameter) {
+		this.keyParameter = keyParameter;
+	}
+
+	/**
+	 * Sets the label of the column which contains the key of a row in batched
+	 * lookups. By default the id column is used.
+	 *
+	 * @param keyColumnLabel label of the key column
+	 */
+	public void setKeyColumnLabel(final String keyColumnLabel) {
+		this.keyColumnLabel = keyColumnLabel;
+	}
+
+	/**
+	 * Sets the maximum number of lookups which run at the same time. Lookups
+	 * run on virtual threads if the JVM supports them (Java 21 and later) and
+	 * on a fixed pool of threads otherwise. A value of zero or one (the
+	 * default) executes the lookups one after another on the calling thread.
+	 *
+	 * @param concurrency maximum number of concurrent lookups
+	 */
+	public void setConcurrency(final int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which a lookup is logged as slow
+	 * statement together with its parameter values. A value of zero (the
+	 * default) uses the settings from the system properties described in
+	 * {@link SlowQueryLog}.
+	 *
+	 * @param slowQueryThreshold threshold in milliseconds
+	 */
+	public void setSlowQueryThreshold(final int slowQueryThreshold) {
+		this.slowQueryThreshold = slowQueryThreshold;
+	}
+
+	/**
+	 * Sets the percentage of all lookups which are logged regardless of their
+	 * duration. The default is zero.
+	 *
+	 * @param slowQuerySamplePercentage percentage of logged lookups
+	 */
+	public void setSlowQuerySamplePercentage(
+			final int slowQuerySamplePercentage) {
+		this.slowQuerySamplePercentage = slowQuerySamplePercentage;
+	}
+
 	@Override
 	public void startRecord(final String id) {
+		if (isConcurrent()) {
+			startConcurrentLookup(id);
+			return;
+		}
 		if (query == null) {
+			createQuery();
+		}
+		if (!isBatching()) {
+			query.clearParameters();
+		}
+		if (boundValues != null) {
+			Arrays.fill(boundValues, null);
+		}
+		setParameter(idSlot, id);
+	}
+
+	private boolean isBatching() {
+		return lookupBatchSize > 1;
+	}
+
+	private boolean isConcurrent() {
+		return concurrency > 1;
+	}
+
+	private void startConcurrentLookup(final String id) {
+		if (lookupExecutor == null) {
+			createLookupExecutor();
+		}
+		lookupValues = new String[lookupExecutor.getParameterSlotCount()];
+		final int slot = lookupExecutor.getParameterSlot(ID_PARAMETER);
+		if (slot != PreparedQuery.NO_PARAMETER) {
+			lookupValues[slot] = id;
+		}
+	}
+
+	private void createLookupExecutor() {
+		if (dataSource == null) {
+			throw new MetafactureException(
+					"Concurrent lookups require a data source");
+		}
+		if (isBatching() || cacheSize > 0) {
+			throw new MetafactureException("Concurrent lookups cannot be " +
+					"combined with caching or batching");
+		}
+		lookupExecutor = new ConcurrentLookupExecutor(dataSource,
+				this::createLookupQuery, concurrency);
+	}
+
+	private PreparedQuery createLookupQuery(final Connection lookupConnection) {
+		final PreparedQuery lookupQuery = new PreparedQuery(lookupConnection, sql,
+				idColumnLabel, true);
+		lookupQuery.setFetchSize(fetchSize);
+		lookupQuery.setBinaryEncoding(binaryEncoding);
+		lookupQuery.setInferParameterTypes(inferParameterTypes);
+		lookupQuery.setMetrics(Metrics.getQueryMetrics(SqlStreamPipe.class));
+		configureSlowQueryLog(lookupQuery);
+		return lookupQuery;
+	}
+
+	private void configureSlowQueryLog(final PreparedQuery preparedQuery) {
+		if (slowQueryThreshold > 0 || slowQuerySamplePercentage > 0) {
+			preparedQuery.setSlowQueryLog(new SlowQueryLog(slowQueryThreshold,
+					slowQuerySamplePercentage));
+		}
+	}
+
+	private void createQuery() {
+		if (connection == null) {
+			connection = JdbcUtil.getConnection(dataSource);
+		}
+		if (isBatching()) {
+			query = new PreparedQuery(connection, sql, idColumnLabel, true,
+					keyParameter, lookupBatchSize);
+			keySlot = query.getParameterSlot(keyParameter);
+		} else {
 			query = new PreparedQuery(connection, sql, idColumnLabel, true);
 		}
-		query.clearParameters();
-		query.setParameter(ID_PARAMETER, id);
+		query.setFetchSize(fetchSize);
+		query.setBinaryEncoding(binaryEncoding);
+		query.setInferParameterTypes(inferParameterTypes);
+		query.setMetrics(Metrics.getQueryMetrics(SqlStreamPipe.class));
+		configureSlowQueryLog(query);
+		idSlot = query.getParameterSlot(ID_PARAMETER);
+		if (cacheSize > 0) {
+			cache = new LookupCache<>(cacheSize);
+			cache.setTimeToLive(cacheTimeToLive);
+		}
+		if (cache != null || isBatching()) {
+			boundValues = new String[query.getParameterSlotCount()];
+		}
 	}
 
 	@Override
 	public void endRecord() {
+		if (isConcurrent()) {
+			assert lookupValues != null: "startRecord was not called";
+			lookupExecutor.submit(lookupValues, getReceiver());
+			lookupValues = null;
+			return;
+		}
 		assert query != null: "startRecord was not called";
-		query.execute(getReceiver());
+		if (isBatching()) {
+			enqueueLookup();
+			return;
+		}
+		if (cache == null) {
+			query.execute(getReceiver());
+			return;
+		}
+		final List<String> key = Arrays.asList(boundValues.clone());
+		final List<Record> cachedRecords = cache.get(key);
+		if (cachedRecords != null) {
+			replay(cachedRecords);
+		} else {
+			final RecordingReceiver recorder = new RecordingReceiver(getReceiver());
+			query.execute(recorder);
+			cache.put(key, recorder.getRecords());
+		}
 	}
 
 	@Override
 	public void literal(final String name, final String value) {
+		if (isConcurrent()) {
+			assert lookupValues != null: "startRecord was not called";
+			final int slot = lookupExecutor.getParameterSlot(name);
+			if (slot != PreparedQuery.NO_PARAMETER) {
+				lookupValues[slot] = value;
+			}
+			return;
+		}
 		assert query != null: "startRecord was not called";
-		query.setParameter(name, value);
+		setParameter(query.getParameterSlot(name), value);
+	}
+
+	private void setParameter(final int slot, final String value) {
+		if (!isBatching()) {
+			query.setParameter(slot, value);
+		}
+		if (boundValues != null && slot != PreparedQuery.NO_PARAMETER) {
+			boundValues[slot] = value;
+		}
+	}
+
+	private void enqueueLookup() {
+		final String[] values = boundValues.clone();
+		if (!pendingLookups.isEmpty() &&
+				!haveSameNonKeyValues(values, pendingLookups.get(0).values)) {
+			flushLookups();
+		}
+		final PendingLookup lookup = new PendingLookup(values);
+		final String key = values[keySlot];
+		if (key == null) {
+			lookup.records = Collections.emptyList();
+		} else if (cache != null) {
+			lookup.records = cache.get(lookup.cacheKey);
+		}
+		if (lookup.records != null && pendingLookups.isEmpty()) {
+			replay(lookup.records);
+			return;
+		}
+		pendingLookups.add(lookup);
+		if (lookup.records == null) {
+			pendingKeys.add(key);
+		}
+		// Cached results wait for the pending lookups in front of them. The
+		// number of waiting records is limited so that the batch is sent even if
+		// only a few records miss the cache:
+		if (pendingKeys.size() >= lookupBatchSize ||
+				pendingLookups.size() >= lookupBatchSize * MAX_PENDING_FACTOR) {
+			flushLookups();
+		}
+	}
+
+	private boolean haveSameNonKeyValues(final String[] values1,
+			final String[] values2) {
+		for (int slot = 0; slot < values1.length; ++slot) {
+			if (slot != keySlot && !Objects.equals(values1[slot], values2[slot])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void flushLookups() {
+		if (!pendingKeys.isEmpty()) {
+			Map<String, List<Record>> recordsByKey = queryPendingKeys();
+			if (!pendingKeys.containsAll(recordsByKey.keySet())) {
+				// The database matched keys which differ from the returned key
+				// (e.g. "007" and 7). Look up each key on its own so that no rows
+				// are dropped:
+				recordsByKey = querySeparately();
+			}
+			for (final PendingLookup lookup : pendingLookups) {
+				if (lookup.records == null) {
+					final List<Record> records =
+							recordsByKey.get(lookup.values[keySlot]);
+					lookup.records = records == null ?
+							Collections.<Record>emptyList() : records;
+					if (cache != null) {
+						cache.put(lookup.cacheKey, lookup.records);
+					}
+				}
+			}
+			pendingKeys.clear();
+		}
+		for (final PendingLookup lookup : pendingLookups) {
+			replay(lookup.records);
+		}
+		pendingLookups.clear();
+	}
+
+	private Map<String, List<Record>> queryPendingKeys() {
+		final String[] keys = pendingKeys.toArray(new String[pendingKeys.size()]);
+		final DemultiplexingReceiver demultiplexer =
+				new DemultiplexingReceiver(keyColumnLabel);
+		queryKeys(keys, demultiplexer);
+		return demultiplexer.getRecordsByKey();
+	}
+
+	/**
+	 * Queries each pending key on its own. All rows of a query belong to its
+	 * key, whatever the key column contains.
+	 */
+	private Map<String, List<Record>> querySeparately() {
+		final Map<String, List<Record>> recordsByKey = new HashMap<>();
+		for (final String key : pendingKeys) {
+			final RecordingReceiver recorder =
+					new RecordingReceiver(new DefaultStreamReceiver());
+			queryKeys(new String[] { key }, recorder);
+			recordsByKey.put(key, recorder.getRecords());
+		}
+		return recordsByKey;
+	}
+
+	private void queryKeys(final String[] keys, final StreamReceiver receiver) {
+		final String[] values = pendingLookups.get(0).values;
+		query.clearParameters();
+		for (int slot = 0; slot < values.length; ++slot) {
+			if (slot != keySlot) {
+				query.setParameter(slot, values[slot]);
+			}
+		}
+		// Unused placeholders in the key list are filled by repeating the last
+		// key. This keeps the statement the same for all batches:
+		for (int i = 0; i < lookupBatchSize; ++i) {
+			query.setParameter(keySlot, i, keys[Math.min(i, keys.length - 1)]);
+		}
+		query.execute(receiver);
+	}
+
+	private void replay(final List<Record> records) {
+		for (final Record record : records) {
+			record.replay(getReceiver());
+		}
 	}
 
 	@Override
 	protected void onCloseStream() {
-		if (query != null) {
-			query.close();
+		try {
+			if (lookupExecutor != null) {
+				try {
+					lookupExecutor.flush();
+				} finally {
+					lookupExecutor.close();
+				}
+			}
+			if (query != null) {
+				flushLookups();
+			}
+		} finally {
+			try {
+				if (query != null) {
+					query.close();
+				}
+			} finally {
+				if (cache != null) {
+					cache.clear();
+				}
+				if (connection != null) {
+					JdbcUtil.closeConnection(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A record waiting for the results of a batched lookup.
+	 */
+	private static final class PendingLookup {
+
+		final String[] values;
+		final List<String> cacheKey;
+		List<Record> records;
+
+		PendingLookup(final String[] values) {
+			this.values = values;
+			cacheKey = Arrays.asList(values);
+		}
+
+	}
+
+	/**
+	 * Collects the records emitted by a batched lookup and groups them by
+	 * their key.
+	 */
+	private static final class DemultiplexingReceiver
+			extends DefaultStreamReceiver {
+
+		private final String keyColumnLabel;
+		private final Map<String, List<Record>> recordsByKey = new HashMap<>();
+
+		private Record currentRecord;
+
+		DemultiplexingReceiver(final String keyColumnLabel) {
+			this.keyColumnLabel = keyColumnLabel;
+		}
+
+		Map<String, List<Record>> getRecordsByKey() {
+			return recordsByKey;
+		}
+
+		@Override
+		public void startRecord(final String id) {
+			currentRecord = new Record(id);
+		}
+
+		@Override
+		public void endRecord() {
+			final String key = getKey(currentRecord);
+			List<Record> records = recordsByKey.get(key);
+			if (records == null) {
+				records = new ArrayList<>();
+				recordsByKey.put(key, records);
+			}
+			records.add(currentRecord);
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			currentRecord.addLiteral(name, value);
+		}
+
+		private String getKey(final Record record) {
+			if (keyColumnLabel == null) {
+				return record.getId();
+			}
+			for (int i = 0; i < record.getLiteralCount(); ++i) {
+				if (keyColumnLabel.equalsIgnoreCase(record.getLiteralName(i))) {
+					return record.getLiteralValue(i);
+				}
+			}
+			return null;
 		}
-		JdbcUtil.closeConnection(connection);
+
+	}
+
+	/**
+	 * Forwards the records emitted by the query and keeps a copy of them for
+	 * the cache.
+	 */
+	private static final class RecordingReceiver extends DefaultStreamReceiver {
+
+		private final StreamReceiver receiver;
+		private final List<Record> records = new ArrayList<>();
+
+		private Record currentRecord;
+
+		RecordingReceiver(final StreamReceiver receiver) {
+			this.receiver = receiver;
+		}
+
+		List<Record> getRecords() {
+			return records;
+		}
+
+		@Override
+		public void startRecord(final String id) {
+			currentRecord = new Record(id);
+			records.add(currentRecord);
+			receiver.startRecord(id);
+		}
+
+		@Override
+		public void endRecord() {
+			receiver.endRecord();
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			currentRecord.addLiteral(name, value);
+			receiver.literal(name, value);
+		}
+
 	}
 
 }
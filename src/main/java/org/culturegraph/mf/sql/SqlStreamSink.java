@@ -16,14 +16,27 @@
 package org.culturegraph.mf.sql;
 
 import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.framework.annotations.Description;
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
 import org.culturegraph.mf.sql.SqlStreamPipe;
+import org.culturegraph.mf.sql.util.ChunkedTransaction;
 import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.LiteralBuffer;
+import org.culturegraph.mf.sql.util.Metrics;
 import org.culturegraph.mf.sql.util.PreparedQuery;
+import org.culturegraph.mf.sql.util.Record;
+import org.culturegraph.mf.sql.util.UpsertStatement;
+import org.culturegraph.mf.sql.util.WriteBehindQueue;
 
 /**
  * Executes a prepared query for each record received. The prepared query
@@ -35,6 +48,38 @@
  * executing the query. This makes this module suitable for performing
  * operations such as INSERT, UPDATE or DELETE.
  * <p>
+ * If a literal occurs several times in a record, the last value is used.
+ * Array parameters (written as {@code :name[]}, see {@link PreparedQuery})
+ * receive all values of the literal as SQL array. Alternatively, the
+ * statement can be executed once for each value of a repeated literal (see
+ * {@link #setExpandRepeatedLiterals(boolean)}).
+ * <p>
+ * If a batch size larger than one is set, the statements for the records are
+ * not executed immediately but collected and sent to the database in batches.
+ * Records remaining in an incomplete batch are sent when the stream is closed.
+ * <p>
+ * Alternatively, an INSERT statement with a single row in its VALUES list can
+ * be rewritten into a statement which inserts several rows at once (see
+ * {@link #setRowsPerStatement(int)}). This helps with drivers which send each
+ * statement of a batch in a separate round trip.
+ * <p>
+ * Instead of a query, a table with key and value columns can be set. The
+ * module then inserts each record as a row or updates the row with the same
+ * key using the native upsert statement of the database (see
+ * {@link UpsertStatement}). A column receives the value of the literal with
+ * the same name. A column can be mapped to a literal with a different name by
+ * writing {@code column=literal}, e.g. {@code id=_ID} for the record id.
+ * <p>
+ * In write-behind mode (see {@link #setWriteBehind(int)}) the records are
+ * queued and written by a separate thread so that upstream modules do not
+ * wait for the database.
+ * <p>
+ * By default, the module uses the auto-commit mode of the connection. If a
+ * commit interval or a commit time limit is set, auto-commit is switched off
+ * and the statements are committed in chunks instead. If a statement fails,
+ * the open chunk is rolled back. The last chunk is committed when the stream
+ * is closed.
+ * <p>
  * Use {@link SqlStreamPipe} if access to the results of the SQL query is
  * required.
  *
@@ -48,41 +93,510 @@ public final class SqlStreamSink extends DefaultStreamReceiver {
 	public static final String ID_PARAMETER = "_ID";
 
 	private final Connection connection;
+	private final ChunkedTransaction transaction;
 
+	private String sql;
+	private String table;
+	private String keyColumns;
+	private String valueColumns;
+	private int batchSize = 1;
+	private int rowsPerStatement = 1;
+	private boolean expandRepeatedLiterals;
+	private boolean inferParameterTypes;
 	private PreparedQuery query;
+	private int idSlot;
+	private LiteralBuffer literals;
+
+	private final Map<Integer, PreparedQuery> multiRowQueries = new HashMap<>();
+	private String[][] bufferedRows;
+	private int bufferedRowCount;
+	private String[] currentRow;
+	private int[] upsertKeySlots;
+	private final Set<List<String>> bufferedKeys = new HashSet<>();
+
+	private int writeBehind;
+	private WriteBehindQueue<Record> writeBehindQueue;
+	private Record queuedRecord;
 
 	public SqlStreamSink(final String dataSource) {
-		this.connection = JdbcUtil.getConnection(dataSource);
+		this(JdbcUtil.getConnection(dataSource));
 	}
 
 	public SqlStreamSink(final Connection connection) {
 		this.connection = connection;
+		transaction = new ChunkedTransaction(connection);
 	}
 
 	public void setQuery(final String sql) {
+		this.sql = sql;
 		this.query = new PreparedQuery(connection, sql, false);
+		query.setInferParameterTypes(inferParameterTypes);
+		query.setMetrics(Metrics.getQueryMetrics(SqlStreamSink.class));
+		idSlot = query.getParameterSlot(ID_PARAMETER);
+		prepareLiteralBuffer();
+	}
+
+	/**
+	 * Sets whether the statement is executed once for each value of a
+	 * repeated literal. The i-th execution receives the i-th value of each
+	 * repeated literal or its last value if the literal has fewer values.
+	 * Array parameters receive all values in each execution. Expansion is
+	 * switched off by default and is not available if more than one row per
+	 * statement is inserted.
+	 *
+	 * @param expandRepeatedLiterals true to execute the statement for each
+	 * value of a repeated literal
+	 */
+	public void setExpandRepeatedLiterals(final boolean expandRepeatedLiterals) {
+		this.expandRepeatedLiterals = expandRepeatedLiterals;
+		if (query != null) {
+			prepareLiteralBuffer();
+		}
+	}
+
+	/**
+	 * Literals are only collected if they are needed for array parameters or
+	 * for expanding repeated literals. Otherwise, they are bound immediately.
+	 */
+	private void prepareLiteralBuffer() {
+		literals = null;
+		final int slotCount = query.getParameterSlotCount();
+		boolean collectLiterals = expandRepeatedLiterals;
+		for (int slot = 0; slot < slotCount && !collectLiterals; ++slot) {
+			collectLiterals = query.isArrayParameter(slot);
+		}
+		if (collectLiterals) {
+			literals = new LiteralBuffer(slotCount);
+		}
+	}
+
+	/**
+	 * Sets the table into which records are upserted. The query is generated
+	 * from the table and the key and value columns when the first record is
+	 * received. An explicitly set query takes precedence.
+	 *
+	 * @param table name of the table
+	 */
+	public void setTable(final String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets the columns which identify a row as comma-separated list. Each entry
+	 * is either a column name or {@code column=literal}.
+	 *
+	 * @param keyColumns list of key columns
+	 */
+	public void setKeyColumns(final String keyColumns) {
+		this.keyColumns = keyColumns;
+	}
+
+	/**
+	 * Sets the columns which are updated if a row with the same key exists as
+	 * comma-separated list. Each entry is either a column name or
+	 * {@code column=literal}.
+	 *
+	 * @param valueColumns list of value columns
+	 */
+	public void setValueColumns(final String valueColumns) {
+		this.valueColumns = valueColumns;
+	}
+
+	/**
+	 * Sets whether the types of query parameters are inferred from the
+	 * parameter metadata of the statement. Values of typed parameters are
+	 * bound with typed setters instead of as strings. Types can also be
+	 * declared in the query, e.g. {@code :count::int}. Inference is switched
+	 * off by default.
+	 *
+	 * @param inferParameterTypes true to infer parameter types
+	 */
+	public void setInferParameterTypes(final boolean inferParameterTypes) {
+		this.inferParameterTypes = inferParameterTypes;
+		if (query != null) {
+			query.setInferParameterTypes(inferParameterTypes);
+		}
+		for (final PreparedQuery multiRowQuery : multiRowQueries.values()) {
+			multiRowQuery.setInferParameterTypes(inferParameterTypes);
+		}
+	}
+
+	/**
+	 * Sets the number of records whose statements are sent to the database in
+	 * a single batch. With a batch size of one (the default) the statement is
+	 * executed as soon as a record has been received.
+	 *
+	 * @param batchSize number of records per batch
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of records which are inserted with a single statement.
+	 * If the number is larger than one, the query must be an INSERT statement
+	 * whose parameters are all within a single row of its VALUES list. The
+	 * row is repeated for each record. Records are buffered until enough
+	 * records for a statement have been received. Remaining records are
+	 * inserted with a statement with fewer rows when a transaction is
+	 * committed or the stream is closed. The number of rows is reduced if the
+	 * statement would exceed the maximum number of parameters supported by
+	 * the database.
+	 * <p>
+	 * Parameters for which a record contains no literal are set to NULL. Of
+	 * repeated literals only the last value is used. The batch size is
+	 * ignored if more than one row per statement is inserted. When records
+	 * are upserted into a table (see {@link #setTable(String)}), a record
+	 * whose key is already buffered starts a new statement because a single
+	 * upsert statement must not change a row twice.
+	 * The default is one row per statement.
+	 *
+	 * @param rowsPerStatement number of records per statement
+	 */
+	public void setRowsPerStatement(final int rowsPerStatement) {
+		this.rowsPerStatement = rowsPerStatement;
+	}
+
+	/**
+	 * Sets the number of records which are queued for a separate writer
+	 * thread. The writer executes the statements with the configured batch
+	 * size and transaction settings. Errors of the writer are thrown on the
+	 * next record or when the stream is closed; records received after an
+	 * error are discarded. Closing the stream waits until all queued records
+	 * have been written. A value of zero (the default) writes the records on
+	 * the pipeline thread.
+	 *
+	 * @param writeBehind maximum number of queued records
+	 */
+	public void setWriteBehind(final int writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Returns the number of records waiting for the writer thread.
+	 */
+	public int getWriteBehindQueueDepth() {
+		return writeBehindQueue == null ? 0 : writeBehindQueue.getQueueDepth();
+	}
+
+	/**
+	 * Returns the time in milliseconds the most recently written record
+	 * waited for the writer thread.
+	 */
+	public long getWriteBehindLag() {
+		return writeBehindQueue == null ? 0 : writeBehindQueue.getLag();
+	}
+
+	/**
+	 * Sets the number of records which are written in one transaction. A value
+	 * of zero (the default) leaves transaction handling to the connection.
+	 *
+	 * @param commitInterval number of records per transaction
+	 */
+	public void setCommitInterval(final int commitInterval) {
+		transaction.setCommitInterval(commitInterval);
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a transaction is kept open before
+	 * it is committed. A value of zero (the default) disables the time limit.
+	 *
+	 * @param commitTimeLimit maximum duration of a transaction
+	 */
+	public void setCommitTimeLimit(final int commitTimeLimit) {
+		transaction.setCommitTimeLimit(commitTimeLimit);
 	}
 
 	@Override
 	public void startRecord(final String id) {
-		query.clearParameters();
-		query.setParameter(ID_PARAMETER, id);
+		if (writeBehind > 0) {
+			if (writeBehindQueue == null) {
+				writeBehindQueue = new WriteBehindQueue<>("sql-stream-sink-writer",
+						writeBehind, this::writeRecord);
+			}
+			queuedRecord = new Record(id);
+		} else {
+			startRow(id);
+		}
+	}
+
+	private void writeRecord(final Record record) {
+		startRow(record.getId());
+		for (int i = 0; i < record.getLiteralCount(); ++i) {
+			setValue(record.getLiteralName(i), record.getLiteralValue(i));
+		}
+		endRow();
+	}
+
+	private void startRow(final String id) {
+		if (query == null && table != null) {
+			setQuery(createUpsert());
+			upsertKeySlots = getKeySlots();
+		}
+		if (rowsPerStatement > 1) {
+			if (bufferedRows == null) {
+				allocateRowBuffer();
+			}
+			currentRow = bufferedRows[bufferedRowCount];
+			Arrays.fill(currentRow, null);
+			setBufferedParameter(idSlot, id);
+		} else if (literals != null) {
+			literals.clear();
+			literals.add(idSlot, id);
+		} else {
+			query.clearParameters();
+			query.setParameter(idSlot, id);
+		}
+	}
+
+	private String createUpsert() {
+		final UpsertStatement upsert = new UpsertStatement(table);
+		for (final String[] column : parseColumns(keyColumns)) {
+			upsert.addKeyColumn(column[0], column[1]);
+		}
+		for (final String[] column : parseColumns(valueColumns)) {
+			upsert.addValueColumn(column[0], column[1]);
+		}
+		return upsert.toSql(JdbcUtil.getDialect(connection));
+	}
+
+	private int[] getKeySlots() {
+		final String[][] columns = parseColumns(keyColumns);
+		final int[] slots = new int[columns.length];
+		for (int i = 0; i < columns.length; ++i) {
+			slots[i] = query.getParameterSlot(columns[i][1]);
+		}
+		return slots;
+	}
+
+	private static String[][] parseColumns(final String columnMapping) {
+		if (columnMapping == null || columnMapping.trim().isEmpty()) {
+			return new String[0][];
+		}
+		final String[] entries = columnMapping.split(",");
+		final String[][] columns = new String[entries.length][];
+		for (int i = 0; i < entries.length; ++i) {
+			final String entry = entries[i].trim();
+			final int separator = entry.indexOf('=');
+			if (separator < 0) {
+				columns[i] = new String[] { entry, entry };
+			} else {
+				columns[i] = new String[] { entry.substring(0, separator).trim(),
+						entry.substring(separator + 1).trim() };
+			}
+		}
+		return columns;
+	}
+
+	private void allocateRowBuffer() {
+		final int parametersPerRow = Math.max(1, query.getParameterCount());
+		final int maximumRows = JdbcUtil.getDialect(connection)
+				.getMaximumParameterCount() / parametersPerRow;
+		final int rows = Math.max(1, Math.min(rowsPerStatement, maximumRows));
+		bufferedRows = new String[rows][query.getParameterSlotCount()];
+	}
+
+	private void setBufferedParameter(final int slot, final String value) {
+		if (slot != PreparedQuery.NO_PARAMETER) {
+			currentRow[slot] = value;
+		}
 	}
 
 	@Override
 	public void endRecord() {
-		query.execute();
+		if (writeBehindQueue != null) {
+			writeBehindQueue.put(queuedRecord);
+			queuedRecord = null;
+		} else {
+			endRow();
+		}
+	}
+
+	private void endRow() {
+		transaction.begin();
+		try {
+			if (rowsPerStatement > 1) {
+				if (upsertKeySlots != null) {
+					separateRepeatedKey();
+				}
+				bufferedRowCount += 1;
+				if (bufferedRowCount == bufferedRows.length) {
+					insertBufferedRows();
+				}
+			} else {
+				final int executions = literals == null ? 1 : getExecutionCount();
+				for (int i = 0; i < executions; ++i) {
+					if (literals != null) {
+						bindLiterals(i);
+					}
+					executeQuery();
+				}
+			}
+			transaction.operationCompleted();
+			if (transaction.isCommitDue()) {
+				insertBufferedRows();
+				query.executeBatch();
+				transaction.commit();
+			}
+		} catch (final MetafactureException e) {
+			transaction.rollback();
+			throw e;
+		}
+	}
+
+	/**
+	 * Inserts the buffered rows without the current row if one of them has
+	 * the same key as the current row. PostgreSQL rejects upserts which
+	 * affect a row twice.
+	 */
+	private void separateRepeatedKey() {
+		final String[] key = new String[upsertKeySlots.length];
+		for (int i = 0; i < upsertKeySlots.length; ++i) {
+			final int slot = upsertKeySlots[i];
+			key[i] = slot == PreparedQuery.NO_PARAMETER ? null : currentRow[slot];
+		}
+		final List<String> keyList = Arrays.asList(key);
+		if (bufferedKeys.contains(keyList)) {
+			final int currentIndex = bufferedRowCount;
+			insertBufferedRows();
+			bufferedRows[currentIndex] = bufferedRows[0];
+			bufferedRows[0] = currentRow;
+		}
+		bufferedKeys.add(keyList);
+	}
+
+	private int getExecutionCount() {
+		int executions = 1;
+		if (expandRepeatedLiterals) {
+			for (int i = 0; i < literals.getUsedSlotCount(); ++i) {
+				final int slot = literals.getUsedSlot(i);
+				if (!query.isArrayParameter(slot)) {
+					executions = Math.max(executions, literals.getCount(slot));
+				}
+			}
+		}
+		return executions;
+	}
+
+	private void bindLiterals(final int execution) {
+		if (execution == 0) {
+			query.clearParameters();
+		}
+		for (int i = 0; i < literals.getUsedSlotCount(); ++i) {
+			final int slot = literals.getUsedSlot(i);
+			if (query.isArrayParameter(slot)) {
+				if (execution == 0) {
+					query.setArrayParameter(slot, literals.toArray(slot));
+				}
+			} else {
+				final int lastIndex = literals.getCount(slot) - 1;
+				final int index = expandRepeatedLiterals ?
+						Math.min(execution, lastIndex) : lastIndex;
+				query.setParameter(slot, literals.get(slot, index));
+			}
+		}
+	}
+
+	private void executeQuery() {
+		if (batchSize > 1) {
+			query.addBatch();
+			if (query.getBatchedStatementCount() >= batchSize) {
+				query.executeBatch();
+			}
+		} else {
+			query.execute();
+		}
+	}
+
+	private void insertBufferedRows() {
+		if (bufferedRowCount == 0) {
+			return;
+		}
+		final PreparedQuery multiRowQuery = getMultiRowQuery(bufferedRowCount);
+		final int slotCount = query.getParameterSlotCount();
+		for (int row = 0; row < bufferedRowCount; ++row) {
+			for (int slot = 0; slot < slotCount; ++slot) {
+				multiRowQuery.setParameter(slot, row, bufferedRows[row][slot]);
+			}
+		}
+		bufferedRowCount = 0;
+		bufferedKeys.clear();
+		multiRowQuery.execute();
+	}
+
+	private PreparedQuery getMultiRowQuery(final int rows) {
+		PreparedQuery multiRowQuery = multiRowQueries.get(Integer.valueOf(rows));
+		if (multiRowQuery == null) {
+			multiRowQuery = PreparedQuery.multiRowInsert(connection, sql, rows);
+			multiRowQuery.setInferParameterTypes(inferParameterTypes);
+			multiRowQuery.setMetrics(Metrics.getQueryMetrics(SqlStreamSink.class));
+			multiRowQueries.put(Integer.valueOf(rows), multiRowQuery);
+		}
+		return multiRowQuery;
 	}
 
 	@Override
 	public void literal(final String name, final String value) {
-		query.setParameter(name, value);
+		if (writeBehindQueue != null) {
+			queuedRecord.addLiteral(name, value);
+		} else {
+			setValue(name, value);
+		}
+	}
+
+	private void setValue(final String name, final String value) {
+		if (rowsPerStatement > 1) {
+			setBufferedParameter(query.getParameterSlot(name), value);
+		} else if (literals != null) {
+			literals.add(query.getParameterSlot(name), value);
+		} else {
+			query.setParameter(name, value);
+		}
+	}
+
+	/**
+	 * Closes the connection without executing pending statements. Statements
+	 * in the current JDBC batch and buffered rows are discarded and an open
+	 * transaction is rolled back. Used by {@link SqlParallelStreamSink} after a
+	 * worker failed.
+	 */
+	void discard() {
+		try {
+			transaction.rollback();
+		} finally {
+			if (query != null) {
+				query.close();
+			}
+			for (final PreparedQuery multiRowQuery : multiRowQueries.values()) {
+				multiRowQuery.close();
+			}
+			JdbcUtil.closeConnection(connection);
+		}
 	}
 
 	@Override
 	public void closeStream() {
-		query.close();
-		JdbcUtil.closeConnection(connection);
+		try {
+			if (writeBehindQueue != null) {
+				writeBehindQueue.close();
+			}
+			if (query != null) {
+				insertBufferedRows();
+				query.executeBatch();
+			}
+			transaction.finish();
+		} catch (final MetafactureException e) {
+			transaction.rollback();
+			throw e;
+		} finally {
+			if (query != null) {
+				query.close();
+			}
+			for (final PreparedQuery multiRowQuery : multiRowQueries.values()) {
+				multiRowQuery.close();
+			}
+			JdbcUtil.closeConnection(connection);
+		}
 	}
 
 }
@@ -22,8 +22,11 @@
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.annotations.Out;
 import org.culturegraph.mf.framework.helpers.DefaultObjectPipe;
+import org.culturegraph.mf.sql.util.BinaryEncoding;
 import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Metrics;
 import org.culturegraph.mf.sql.util.PreparedQuery;
+import org.culturegraph.mf.sql.util.ReadAheadBuffer;
 
 /**
  * Executes a prepared statement or stored procedure for each object received.
@@ -31,6 +34,10 @@
  * parameter named ":obj". The result sets created by executing the statement
  * are returned as records. For each row in the result set one record is
  * emitted.
+ * <p>
+ * Optionally, the result set can be read ahead on a background thread while
+ * the records are processed by the downstream modules (see
+ * {@link #setReadAhead(int)}).
  *
  * @author Christoph Böhme
  */
@@ -46,8 +53,13 @@
 
 	private String idColumnLabel = PreparedQuery.DEFAULT_ID_COLUMN;
 	private String sql;
+	private int fetchSize;
+	private BinaryEncoding binaryEncoding = BinaryEncoding.DRIVER;
+	private int readAhead;
+	private boolean reuseRecords = true;
 
 	private PreparedQuery statement;
+	private ReadAheadBuffer readAheadBuffer;
 
 	public SqlStreamSource(final String dataSource) {
 		this.connection = JdbcUtil.getConnection(dataSource);
@@ -65,18 +77,77 @@ public void setIdColumnLabel(final String idColumnLabel){
 		this.idColumnLabel = idColumnLabel;
 	}
 
+	/**
+	 * Sets the number of rows which are fetched from the database at once.
+	 * Setting a fetch size allows drivers to stream large result sets instead
+	 * of reading them into memory completely. On PostgreSQL this requires
+	 * switching off auto-commit; the module then wraps each query in its own
+	 * transaction. The default value of zero lets the driver decide.
+	 *
+	 * @param fetchSize number of rows to fetch at once
+	 */
+	public void setFetchSize(final int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns. The default is
+	 * {@link BinaryEncoding#DRIVER}. With {@link BinaryEncoding#SKIP} binary
+	 * columns are not emitted.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	/**
+	 * Sets the number of records which are read ahead of the downstream
+	 * modules. If set, the result set is read on a background thread and
+	 * buffered for up to {@code readAhead} records. The default value of zero
+	 * reads the result set on the pipeline thread.
+	 *
+	 * @param readAhead maximum number of buffered records
+	 */
+	public void setReadAhead(final int readAhead) {
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Sets whether the objects buffering the records read ahead are reused.
+	 * Reusing them avoids allocating arrays for each row. The default is true.
+	 *
+	 * @param reuseRecords false to allocate a new buffer object for each row
+	 */
+	public void setReuseRecords(final boolean reuseRecords) {
+		this.reuseRecords = reuseRecords;
+	}
+
 	@Override
 	public void process(final T obj) {
 		if (statement == null) {
 			statement = new PreparedQuery(connection, sql, idColumnLabel, true);
+			statement.setFetchSize(fetchSize);
+			statement.setBinaryEncoding(binaryEncoding);
+			statement.setMetrics(Metrics.getQueryMetrics(SqlStreamSource.class));
 		}
 		statement.clearParameters();
 		statement.setParameter("obj", obj.toString());
-		statement.execute(getReceiver());
+		if (readAhead > 0) {
+			if (readAheadBuffer == null) {
+				readAheadBuffer = new ReadAheadBuffer(readAhead, reuseRecords);
+			}
+			readAheadBuffer.transfer(statement::execute, getReceiver());
+		} else {
+			statement.execute(getReceiver());
+		}
 	}
 
 	@Override
 	protected void onCloseStream() {
+		if (readAheadBuffer != null) {
+			readAheadBuffer.close();
+		}
 		if (statement != null) {
 			statement.close();
 		}
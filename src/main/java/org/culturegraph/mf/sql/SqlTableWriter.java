@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.annotations.Description;
+import org.culturegraph.mf.framework.annotations.In;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.sql.util.JdbcUtil;
+import org.culturegraph.mf.sql.util.Metrics;
+import org.culturegraph.mf.sql.util.PreparedQuery;
+import org.culturegraph.mf.sql.util.TableSchema;
+
+/**
+ * Inserts each record as a row into a table. The columns of the table are
+ * read from the database metadata when the first record is received. A
+ * literal is written to the column with the same name (ignoring case). The
+ * record id is written to the column set with {@link #setIdColumn(String)}.
+ * Literals without a matching column are counted (see
+ * {@link #getUnmappedLiterals()}). Literals in entities are not prefixed with
+ * the entity name.
+ * <p>
+ * The INSERT statement only lists the columns for which a record contains
+ * literals so that database defaults apply to the other columns. A prepared
+ * statement is kept for each combination of columns.
+ * <p>
+ * If a literal occurs more than once in a record, the last value is written
+ * by default. Array columns receive all values of the literal as an SQL array.
+ * If a child table is set, all values of the literals for the child columns
+ * (see {@link #setChildColumns(String)}) are instead written as rows of the
+ * child table, each consisting of the record id, the column name and the
+ * value. This does not depend on how often a literal occurs in a record.
+ *
+ * @author Christoph Böhme
+ * @see SqlStreamSink
+ */
+@Description("Inserts records into a table. Literals are mapped to the " +
+		"columns with the same name.")
+@In(StreamReceiver.class)
+public final class SqlTableWriter extends DefaultStreamReceiver {
+
+	public static final String DEFAULT_CHILD_ID_COLUMN = "record_id";
+	public static final String DEFAULT_CHILD_NAME_COLUMN = "name";
+	public static final String DEFAULT_CHILD_VALUE_COLUMN = "value";
+
+	private static final String ID_PARAMETER = "id";
+	private static final String NAME_PARAMETER = "name";
+	private static final String VALUE_PARAMETER = "value";
+
+	private final Connection connection;
+
+	private String table;
+	private String idColumn;
+	private int batchSize = 1;
+	private String childTable;
+	private String childColumns;
+	private String childIdColumn = DEFAULT_CHILD_ID_COLUMN;
+	private String childNameColumn = DEFAULT_CHILD_NAME_COLUMN;
+	private String childValueColumn = DEFAULT_CHILD_VALUE_COLUMN;
+
+	private TableSchema schema;
+	private String[] parameterNames;
+	private int idColumnIndex = TableSchema.NO_COLUMN;
+	private final Map<String, Integer> literalColumns = new HashMap<>();
+	private final Map<BitSet, PreparedQuery> inserts = new HashMap<>();
+	private PreparedQuery childInsert;
+	private final BitSet childColumnIndices = new BitSet();
+
+	private String recordId;
+	private final List<List<String>> values = new ArrayList<>();
+	private final BitSet presentColumns = new BitSet();
+	private final BitSet rowColumns = new BitSet();
+	private int pendingRecords;
+
+	private final Map<String, Long> unmappedLiterals = new HashMap<>();
+	private long unmappedLiteralCount;
+
+	public SqlTableWriter(final String dataSource) {
+		this(JdbcUtil.getConnection(dataSource));
+	}
+
+	public SqlTableWriter(final Connection connection) {
+		this.connection = connection;
+	}
+
+	public void setTable(final String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets the column which receives the record id. By default the record id
+	 * is not written.
+	 *
+	 * @param idColumn name of the id column
+	 */
+	public void setIdColumn(final String idColumn) {
+		this.idColumn = idColumn;
+	}
+
+	/**
+	 * Sets the number of records which are sent to the database in a single
+	 * batch. The default is one.
+	 *
+	 * @param batchSize number of records per batch
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the table which receives the values of the child columns. By
+	 * default no child table is written. The child columns must be set if a
+	 * child table is set.
+	 *
+	 * @param childTable name of the child table
+	 */
+	public void setChildTable(final String childTable) {
+		this.childTable = childTable;
+	}
+
+	/**
+	 * Sets the columns whose values are written to the child table as
+	 * comma-separated list. Each value of a literal for one of these columns
+	 * becomes a row of the child table, even if the literal occurs only once
+	 * in a record. The columns must exist in the table.
+	 *
+	 * @param childColumns list of column names
+	 */
+	public void setChildColumns(final String childColumns) {
+		this.childColumns = childColumns;
+	}
+
+	/**
+	 * Sets the column of the child table which receives the record id. The
+	 * default is {@value #DEFAULT_CHILD_ID_COLUMN}.
+	 */
+	public void setChildIdColumn(final String childIdColumn) {
+		this.childIdColumn = childIdColumn;
+	}
+
+	/**
+	 * Sets the column of the child table which receives the column name of
+	 * the repeated literal. The default is {@value #DEFAULT_CHILD_NAME_COLUMN}.
+	 */
+	public void setChildNameColumn(final String childNameColumn) {
+		this.childNameColumn = childNameColumn;
+	}
+
+	/**
+	 * Sets the column of the child table which receives the values of the
+	 * repeated literal. The default is {@value #DEFAULT_CHILD_VALUE_COLUMN}.
+	 */
+	public void setChildValueColumn(final String childValueColumn) {
+		this.childValueColumn = childValueColumn;
+	}
+
+	/**
+	 * Returns the number of literals which were not written because the table
+	 * has no matching column.
+	 */
+	public long getUnmappedLiteralCount() {
+		return unmappedLiteralCount;
+	}
+
+	/**
+	 * Returns how often each literal without a matching column was received.
+	 */
+	public Map<String, Long> getUnmappedLiterals() {
+		return Collections.unmodifiableMap(new HashMap<>(unmappedLiterals));
+	}
+
+	/**
+	 * Returns the number of prepared INSERT statements, i.e. the number of
+	 * distinct column combinations seen so far.
+	 */
+	public int getInsertStatementCount() {
+		return inserts.size();
+	}
+
+	@Override
+	public void startRecord(final String id) {
+		if (schema == null) {
+			readSchema();
+		}
+		recordId = id;
+		for (int i = presentColumns.nextSetBit(0); i >= 0;
+				i = presentColumns.nextSetBit(i + 1)) {
+			values.get(i).clear();
+		}
+		presentColumns.clear();
+		if (idColumnIndex != TableSchema.NO_COLUMN) {
+			addValue(idColumnIndex, id);
+		}
+	}
+
+	private void readSchema() {
+		schema = TableSchema.read(connection, table);
+		final int columnCount = schema.getColumnCount();
+		parameterNames = new String[columnCount];
+		for (int i = 0; i < columnCount; ++i) {
+			parameterNames[i] = TableSchema.getParameterName(i);
+			values.add(new ArrayList<String>());
+		}
+		if (idColumn != null) {
+			idColumnIndex = schema.getColumnIndex(idColumn);
+		}
+		if (childTable != null) {
+			readChildColumns();
+			childInsert = new PreparedQuery(connection, "INSERT INTO " +
+					childTable + " (" + childIdColumn + ", " + childNameColumn + ", " +
+					childValueColumn + ") VALUES (:" + ID_PARAMETER + ", :" +
+					NAME_PARAMETER + ", :" + VALUE_PARAMETER + ")", false);
+			childInsert.setMetrics(Metrics.getQueryMetrics(SqlTableWriter.class));
+		}
+	}
+
+	private void readChildColumns() {
+		if (childColumns == null || childColumns.trim().isEmpty()) {
+			throw new MetafactureException("Child columns must be set for " +
+					"child table " + childTable);
+		}
+		for (final String childColumn : childColumns.split(",")) {
+			final int column = schema.getColumnIndex(childColumn.trim());
+			if (column == TableSchema.NO_COLUMN) {
+				throw new MetafactureException("Child column not found: " +
+						childColumn.trim());
+			}
+			childColumnIndices.set(column);
+		}
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		final int column = getColumnIndex(name);
+		if (column == TableSchema.NO_COLUMN) {
+			unmappedLiteralCount += 1;
+			unmappedLiterals.merge(name, Long.valueOf(1), Long::sum);
+			return;
+		}
+		addValue(column, value);
+	}
+
+	private int getColumnIndex(final String literalName) {
+		Integer column = literalColumns.get(literalName);
+		if (column == null) {
+			column = Integer.valueOf(schema.getColumnIndex(literalName));
+			literalColumns.put(literalName, column);
+		}
+		return column.intValue();
+	}
+
+	private void addValue(final int column, final String value) {
+		values.get(column).add(value);
+		presentColumns.set(column);
+	}
+
+	@Override
+	public void endRecord() {
+		rowColumns.clear();
+		rowColumns.or(presentColumns);
+		if (childInsert != null) {
+			addChildRows();
+		}
+		if (!rowColumns.isEmpty()) {
+			insertRow();
+		}
+		pendingRecords += 1;
+		if (pendingRecords >= batchSize) {
+			executeBatches();
+		}
+	}
+
+	private void addChildRows() {
+		for (int i = childColumnIndices.nextSetBit(0); i >= 0;
+				i = childColumnIndices.nextSetBit(i + 1)) {
+			if (!presentColumns.get(i)) {
+				continue;
+			}
+			rowColumns.clear(i);
+			for (final String value : values.get(i)) {
+				childInsert.setParameter(ID_PARAMETER, recordId);
+				childInsert.setParameter(NAME_PARAMETER, schema.getColumnName(i));
+				childInsert.setParameter(VALUE_PARAMETER, value);
+				childInsert.addBatch();
+			}
+		}
+	}
+
+	private void insertRow() {
+		final PreparedQuery insert = getInsert();
+		for (int i = rowColumns.nextSetBit(0); i >= 0;
+				i = rowColumns.nextSetBit(i + 1)) {
+			final List<String> columnValues = values.get(i);
+			final int slot = insert.getParameterSlot(parameterNames[i]);
+			if (schema.isArrayColumn(i)) {
+				insert.setArrayParameter(slot, schema.getElementTypeName(i),
+						columnValues.toArray(new String[columnValues.size()]));
+			} else {
+				insert.setParameter(slot, columnValues.get(columnValues.size() - 1));
+			}
+		}
+		insert.addBatch();
+	}
+
+	private PreparedQuery getInsert() {
+		PreparedQuery insert = inserts.get(rowColumns);
+		if (insert == null) {
+			insert = schema.prepareInsert(connection, rowColumns);
+			insert.setMetrics(Metrics.getQueryMetrics(SqlTableWriter.class));
+			inserts.put((BitSet) rowColumns.clone(), insert);
+		}
+		return insert;
+	}
+
+	/**
+	 * Rows of the table are sent before rows of the child table so that
+	 * foreign keys of the child table can refer to them.
+	 */
+	private void executeBatches() {
+		for (final PreparedQuery insert : inserts.values()) {
+			insert.executeBatch();
+		}
+		if (childInsert != null) {
+			childInsert.executeBatch();
+		}
+		pendingRecords = 0;
+	}
+
+	@Override
+	public void closeStream() {
+		try {
+			executeBatches();
+		} finally {
+			for (final PreparedQuery insert : inserts.values()) {
+				insert.close();
+			}
+			if (childInsert != null) {
+				childInsert.close();
+			}
+			JdbcUtil.closeConnection(connection);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.Base64;
+
+/**
+ * Encodings for the values of binary columns (BINARY, VARBINARY, BLOB etc.)
+ * when they are emitted as literals.
+ *
+ * @author Christoph Böhme
+ */
+public enum BinaryEncoding {
+
+	/**
+	 * The text representation of the driver as returned by
+	 * {@link java.sql.ResultSet#getString(int)}. This is the default. Most
+	 * drivers return hexadecimal digits, PostgreSQL prefixes them with
+	 * {@code \x}.
+	 */
+	DRIVER {
+		@Override
+		String encode(final byte[] bytes) {
+			throw new UnsupportedOperationException(
+					"Values are read as strings");
+		}
+	},
+
+	/**
+	 * Lower-case hexadecimal digits.
+	 */
+	HEX {
+		@Override
+		String encode(final byte[] bytes) {
+			final char[] chars = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; ++i) {
+				chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+				chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+			}
+			return new String(chars);
+		}
+	},
+
+	/**
+	 * Base64 as defined in RFC 4648 without line breaks.
+	 */
+	BASE64 {
+		@Override
+		String encode(final byte[] bytes) {
+			return Base64.getEncoder().encodeToString(bytes);
+		}
+	},
+
+	/**
+	 * Binary columns are not emitted.
+	 */
+	SKIP {
+		@Override
+		String encode(final byte[] bytes) {
+			return null;
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Returns the encoded bytes or null if the value should not be emitted.
+	 */
+	abstract String encode(byte[] bytes);
+
+}
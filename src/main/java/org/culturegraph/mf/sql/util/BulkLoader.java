@@ -0,0 +1,427 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.sql.util.JdbcUtil.Dialect;
+
+/**
+ * Loads rows into a table using the bulk loading facility of the database.
+ * Rows are passed in chunks as arrays of column values.
+ * <p>
+ * {@link #forConnection(Connection, String, String[], boolean)} selects the
+ * loader for the database dialect:
+ * <ul>
+ *   <li>PostgreSQL: {@code COPY ... FROM STDIN} through the
+ *   {@code CopyManager} of the driver,
+ *   <li>MySQL: {@code LOAD DATA LOCAL INFILE} with the rows passed as input
+ *   stream. The connection must allow local infiles
+ *   ({@code allowLoadLocalInfile=true}),
+ *   <li>H2: {@code INSERT ... SELECT * FROM CSVREAD(...)} from a temporary
+ *   file,
+ *   <li>other databases: batched {@code INSERT} statements.
+ * </ul>
+ * The vendor-specific APIs are accessed via reflection so that the drivers are
+ * not needed at compile time. If they are not available, batched inserts are
+ * used.
+ *
+ * @author Christoph Böhme
+ */
+public abstract class BulkLoader {
+
+	final Connection connection;
+	final String table;
+	final String[] columns;
+
+	BulkLoader(final Connection connection, final String table,
+			final String[] columns) {
+		this.connection = connection;
+		this.table = table;
+		this.columns = columns;
+	}
+
+	/**
+	 * Creates a loader for the dialect of {@code connection}.
+	 *
+	 * @param connection connection to the database
+	 * @param table name of the table to load
+	 * @param columns names of the columns in the order of the row values
+	 * @param useNativeLoader false to always use batched inserts
+	 * @return a bulk loader
+	 */
+	public static BulkLoader forConnection(final Connection connection,
+			final String table, final String[] columns,
+			final boolean useNativeLoader) {
+		if (useNativeLoader) {
+			try {
+				switch (JdbcUtil.getDialect(connection)) {
+				case POSTGRESQL:
+					return new CopyLoader(connection, table, columns);
+				case MYSQL:
+					return new LocalInfileLoader(connection, table, columns);
+				case H2:
+					return new CsvReadLoader(connection, table, columns);
+				default:
+					break;
+				}
+			} catch (final ReflectiveOperationException | SQLException e) {
+				// Driver API is not available. Fall back to inserts.
+			}
+		}
+		return new InsertLoader(connection, table, columns);
+	}
+
+	/**
+	 * Returns the dialect whose bulk loading facility is used or
+	 * {@link Dialect#GENERIC} if rows are inserted with batched statements.
+	 */
+	public abstract Dialect getDialect();
+
+	/**
+	 * Loads {@code rows} into the table. Null values are loaded as SQL NULL.
+	 *
+	 * @param rows the rows to load. Each row contains one value per column.
+	 */
+	public abstract void load(List<String[]> rows);
+
+	public void close() {
+		// Nothing to do by default
+	}
+
+	String getColumnList() {
+		return String.join(", ", columns);
+	}
+
+	/**
+	 * Base class for loaders which pass the rows as CSV text to the database.
+	 * Values are always quoted. Null values are written as
+	 * {@link #getNullToken()}.
+	 */
+	private abstract static class CsvLoader extends BulkLoader {
+
+		CsvLoader(final Connection connection, final String table,
+				final String[] columns) {
+			super(connection, table, columns);
+		}
+
+		@Override
+		public void load(final List<String[]> rows) {
+			if (rows.isEmpty()) {
+				return;
+			}
+			try {
+				loadCsv(toCsv(rows));
+			} catch (final SQLException | IOException e) {
+				throw new MetafactureException(e);
+			}
+		}
+
+		abstract String getNullToken();
+
+		abstract void loadCsv(String csv) throws SQLException,
+				IOException;
+
+		private String toCsv(final List<String[]> rows) {
+			final StringBuilder csv = new StringBuilder(rows.size() *
+					columns.length * 16);
+			for (final String[] row : rows) {
+				for (int i = 0; i < row.length; ++i) {
+					if (i > 0) {
+						csv.append(',');
+					}
+					final String value = row[i];
+					if (value == null) {
+						csv.append(getNullToken());
+					} else {
+						csv.append('"');
+						appendEscaped(csv, value);
+						csv.append('"');
+					}
+				}
+				csv.append('\n');
+			}
+			return csv.toString();
+		}
+
+		private static void appendEscaped(final StringBuilder csv,
+				final String value) {
+			for (int i = 0; i < value.length(); ++i) {
+				final char c = value.charAt(i);
+				if (c == '"') {
+					csv.append('"');
+				}
+				csv.append(c);
+			}
+		}
+
+	}
+
+	/**
+	 * Uses {@code COPY FROM STDIN} of PostgreSQL.
+	 */
+	private static final class CopyLoader extends CsvLoader {
+
+		private final Object copyManager;
+		private final Method copyIn;
+
+		CopyLoader(final Connection connection, final String table,
+				final String[] columns) throws ReflectiveOperationException,
+				SQLException {
+			super(connection, table, columns);
+			final Class<?> pgConnection = Class.forName(
+					"org.postgresql.PGConnection");
+			copyManager = pgConnection.getMethod("getCopyAPI").invoke(
+					connection.unwrap(pgConnection));
+			copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod(
+					"copyIn", String.class, Reader.class);
+		}
+
+		@Override
+		public Dialect getDialect() {
+			return Dialect.POSTGRESQL;
+		}
+
+		@Override
+		String getNullToken() {
+			return "";
+		}
+
+		@Override
+		void loadCsv(final String csv) throws SQLException {
+			final String sql = "COPY " + table + " (" + getColumnList() +
+					") FROM STDIN WITH (FORMAT csv)";
+			invoke(copyIn, copyManager, sql, new StringReader(csv));
+		}
+
+	}
+
+	/**
+	 * Uses {@code LOAD DATA LOCAL INFILE} of MySQL with an input stream set
+	 * on the statement.
+	 */
+	private static final class LocalInfileLoader extends CsvLoader {
+
+		private static final String[] STATEMENT_CLASSES = {
+				"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement" };
+
+		private final Class<?> statementClass;
+		private final Method setInputStream;
+
+		LocalInfileLoader(final Connection connection, final String table,
+				final String[] columns) throws ReflectiveOperationException {
+			super(connection, table, columns);
+			statementClass = findStatementClass();
+			setInputStream = statementClass.getMethod("setLocalInfileInputStream",
+					InputStream.class);
+		}
+
+		private static Class<?> findStatementClass()
+				throws ClassNotFoundException {
+			for (final String name : STATEMENT_CLASSES) {
+				try {
+					return Class.forName(name);
+				} catch (final ClassNotFoundException e) {
+					// Try next driver version
+				}
+			}
+			throw new ClassNotFoundException("MySQL statement class not found");
+		}
+
+		@Override
+		public Dialect getDialect() {
+			return Dialect.MYSQL;
+		}
+
+		@Override
+		String getNullToken() {
+			return "NULL";
+		}
+
+		@Override
+		void loadCsv(final String csv) throws SQLException {
+			final String sql = "LOAD DATA LOCAL INFILE 'metafacture.csv' " +
+					"INTO TABLE " + table + " CHARACTER SET utf8mb4 " +
+					"FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' " +
+					"ESCAPED BY '' LINES TERMINATED BY '\\n' (" + getColumnList() + ")";
+			try (Statement statement = connection.createStatement()) {
+				invoke(setInputStream, statement.unwrap(statementClass),
+						new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+				statement.execute(sql);
+			}
+		}
+
+	}
+
+	/**
+	 * Uses the {@code CSVREAD} function of H2 on a temporary file.
+	 */
+	private static final class CsvReadLoader extends CsvLoader {
+
+		CsvReadLoader(final Connection connection, final String table,
+				final String[] columns) {
+			super(connection, table, columns);
+		}
+
+		@Override
+		public Dialect getDialect() {
+			return Dialect.H2;
+		}
+
+		@Override
+		String getNullToken() {
+			return "";
+		}
+
+		@Override
+		void loadCsv(final String csv) throws SQLException,
+				IOException {
+			final File file = File.createTempFile("metafacture-bulk", ".csv");
+			try {
+				try (Writer writer = new OutputStreamWriter(
+						Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+					writer.write(csv);
+				}
+				// H2 evaluates the arguments of CSVREAD when the statement is
+				// prepared. Hence, they cannot be passed as parameters:
+				final String sql = "INSERT INTO " + table + " (" + getColumnList() +
+						") SELECT * FROM CSVREAD(" + quote(file.getAbsolutePath()) +
+						", '" + csvColumnNames() + "', 'charset=UTF-8')";
+				try (Statement statement = connection.createStatement()) {
+					statement.execute(sql);
+				}
+			} finally {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+
+		private static String quote(final String value) {
+			return "'" + value.replace("'", "''") + "'";
+		}
+
+		/**
+		 * CSVREAD needs column names for files without a header row. The names
+		 * are only used within the SELECT statement.
+		 */
+		private String csvColumnNames() {
+			final StringBuilder names = new StringBuilder();
+			for (int i = 0; i < columns.length; ++i) {
+				if (i > 0) {
+					names.append(',');
+				}
+				names.append('C').append(i);
+			}
+			return names.toString();
+		}
+
+	}
+
+	/**
+	 * Fallback which inserts the rows with a batched prepared statement.
+	 */
+	private static final class InsertLoader extends BulkLoader {
+
+		private PreparedStatement statement;
+
+		InsertLoader(final Connection connection, final String table,
+				final String[] columns) {
+			super(connection, table, columns);
+		}
+
+		@Override
+		public Dialect getDialect() {
+			return Dialect.GENERIC;
+		}
+
+		@Override
+		public void load(final List<String[]> rows) {
+			if (rows.isEmpty()) {
+				return;
+			}
+			try {
+				if (statement == null) {
+					statement = connection.prepareStatement(createInsert());
+				}
+				for (final String[] row : rows) {
+					for (int i = 0; i < row.length; ++i) {
+						statement.setString(i + 1, row[i]);
+					}
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			} catch (final SQLException e) {
+				throw new MetafactureException(e);
+			}
+		}
+
+		private String createInsert() {
+			final StringBuilder sql = new StringBuilder("INSERT INTO ")
+					.append(table).append(" (").append(getColumnList())
+					.append(") VALUES (");
+			for (int i = 0; i < columns.length; ++i) {
+				if (i > 0) {
+					sql.append(", ");
+				}
+				sql.append('?');
+			}
+			return sql.append(')').toString();
+		}
+
+		@Override
+		public void close() {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (final SQLException e) {
+					throw new MetafactureException(e);
+				}
+			}
+		}
+
+	}
+
+	private static void invoke(final Method method, final Object target,
+			final Object... args) throws SQLException {
+		try {
+			method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new MetafactureException(e.getCause());
+		} catch (final IllegalAccessException e) {
+			throw new MetafactureException(e);
+		}
+	}
+
+}
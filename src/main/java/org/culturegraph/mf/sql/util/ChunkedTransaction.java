@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Groups the operations performed on a connection into transactions of a
+ * limited size. A transaction is committed once it contains a configured
+ * number of operations or once it has been open for a configured time.
+ * <p>
+ * If neither a commit interval nor a time limit is set, the connection is
+ * left in the auto-commit mode it came with and all methods of this class do
+ * nothing.
+ *
+ * @author Christoph Böhme
+ */
+public final class ChunkedTransaction {
+
+	private final Connection connection;
+
+	private int commitInterval;
+	private int commitTimeLimit;
+
+	private boolean begun;
+	private boolean initialAutoCommit;
+	private int pendingOperations;
+	private long chunkStartTime;
+
+	public ChunkedTransaction(final Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets the number of operations after which the transaction is committed.
+	 * A value of zero (the default) disables the limit.
+	 *
+	 * @param commitInterval number of operations per transaction
+	 */
+	public void setCommitInterval(final int commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which an open transaction is
+	 * committed. The time limit is only checked when an operation completes.
+	 * A value of zero (the default) disables the limit.
+	 *
+	 * @param commitTimeLimit maximum time a transaction is kept open
+	 */
+	public void setCommitTimeLimit(final int commitTimeLimit) {
+		this.commitTimeLimit = commitTimeLimit;
+	}
+
+	public boolean isEnabled() {
+		return commitInterval > 0 || commitTimeLimit > 0;
+	}
+
+	/**
+	 * Switches off auto-commit on the connection. Calling this method more than
+	 * once has no effect.
+	 */
+	public void begin() {
+		if (begun || !isEnabled()) {
+			return;
+		}
+		try {
+			initialAutoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+		begun = true;
+	}
+
+	public void operationCompleted() {
+		if (!begun) {
+			return;
+		}
+		if (pendingOperations == 0 && commitTimeLimit > 0) {
+			chunkStartTime = System.currentTimeMillis();
+		}
+		pendingOperations += 1;
+	}
+
+	public boolean isCommitDue() {
+		if (pendingOperations == 0) {
+			return false;
+		}
+		if (commitInterval > 0 && pendingOperations >= commitInterval) {
+			return true;
+		}
+		return commitTimeLimit > 0 &&
+				System.currentTimeMillis() - chunkStartTime >= commitTimeLimit;
+	}
+
+	public void commit() {
+		if (!begun) {
+			return;
+		}
+		try {
+			connection.commit();
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+		pendingOperations = 0;
+	}
+
+	/**
+	 * Rolls back the open transaction and restores the auto-commit mode of the
+	 * connection. The next call of {@link #begin()} starts a new transaction.
+	 * Exceptions raised while rolling back are ignored as this method is meant
+	 * to be called while handling another exception.
+	 */
+	public void rollback() {
+		if (!begun) {
+			return;
+		}
+		try {
+			connection.rollback();
+		} catch (final SQLException e) {
+			/* Ignore exception */
+		}
+		try {
+			connection.setAutoCommit(initialAutoCommit);
+		} catch (final SQLException e) {
+			/* Ignore exception */
+		}
+		pendingOperations = 0;
+		begun = false;
+	}
+
+	/**
+	 * Commits the open transaction and restores the auto-commit mode of the
+	 * connection.
+	 */
+	public void finish() {
+		if (!begun) {
+			return;
+		}
+		commit();
+		try {
+			connection.setAutoCommit(initialAutoCommit);
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+		begun = false;
+	}
+
+}
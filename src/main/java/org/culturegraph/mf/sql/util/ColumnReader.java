@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Reads the value of a column as literal value. A reader is chosen once per
+ * column from its SQL type when a result set is opened:
+ * <ul>
+ *   <li>integer columns are read with {@link ResultSet#getLong(int)} so that
+ *   the driver does not need to format a string. Unsigned BIGINT columns are
+ *   read as strings because their values may exceed {@link Long#MAX_VALUE},
+ *   <li>binary columns are read as bytes and encoded with a
+ *   {@link BinaryEncoding} unless the encoding is
+ *   {@link BinaryEncoding#DRIVER},
+ *   <li>CLOB and long character columns are copied from their character
+ *   stream in chunks. The value is still emitted as a single string,
+ *   <li>all other columns are read with {@link ResultSet#getString(int)}. For
+ *   these types the text representation is defined by the driver.
+ * </ul>
+ *
+ * @author Christoph Böhme
+ */
+abstract class ColumnReader {
+
+	private static final ColumnReader STRING = new ColumnReader() {
+		@Override
+		String read(final ResultSet resultSet, final int column)
+				throws SQLException {
+			return resultSet.getString(column);
+		}
+	};
+
+	private static final ColumnReader INTEGER = new ColumnReader() {
+		@Override
+		String read(final ResultSet resultSet, final int column)
+				throws SQLException {
+			final long value = resultSet.getLong(column);
+			if (value == 0 && resultSet.wasNull()) {
+				return null;
+			}
+			return Long.toString(value);
+		}
+	};
+
+	/**
+	 * Returns the value of {@code column} in the current row of
+	 * {@code resultSet} or null if no literal should be emitted.
+	 */
+	abstract String read(ResultSet resultSet, int column) throws SQLException;
+
+	static ColumnReader forType(final int sqlType, final boolean signed,
+			final BinaryEncoding binaryEncoding) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return INTEGER;
+		case Types.BIGINT:
+			return signed ? INTEGER : STRING;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			if (binaryEncoding == BinaryEncoding.DRIVER) {
+				return STRING;
+			}
+			return new BinaryReader(binaryEncoding);
+		case Types.CLOB:
+		case Types.NCLOB:
+		case Types.LONGVARCHAR:
+		case Types.LONGNVARCHAR:
+			return new CharacterStreamReader();
+		default:
+			return STRING;
+		}
+	}
+
+	private static final class BinaryReader extends ColumnReader {
+
+		private final BinaryEncoding encoding;
+
+		BinaryReader(final BinaryEncoding encoding) {
+			this.encoding = encoding;
+		}
+
+		@Override
+		String read(final ResultSet resultSet, final int column)
+				throws SQLException {
+			if (encoding == BinaryEncoding.SKIP) {
+				return null;
+			}
+			final byte[] bytes = resultSet.getBytes(column);
+			return bytes == null ? null : encoding.encode(bytes);
+		}
+
+	}
+
+	/**
+	 * Reads character streams into a buffer which is reused for all rows of
+	 * the result set. The buffer is released after values larger than
+	 * {@link #MAX_RETAINED_CAPACITY} characters.
+	 */
+	private static final class CharacterStreamReader extends ColumnReader {
+
+		private static final int CHUNK_SIZE = 8192;
+		private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+		private final char[] chunk = new char[CHUNK_SIZE];
+		private StringBuilder buffer = new StringBuilder();
+
+		@Override
+		String read(final ResultSet resultSet, final int column)
+				throws SQLException {
+			try (Reader reader = resultSet.getCharacterStream(column)) {
+				if (reader == null) {
+					return null;
+				}
+				buffer.setLength(0);
+				int read = reader.read(chunk);
+				while (read >= 0) {
+					buffer.append(chunk, 0, read);
+					read = reader.read(chunk);
+				}
+				final String value = buffer.toString();
+				if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+					buffer = new StringBuilder();
+				}
+				return value;
+			} catch (final IOException e) {
+				throw new SQLException(e);
+			}
+		}
+
+	}
+
+}
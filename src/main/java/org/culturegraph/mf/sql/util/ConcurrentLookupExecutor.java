@@ -0,0 +1,381 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+
+/**
+ * Executes lookup queries concurrently and emits their results in the order
+ * in which the lookups were submitted. Each running lookup uses its own
+ * connection from the data source and its own prepared statement. Connections
+ * and statements are kept for later lookups, so at most
+ * {@code maxInFlight} connections are opened.
+ * <p>
+ * On Java 21 and later the lookups run on virtual threads. On older Java
+ * versions a fixed pool of {@code maxInFlight} daemon threads is used. The
+ * virtual thread executor is looked up reflectively so that the module still
+ * runs on Java 8.
+ * <p>
+ * Submitted lookups wait in a reorder buffer until all lookups submitted
+ * before them have been emitted. If the buffer is full, {@link #submit}
+ * blocks until the oldest lookup is complete. The executor is not
+ * thread-safe; all methods must be called from the same thread.
+ *
+ * @author Christoph Böhme
+ */
+public final class ConcurrentLookupExecutor implements AutoCloseable {
+
+	private static final String VIRTUAL_THREAD_FACTORY =
+			"newVirtualThreadPerTaskExecutor";
+	private static final long CLOSE_TIMEOUT = 10;
+
+	private final DataSource dataSource;
+	private final Function<Connection, PreparedQuery> queryFactory;
+	private final int maxInFlight;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+
+	private final Deque<PendingLookup> reorderBuffer = new ArrayDeque<>();
+	private final Queue<Lookup> idleLookups = new ConcurrentLinkedQueue<>();
+	private final List<Lookup> lookups = new ArrayList<>();
+	private final PreparedQuery template;
+
+	/**
+	 * Creates an executor and opens the first connection. The statements for
+	 * the lookups are created by {@code queryFactory}; it is called once for
+	 * each connection.
+	 *
+	 * @param dataSource data source providing the connections
+	 * @param queryFactory creates the lookup query for a connection
+	 * @param maxInFlight maximum number of lookups running or waiting to be
+	 *                    emitted
+	 */
+	public ConcurrentLookupExecutor(final DataSource dataSource,
+			final Function<Connection, PreparedQuery> queryFactory,
+			final int maxInFlight) {
+		this.dataSource = dataSource;
+		this.queryFactory = queryFactory;
+		this.maxInFlight = maxInFlight;
+		final ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+		if (virtualThreadExecutor != null) {
+			executor = virtualThreadExecutor;
+			virtualThreads = true;
+		} else {
+			executor = Executors.newFixedThreadPool(maxInFlight,
+					new LookupThreadFactory());
+			virtualThreads = false;
+		}
+		final Lookup first = openLookup();
+		template = first.query;
+		idleLookups.add(first);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			final Method factory = Executors.class.getMethod(VIRTUAL_THREAD_FACTORY);
+			return (ExecutorService) factory.invoke(null);
+		} catch (final NoSuchMethodException | IllegalAccessException |
+				InvocationTargetException e) {
+			// Virtual threads are not available before Java 21
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the lookups run on virtual threads.
+	 */
+	public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Returns the slot of the parameter {@code name}. All lookup statements
+	 * are created from the same SQL, so slots are the same for all of them.
+	 */
+	public int getParameterSlot(final String name) {
+		return template.getParameterSlot(name);
+	}
+
+	public int getParameterSlotCount() {
+		return template.getParameterSlotCount();
+	}
+
+	/**
+	 * Returns the number of lookups which have been submitted but not yet
+	 * emitted.
+	 */
+	public int getPendingCount() {
+		return reorderBuffer.size();
+	}
+
+	/**
+	 * Starts a lookup with the given parameter values. Completed lookups at
+	 * the head of the reorder buffer are emitted to their receivers.
+	 *
+	 * @param values parameter values indexed by slot. Slots without a value
+	 *               are bound to null. The array must not be changed after it
+	 *               has been submitted
+	 * @param receiver receiver of the records found by the lookup
+	 * @throws MetafactureException if an earlier lookup failed
+	 */
+	public void submit(final String[] values, final StreamReceiver receiver) {
+		while (reorderBuffer.size() >= maxInFlight) {
+			emitHead();
+		}
+		final Lookup lookup = borrowLookup();
+		final Future<List<Record>> result;
+		try {
+			result = executor.submit(() -> lookup.execute(values));
+		} catch (final RuntimeException e) {
+			idleLookups.add(lookup);
+			throw e;
+		}
+		reorderBuffer.add(new PendingLookup(result, receiver));
+		while (!reorderBuffer.isEmpty() && reorderBuffer.peek().result.isDone()) {
+			emitHead();
+		}
+	}
+
+	/**
+	 * Waits for all submitted lookups and emits their results.
+	 *
+	 * @throws MetafactureException if a lookup failed
+	 */
+	public void flush() {
+		while (!reorderBuffer.isEmpty()) {
+			emitHead();
+		}
+	}
+
+	private void emitHead() {
+		final PendingLookup pending = reorderBuffer.remove();
+		final List<Record> records;
+		try {
+			records = pending.result.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof MetafactureException) {
+				throw (MetafactureException) e.getCause();
+			}
+			throw new MetafactureException("Lookup failed", e.getCause());
+		}
+		for (final Record record : records) {
+			record.replay(pending.receiver);
+		}
+	}
+
+	private Lookup borrowLookup() {
+		final Lookup lookup = idleLookups.poll();
+		if (lookup != null) {
+			return lookup;
+		}
+		// Lookups return their connection before their result is complete. So
+		// at most one connection per lookup in the reorder buffer is in use:
+		return openLookup();
+	}
+
+	private Lookup openLookup() {
+		final Connection connection = JdbcUtil.getConnection(dataSource);
+		final PreparedQuery query;
+		try {
+			query = queryFactory.apply(connection);
+		} catch (final RuntimeException e) {
+			JdbcUtil.closeConnection(connection);
+			throw e;
+		}
+		final Lookup lookup = new Lookup(connection, query);
+		lookups.add(lookup);
+		return lookup;
+	}
+
+	/**
+	 * Discards lookups which have not been emitted, cancels the statements of
+	 * running lookups and closes all connections. Connections of lookups
+	 * which are still running after a timeout are closed by the lookups when
+	 * they finish. Call {@link #flush()} first to emit the remaining results.
+	 */
+	@Override
+	public void close() {
+		for (final PendingLookup pending : reorderBuffer) {
+			pending.result.cancel(false);
+		}
+		reorderBuffer.clear();
+		executor.shutdown();
+		for (final Lookup lookup : lookups) {
+			lookup.cancel();
+		}
+		try {
+			executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (final Lookup lookup : lookups) {
+			lookup.closeWhenIdle();
+		}
+		lookups.clear();
+		idleLookups.clear();
+	}
+
+	/**
+	 * A connection with its prepared lookup statement.
+	 */
+	private final class Lookup {
+
+		final Connection connection;
+		final PreparedQuery query;
+
+		private boolean running;
+		private boolean closeRequested;
+
+		Lookup(final Connection connection, final PreparedQuery query) {
+			this.connection = connection;
+			this.query = query;
+		}
+
+		List<Record> execute(final String[] values) {
+			synchronized (this) {
+				running = true;
+			}
+			try {
+				query.clearParameters();
+				for (int slot = 0; slot < values.length; ++slot) {
+					query.setParameter(slot, values[slot]);
+				}
+				final RecordCollector collector = new RecordCollector();
+				query.execute(collector);
+				return collector.records;
+			} finally {
+				finish();
+			}
+		}
+
+		private synchronized void finish() {
+			running = false;
+			if (closeRequested) {
+				close();
+			} else {
+				idleLookups.add(this);
+			}
+		}
+
+		synchronized void cancel() {
+			if (running) {
+				query.cancel();
+			}
+		}
+
+		/**
+		 * Closes the lookup now or, if it is running, when it finishes.
+		 */
+		synchronized void closeWhenIdle() {
+			if (running) {
+				closeRequested = true;
+			} else {
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				query.close();
+			} finally {
+				JdbcUtil.closeConnection(connection);
+			}
+		}
+
+	}
+
+	/**
+	 * A submitted lookup in the reorder buffer.
+	 */
+	private static final class PendingLookup {
+
+		final Future<List<Record>> result;
+		final StreamReceiver receiver;
+
+		PendingLookup(final Future<List<Record>> result,
+				final StreamReceiver receiver) {
+			this.result = result;
+			this.receiver = receiver;
+		}
+
+	}
+
+	/**
+	 * Keeps the records emitted by a lookup until they can be replayed in
+	 * order.
+	 */
+	private static final class RecordCollector extends DefaultStreamReceiver {
+
+		final List<Record> records = new ArrayList<>();
+
+		private Record currentRecord;
+
+		@Override
+		public void startRecord(final String id) {
+			currentRecord = new Record(id);
+			records.add(currentRecord);
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			currentRecord.addLiteral(name, value);
+		}
+
+	}
+
+	/**
+	 * Creates daemon threads for lookups if virtual threads are not available.
+	 */
+	private static final class LookupThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "sql-lookup-" +
+					threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
@@ -20,27 +20,76 @@ public DirectQuery(final Connection connection, final String idColumnLabel,
 			final boolean emitGeneratedKeys) {
 		super(connection, idColumnLabel, emitGeneratedKeys);
 		try {
-			statement = connection.createStatement();
+			statement = createStatement();
 		} catch (final SQLException e) {
 			throw new MetafactureException(e);
 		}
+		configureWorkaroundsOn(statement);
+	}
+
+	/**
+	 * Sets the number of rows which are fetched from the database at once when
+	 * reading result sets. See {@link java.sql.Statement#setFetchSize(int)}.
+	 *
+	 * @param fetchSize number of rows to fetch. Zero lets the driver decide.
+	 */
+	public void setFetchSize(final int fetchSize) {
+		configureFetchSizeOn(statement, fetchSize);
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns in emitted records.
+	 * The default is {@link BinaryEncoding#DRIVER}.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		configureBinaryEncoding(binaryEncoding);
+	}
+
+	/**
+	 * Sets the metrics which receive the execution times and result set
+	 * statistics of this query. The default is {@link QueryMetrics#NONE}.
+	 *
+	 * @param metrics metrics of the module using the query
+	 */
+	public void setMetrics(final QueryMetrics metrics) {
+		configureMetrics(metrics);
+	}
+
+	/**
+	 * Sets the log for slow statements. The default log is configured by
+	 * system properties (see {@link SlowQueryLog}).
+	 *
+	 * @param slowQueryLog log for slow statements
+	 */
+	public void setSlowQueryLog(final SlowQueryLog slowQueryLog) {
+		configureSlowQueryLog(slowQueryLog);
 	}
 
 	public void execute(final String sql) {
+		final long start = startMeasurement();
 		try {
 			statement.execute(sql, Statement.NO_GENERATED_KEYS);
 		} catch (final SQLException e) {
+			endReadTransaction(false);
 			throw new MetafactureException(e);
 		}
+		recordExecution(start);
+		completeStatement(sql, null);
 	}
 
 	public void execute(final String sql, final StreamReceiver receiver) {
+		final long start = startMeasurement();
 		try {
 			statement.execute(sql, getAutoGeneratedKeysSetting());
 		} catch (final SQLException e) {
+			endReadTransaction(false);
 			throw new MetafactureException(e);
 		}
+		recordExecution(start);
 		processResults(statement, receiver);
+		completeStatement(sql, null);
 	}
 
 	public void close() {
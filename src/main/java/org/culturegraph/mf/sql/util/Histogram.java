@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values. Values are counted in buckets
+ * whose bounds are powers of two, so percentiles are accurate within a factor
+ * of two.
+ *
+ * @author Christoph Böhme
+ */
+final class Histogram {
+
+	private static final int BUCKET_COUNT = Long.SIZE;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	void record(final long value) {
+		final int bucket = value <= 0 ? 0 : BUCKET_COUNT -
+				Long.numberOfLeadingZeros(value);
+		buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket which contains the given
+	 * percentile. Returns zero if no values were recorded.
+	 *
+	 * @param percentile percentile between 0 and 100
+	 */
+	long getPercentile(final double percentile) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			buckets.set(i, 0);
+		}
+	}
+
+}
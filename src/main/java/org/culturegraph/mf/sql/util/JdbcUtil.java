@@ -17,8 +17,13 @@
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -65,53 +70,261 @@ public enum Bug {
 		 * for details. Since this fetch size setting does not seem to be specified
 		 * JDBC behaviour, we handle it as a special case.
 		 */
-		RESULT_SET_STREAMING_ONLY_IF_FETCH_SIZE_IS_MIN_VALUE
+		RESULT_SET_STREAMING_ONLY_IF_FETCH_SIZE_IS_MIN_VALUE,
+
+		/**
+		 * The Postgresql JDBC driver ignores the fetch size and reads the complete
+		 * result set into memory if the connection is in auto-commit mode.
+		 * Server-side cursors are only used within explicit transactions.
+		 */
+		RESULT_SET_STREAMING_ONLY_WITHOUT_AUTO_COMMIT
+	}
+
+	/**
+	 * Database products for which the modules use vendor-specific features.
+	 */
+	public enum Dialect {
+		POSTGRESQL(32767),
+		MYSQL(65535),
+		H2(Integer.MAX_VALUE),
+		SQLITE(999),
+		/**
+		 * Any other database. Only standard JDBC features are used.
+		 */
+		GENERIC(2000);
+
+		private final int maximumParameterCount;
+
+		Dialect(final int maximumParameterCount) {
+			this.maximumParameterCount = maximumParameterCount;
+		}
+
+		/**
+		 * Returns the maximum number of parameters in a prepared statement. For
+		 * {@link #GENERIC} a conservative limit is returned.
+		 */
+		public int getMaximumParameterCount() {
+			return maximumParameterCount;
+		}
+
 	}
 
+	private static final String JDBC_URL_PREFIX = "jdbc:";
+
+	private static final ConcurrentMap<String, DataSource> REGISTERED_DATA_SOURCES =
+			new ConcurrentHashMap<>();
+
+	private static final ConcurrentMap<String, DataSource> JNDI_DATA_SOURCES =
+			new ConcurrentHashMap<>();
+
+	private static final Map<Connection, DriverInfo> DRIVER_INFOS =
+			Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static final ConcurrentMap<String, DriverInfo> DRIVER_INFOS_BY_NAME =
+			new ConcurrentHashMap<>();
+
 	private JdbcUtil() {
 		throw new AssertionError("No instances allowed");
 	}
 
 	/**
 	 * Returns the bugs exhibited by the driver used by {@code connection}.
+	 * Connections are unwrapped to the connection of the driver (see
+	 * {@link #getDriverInfo(Connection)}). If this succeeds, the bugs are
+	 * detected once per driver connection class. Otherwise they are looked up
+	 * by the driver name reported by the connection metadata, because
+	 * connection pools use the same wrapper class for all drivers.
 	 *
 	 * @param connection JDBC connection for which to return a list of bugs
-	 * @return a list of bugs in the driver
+	 * @return an unmodifiable set of bugs in the driver
 	 */
 	public static Set<Bug> getDriverBugs(final Connection connection) {
-		final EnumSet<Bug> driverBugs = EnumSet.noneOf(Bug.class);
+		return getDriverInfo(connection).bugs;
+	}
+
+	/**
+	 * Returns the database dialect of {@code connection}. The dialect is
+	 * detected from the driver name in the same way as the driver bugs.
+	 *
+	 * @param connection JDBC connection
+	 * @return the dialect of the database
+	 */
+	public static Dialect getDialect(final Connection connection) {
+		return getDriverInfo(connection).dialect;
+	}
+
+	/**
+	 * Connections from a {@link PooledDataSource} are unwrapped to the pooled
+	 * connection. Wrappers of other pools are unwrapped with
+	 * {@link Connection#unwrap(Class)}. The driver is detected once for each
+	 * unwrapped connection and remembered until the connection is garbage
+	 * collected. Wrapper classes may be shared by several drivers, so the
+	 * class of a connection is not used to identify the driver.
+	 */
+	private static DriverInfo getDriverInfo(final Connection connection) {
+		final Connection driverConnection =
+				unwrap(PooledDataSource.unwrapPhysical(connection));
+		DriverInfo driverInfo = DRIVER_INFOS.get(driverConnection);
+		if (driverInfo == null) {
+			driverInfo = DRIVER_INFOS_BY_NAME.computeIfAbsent(
+					getDriverName(connection), JdbcUtil::detectDriver);
+			DRIVER_INFOS.put(driverConnection, driverInfo);
+		}
+		return driverInfo;
+	}
 
-		final String driverName;
+	private static String getDriverName(final Connection connection) {
 		try {
-			driverName = connection.getMetaData().getDriverName();
+			final String driverName = connection.getMetaData().getDriverName();
+			return driverName == null ? "" : driverName;
 		}
 		catch (final SQLException e) {
 			throw new MetafactureException(e);
 		}
+	}
+
+	private static Connection unwrap(final Connection connection) {
+		try {
+			if (connection.isWrapperFor(Connection.class)) {
+				final Connection unwrapped = connection.unwrap(Connection.class);
+				if (unwrapped != null) {
+					return unwrapped;
+				}
+			}
+		} catch (final SQLException e) {
+			// Driver does not support unwrapping
+		}
+		return connection;
+	}
+
+	private static DriverInfo detectDriver(final String driverName) {
+		final EnumSet<Bug> driverBugs = EnumSet.noneOf(Bug.class);
+		final Dialect dialect;
 
-		if ("PostgreSQL Native Driver".equals(driverName)) {
+		if ("PostgreSQL Native Driver".equals(driverName)
+				|| "PostgreSQL JDBC Driver".equals(driverName)) {
 			driverBugs.add(Bug.RETURN_GENERATED_KEYS_PRODUCES_INVALID_SQL);
+			driverBugs.add(Bug.RESULT_SET_STREAMING_ONLY_WITHOUT_AUTO_COMMIT);
+			dialect = Dialect.POSTGRESQL;
 		} else if ("SQLiteJDBC".equals(driverName)) {
 			driverBugs.add(Bug.GET_RESULT_SET_THROWS_ILLEGAL_EXCEPTION);
 			driverBugs.add(Bug.GET_UPDATE_COUNT_THROWS_ILLEGAL_EXCEPTION);
+			dialect = Dialect.SQLITE;
 		} else if ("MySQL-AB JDBC Driver".equals(driverName)
-				|| "MySQL Connector Java".equals(driverName)) {
+				|| "MySQL Connector Java".equals(driverName)
+				|| "MySQL Connector/J".equals(driverName)) {
 			driverBugs.add(Bug.RESULT_SET_STREAMING_ONLY_IF_FETCH_SIZE_IS_MIN_VALUE);
+			dialect = Dialect.MYSQL;
+		} else if ("H2 JDBC Driver".equals(driverName)) {
+			dialect = Dialect.H2;
+		} else {
+			dialect = Dialect.GENERIC;
 		}
 
-		return driverBugs;
+		return new DriverInfo(Collections.unmodifiableSet(driverBugs), dialect);
 	}
 
 	public static Connection getConnection(final String dataSourceName) {
+		return getConnection(getDataSource(dataSourceName));
+	}
+
+	public static Connection getConnection(final DataSource dataSource) {
+		try {
+			return dataSource.getConnection();
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+	}
+
+	/**
+	 * Creates the pool for a JDBC URL. Modules keep their connection until
+	 * the stream is closed, so the pool must not limit the number of
+	 * connections. Otherwise flows with many modules would wait for
+	 * connections which are never returned.
+	 */
+	private static PooledDataSource createImplicitPool(final String url) {
+		final PooledDataSource pool = new PooledDataSource(url);
+		pool.setMaximumPoolSize(PooledDataSource.UNLIMITED_POOL_SIZE);
+		return pool;
+	}
+
+	/**
+	 * Returns the data source with the given name. Names are resolved in this
+	 * order:
+	 * <ol>
+	 *   <li>data sources registered with
+	 *   {@link #registerDataSource(String, DataSource)},
+	 *   <li>JDBC URLs (names starting with {@code jdbc:}) for which a
+	 *   {@link PooledDataSource} without a limit on the number of connections
+	 *   is created. All modules using the same URL share this pool. The pool
+	 *   stays open until the URL is passed to
+	 *   {@link #unregisterDataSource(String)},
+	 *   <li>JNDI names. Data sources found via JNDI are remembered so that
+	 *   each name is looked up only once.
+	 * </ol>
+	 *
+	 * @param dataSourceName name of the data source
+	 * @return the data source
+	 */
+	public static DataSource getDataSource(final String dataSourceName) {
+		final DataSource registered = REGISTERED_DATA_SOURCES.get(dataSourceName);
+		if (registered != null) {
+			return registered;
+		}
+		if (dataSourceName.startsWith(JDBC_URL_PREFIX)) {
+			return REGISTERED_DATA_SOURCES.computeIfAbsent(dataSourceName,
+					JdbcUtil::createImplicitPool);
+		}
+		DataSource dataSource = JNDI_DATA_SOURCES.get(dataSourceName);
+		if (dataSource == null) {
+			dataSource = lookupDataSource(dataSourceName);
+			JNDI_DATA_SOURCES.putIfAbsent(dataSourceName, dataSource);
+		}
+		return dataSource;
+	}
+
+	/**
+	 * Registers a data source under {@code name} so that modules can refer to
+	 * it by name. This allows to use a configured {@link PooledDataSource} in
+	 * flux scripts.
+	 *
+	 * @param name name under which the data source is registered
+	 * @param dataSource the data source
+	 */
+	public static void registerDataSource(final String name,
+			final DataSource dataSource) {
+		REGISTERED_DATA_SOURCES.put(name, dataSource);
+	}
+
+	/**
+	 * Removes a data source registered under {@code name} and forgets the
+	 * result of a JNDI lookup for the name. Pooled data sources are closed.
+	 *
+	 * @param name name of the data source
+	 */
+	public static void unregisterDataSource(final String name) {
+		JNDI_DATA_SOURCES.remove(name);
+		final DataSource dataSource = REGISTERED_DATA_SOURCES.remove(name);
+		if (dataSource instanceof PooledDataSource) {
+			((PooledDataSource) dataSource).close();
+		}
+	}
+
+	private static DataSource lookupDataSource(final String dataSourceName) {
 		try {
 			final InitialContext ctx = new InitialContext();
-			final DataSource datasource = (DataSource) ctx.lookup(dataSourceName);
-			return datasource.getConnection();
-		} catch (final NamingException | SQLException ne) {
+			return (DataSource) ctx.lookup(dataSourceName);
+		} catch (final NamingException ne) {
 			throw new MetafactureException(ne);
 		}
 	}
 
+	/**
+	 * Closes the connection. Connections obtained from a
+	 * {@link PooledDataSource} are returned to the pool.
+	 *
+	 * @param connection the connection to close
+	 */
 	public static void closeConnection(final Connection connection) {
 		try {
 			connection.close();
@@ -121,4 +334,16 @@ public static void closeConnection(final Connection connection) {
 		}
 	}
 
+	private static final class DriverInfo {
+
+		final Set<Bug> bugs;
+		final Dialect dialect;
+
+		DriverInfo(final Set<Bug> bugs, final Dialect dialect) {
+			this.bugs = bugs;
+			this.dialect = dialect;
+		}
+
+	}
+
 }
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Registers the metrics of each module type as MBean on the platform MBean
+ * server. The MBeans are named
+ * {@code org.culturegraph.mf.sql:type=QueryMetrics,name=<module>}.
+ * <p>
+ * The provider is not registered as service. Enable it by setting the system
+ * property {@value Metrics#PROVIDER_PROPERTY} to the name of this class.
+ *
+ * @author Christoph Böhme
+ */
+public final class JmxMetricsProvider implements MetricsProvider {
+
+	public static final String DOMAIN = "org.culturegraph.mf.sql";
+
+	private final ConcurrentMap<String, JmxQueryMetrics> metrics =
+			new ConcurrentHashMap<>();
+
+	@Override
+	public QueryMetrics getQueryMetrics(final String name) {
+		return metrics.computeIfAbsent(name, JmxMetricsProvider::register);
+	}
+
+	private static JmxQueryMetrics register(final String name) {
+		final JmxQueryMetrics queryMetrics = new JmxQueryMetrics();
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName objectName = getObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(queryMetrics, objectName);
+		} catch (final JMException e) {
+			throw new MetafactureException("Cannot register metrics for " + name,
+					e);
+		}
+		return queryMetrics;
+	}
+
+	public static ObjectName getObjectName(final String name)
+			throws JMException {
+		return new ObjectName(DOMAIN + ":type=QueryMetrics,name=" +
+				ObjectName.quote(name));
+	}
+
+}
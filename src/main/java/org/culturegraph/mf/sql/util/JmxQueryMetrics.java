@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Query metrics which are kept in memory and exposed as MBean.
+ *
+ * @author Christoph Böhme
+ * @see JmxMetricsProvider
+ */
+public final class JmxQueryMetrics implements QueryMetrics,
+		JmxQueryMetricsMBean {
+
+	private final LongAdder statements = new LongAdder();
+	private final LongAdder executeNanos = new LongAdder();
+	private final Histogram executeLatency = new Histogram();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder batchedStatements = new LongAdder();
+	private final Histogram batchSizes = new Histogram();
+	private final Histogram batchLatency = new Histogram();
+	private final LongAdder valuesBound = new LongAdder();
+	private final LongAdder charactersBound = new LongAdder();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder fetchNanos = new LongAdder();
+	private final LongAdder emitNanos = new LongAdder();
+
+	@Override
+	public void statementExecuted(final long nanos) {
+		statements.increment();
+		executeNanos.add(nanos);
+		executeLatency.record(nanos);
+	}
+
+	@Override
+	public void batchExecuted(final int statementCount, final long nanos) {
+		batches.increment();
+		batchedStatements.add(statementCount);
+		batchSizes.record(statementCount);
+		batchLatency.record(nanos);
+		executeNanos.add(nanos);
+	}
+
+	@Override
+	public void parametersBound(final int valueCount,
+			final long characterCount) {
+		valuesBound.add(valueCount);
+		charactersBound.add(characterCount);
+	}
+
+	@Override
+	public void resultSetRead(final long rowCount, final long fetchTime,
+			final long emitTime) {
+		rows.add(rowCount);
+		fetchNanos.add(fetchTime);
+		emitNanos.add(emitTime);
+	}
+
+	@Override
+	public long getStatementsExecuted() {
+		return statements.sum();
+	}
+
+	@Override
+	public long getExecuteTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(executeNanos.sum());
+	}
+
+	@Override
+	public long getExecuteLatencyMedianMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(executeLatency.getPercentile(50));
+	}
+
+	@Override
+	public long getExecuteLatency99thPercentileMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(executeLatency.getPercentile(99));
+	}
+
+	@Override
+	public long getBatchesExecuted() {
+		return batches.sum();
+	}
+
+	@Override
+	public long getBatchedStatements() {
+		return batchedStatements.sum();
+	}
+
+	@Override
+	public long getBatchSizeMedian() {
+		return batchSizes.getPercentile(50);
+	}
+
+	@Override
+	public long getBatchLatency99thPercentileMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(batchLatency.getPercentile(99));
+	}
+
+	@Override
+	public long getValuesBound() {
+		return valuesBound.sum();
+	}
+
+	@Override
+	public long getCharactersBound() {
+		return charactersBound.sum();
+	}
+
+	@Override
+	public long getRowsEmitted() {
+		return rows.sum();
+	}
+
+	@Override
+	public long getFetchTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(fetchNanos.sum());
+	}
+
+	@Override
+	public long getEmitTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(emitNanos.sum());
+	}
+
+	@Override
+	public void reset() {
+		statements.reset();
+		executeNanos.reset();
+		executeLatency.reset();
+		batches.reset();
+		batchedStatements.reset();
+		batchSizes.reset();
+		batchLatency.reset();
+		valuesBound.reset();
+		charactersBound.reset();
+		rows.reset();
+		fetchNanos.reset();
+		emitNanos.reset();
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+/**
+ * Management interface of {@link JmxQueryMetrics}. Times are reported in
+ * milliseconds, latencies in microseconds.
+ *
+ * @author Christoph Böhme
+ */
+public interface JmxQueryMetricsMBean {
+
+	long getStatementsExecuted();
+
+	long getExecuteTimeMillis();
+
+	long getExecuteLatencyMedianMicros();
+
+	long getExecuteLatency99thPercentileMicros();
+
+	long getBatchesExecuted();
+
+	long getBatchedStatements();
+
+	long getBatchSizeMedian();
+
+	long getBatchLatency99thPercentileMicros();
+
+	long getValuesBound();
+
+	long getCharactersBound();
+
+	long getRowsEmitted();
+
+	long getFetchTimeMillis();
+
+	/**
+	 * Returns the time spent in the modules downstream of the query. If it
+	 * exceeds the execute and fetch times, the pipeline rather than the
+	 * database limits the throughput.
+	 */
+	long getEmitTimeMillis();
+
+	void reset();
+
+}
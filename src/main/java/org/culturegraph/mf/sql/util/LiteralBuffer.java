@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.Arrays;
+
+/**
+ * Collects the literal values of a record per parameter slot. A parameter may
+ * receive several values. The buffers are reused for all records so that
+ * collecting values does not allocate once the buffers have grown to the
+ * largest number of values per slot.
+ *
+ * @author Christoph Böhme
+ */
+public final class LiteralBuffer {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private final String[][] values;
+	private final int[] counts;
+	private final int[] usedSlots;
+	private int usedSlotCount;
+
+	/**
+	 * Creates a buffer for the slots from zero to {@code slotCount} minus one.
+	 *
+	 * @param slotCount number of parameter slots
+	 */
+	public LiteralBuffer(final int slotCount) {
+		values = new String[slotCount][INITIAL_CAPACITY];
+		counts = new int[slotCount];
+		usedSlots = new int[slotCount];
+	}
+
+	/**
+	 * Adds a value to a slot. Values for {@link PreparedQuery#NO_PARAMETER} are
+	 * ignored.
+	 */
+	public void add(final int slot, final String value) {
+		if (slot == PreparedQuery.NO_PARAMETER) {
+			return;
+		}
+		final int count = counts[slot];
+		if (count == 0) {
+			usedSlots[usedSlotCount] = slot;
+			usedSlotCount += 1;
+		} else if (count == values[slot].length) {
+			values[slot] = Arrays.copyOf(values[slot], count * 2);
+		}
+		values[slot][count] = value;
+		counts[slot] = count + 1;
+	}
+
+	/**
+	 * Removes all values. The buffers are kept for the next record.
+	 */
+	public void clear() {
+		for (int i = 0; i < usedSlotCount; ++i) {
+			final int slot = usedSlots[i];
+			Arrays.fill(values[slot], 0, counts[slot], null);
+			counts[slot] = 0;
+		}
+		usedSlotCount = 0;
+	}
+
+	/**
+	 * Returns the number of slots which received values. The slots are
+	 * returned by {@link #getUsedSlot(int)} in the order in which they
+	 * received their first value.
+	 */
+	public int getUsedSlotCount() {
+		return usedSlotCount;
+	}
+
+	public int getUsedSlot(final int index) {
+		return usedSlots[index];
+	}
+
+	public int getCount(final int slot) {
+		return counts[slot];
+	}
+
+	public String get(final int slot, final int index) {
+		return values[slot][index];
+	}
+
+	/**
+	 * Returns a copy of the values of {@code slot}.
+	 */
+	public String[] toArray(final int slot) {
+		return Arrays.copyOf(values[slot], counts[slot]);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size-bounded cache which evicts the least recently used entry. Entries
+ * can optionally expire after a fixed time. The cache counts hits, misses and
+ * evictions.
+ * <p>
+ * The cache is not thread-safe.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ *
+ * @author Christoph Böhme
+ */
+public final class LookupCache<K, V> {
+
+	private final Map<K, Entry<V>> entries;
+	private final int maximumSize;
+
+	private long timeToLive;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a cache for at most {@code maximumSize} entries.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public LookupCache(final int maximumSize) {
+		this.maximumSize = maximumSize;
+		entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<K, Entry<V>> eldest) {
+				if (size() > LookupCache.this.maximumSize) {
+					evictions += 1;
+					return true;
+				}
+				return false;
+			}
+
+		};
+	}
+
+	/**
+	 * Sets the time in milliseconds after which entries expire. A value of
+	 * zero (the default) keeps entries until they are evicted.
+	 *
+	 * @param timeToLive lifetime of entries in milliseconds
+	 */
+	public void setTimeToLive(final int timeToLive) {
+		this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+	}
+
+	/**
+	 * Returns the value cached for {@code key} or null if the cache does not
+	 * contain the key or the entry has expired.
+	 */
+	public V get(final K key) {
+		final Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			misses += 1;
+			return null;
+		}
+		if (timeToLive > 0 && System.nanoTime() - entry.created > timeToLive) {
+			entries.remove(key);
+			misses += 1;
+			return null;
+		}
+		hits += 1;
+		return entry.value;
+	}
+
+	public void put(final K key, final V value) {
+		final long created = timeToLive > 0 ? System.nanoTime() : 0;
+		entries.put(key, new Entry<>(value, created));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	private static final class Entry<V> {
+
+		final V value;
+		final long created;
+
+		Entry(final V value, final long created) {
+			this.value = value;
+			this.created = created;
+		}
+
+	}
+
+}
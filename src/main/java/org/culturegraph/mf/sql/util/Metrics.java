@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Looks up the {@link QueryMetrics} of modules. The metrics provider is
+ * chosen when metrics are requested for the first time:
+ * <ol>
+ *   <li>a provider set with {@link #setProvider(MetricsProvider)},
+ *   <li>the provider class named in the system property
+ *   {@value #PROVIDER_PROPERTY}, e.g. {@link JmxMetricsProvider},
+ *   <li>the first provider registered for {@link MetricsProvider} in
+ *   {@code META-INF/services}.
+ * </ol>
+ * If no provider is found, modules use {@link QueryMetrics#NONE} and do not
+ * take any measurements.
+ *
+ * @author Christoph Böhme
+ */
+public final class Metrics {
+
+	public static final String PROVIDER_PROPERTY =
+			"org.culturegraph.mf.sql.metrics";
+
+	private static final MetricsProvider NO_METRICS = name -> QueryMetrics.NONE;
+
+	private static volatile MetricsProvider provider;
+
+	private Metrics() {
+		// No instances allowed
+	}
+
+	/**
+	 * Sets the provider for metrics requested afterwards. Passing null
+	 * switches metrics off.
+	 *
+	 * @param metricsProvider the provider to use
+	 */
+	public static void setProvider(final MetricsProvider metricsProvider) {
+		provider = metricsProvider == null ? NO_METRICS : metricsProvider;
+	}
+
+	/**
+	 * Returns the metrics of a module type. The simple class name of the
+	 * module is used as name.
+	 *
+	 * @param module class of the module
+	 * @return the metrics of the module
+	 */
+	public static QueryMetrics getQueryMetrics(final Class<?> module) {
+		return getQueryMetrics(module.getSimpleName());
+	}
+
+	public static QueryMetrics getQueryMetrics(final String name) {
+		return getProvider().getQueryMetrics(name);
+	}
+
+	private static MetricsProvider getProvider() {
+		MetricsProvider current = provider;
+		if (current == null) {
+			synchronized (Metrics.class) {
+				current = provider;
+				if (current == null) {
+					current = findProvider();
+					provider = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	private static MetricsProvider findProvider() {
+		final String className = System.getProperty(PROVIDER_PROPERTY);
+		if (className != null) {
+			try {
+				return Class.forName(className).asSubclass(MetricsProvider.class)
+						.getDeclaredConstructor().newInstance();
+			} catch (final ReflectiveOperationException | ClassCastException e) {
+				throw new MetafactureException("Cannot create metrics provider " +
+						className, e);
+			}
+		}
+		final Iterator<MetricsProvider> providers =
+				ServiceLoader.load(MetricsProvider.class).iterator();
+		if (providers.hasNext()) {
+			return providers.next();
+		}
+		return NO_METRICS;
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+/**
+ * Service provider interface for metrics backends. Providers are found with
+ * {@link java.util.ServiceLoader} or selected with a system property (see
+ * {@link Metrics}).
+ *
+ * @author Christoph Böhme
+ */
+public interface MetricsProvider {
+
+	/**
+	 * Returns the metrics for the queries of a module. Modules of the same
+	 * type share their metrics, so a provider should return the same object
+	 * for the same name.
+	 *
+	 * @param name name of the module
+	 * @return metrics receiving the measurements of the module
+	 */
+	QueryMetrics getQueryMetrics(String name);
+
+}
@@ -0,0 +1,751 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of parsing an SQL statement with named parameters (written as
+ * {@code :name}). The plan contains the SQL statement with the named
+ * parameters replaced by JDBC placeholders and the placeholder positions of
+ * each parameter.
+ * <p>
+ * The parser skips string literals, quoted identifiers, comments, dollar
+ * quoted strings, type casts ({@code ::type}) and array subscripts. Colons in
+ * these places are not mistaken for parameters.
+ * <p>
+ * A parameter may be followed by a type annotation such as {@code :id::int}.
+ * If the type is known (see {@link ParameterType#forName(String)}) the type
+ * is recorded for the placeholder so that the value is bound with a typed
+ * setter. The cast remains in the statement since it may be needed to
+ * resolve functions and operators. Only the annotations {@code ::string} and
+ * {@code ::long}, which are not SQL types, are removed. Casts with a length
+ * or precision such as {@code ::varchar(10)} do not declare a type.
+ * <p>
+ * A parameter written as {@code :name[]} is an array parameter. Its values
+ * are bound as SQL array. The element type is taken from an array cast
+ * following the parameter (e.g. {@code :tags[]::text[]}), the cast remains
+ * in the statement. Without a cast the element type is {@code varchar}.
+ * <p>
+ * Each distinct parameter name is assigned a slot number. Looking up the slot
+ * of a name and the placeholder positions of a slot does not allocate any
+ * objects so that parameters can be bound on the hot path without garbage.
+ * <p>
+ * A plan can be derived in which the placeholder of a parameter is repeated
+ * several times (see {@link #repeatParameter(String, int)}). This is used to
+ * bind lists of values, for example in {@code IN (:_ID)}. For INSERT
+ * statements, a plan with several rows in the VALUES list can be derived
+ * (see {@link #repeatValuesRow(int)}).
+ * <p>
+ * Plans are immutable. Use {@link #forSql(String)} to obtain a plan; plans for
+ * recently used statements are cached.
+ *
+ * @author Christoph Böhme
+ */
+final class ParameterPlan {
+
+	private static final int CACHE_SIZE = 256;
+
+	private static final Map<String, ParameterPlan> CACHE =
+			Collections.synchronizedMap(
+					new LinkedHashMap<String, ParameterPlan>(16, 0.75f, true) {
+
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						protected boolean removeEldestEntry(
+								final Map.Entry<String, ParameterPlan> eldest) {
+							return size() > CACHE_SIZE;
+						}
+
+					});
+
+	static final int NO_SLOT = -1;
+
+	private static final int NO_VALUES_ROW = -1;
+
+	private final String sql;
+	private final int parameterCount;
+	private final String[] names;
+	private final int[][] positions;
+	private final ParameterType[] declaredTypes;
+	private final String[] arrayElementTypes;
+	private final int[] placeholderOffsets;
+	private final int[] placeholderLengths;
+	private final int[] repetitions;
+	private final int valuesRowStart;
+	private final int valuesRowEnd;
+
+	private final String[] slotTableKeys;
+	private final int[] slotTableValues;
+	private final int slotTableMask;
+
+	private ParameterPlan(final String sql, final int parameterCount,
+			final String[] names, final int[][] positions,
+			final ParameterType[] declaredTypes, final String[] arrayElementTypes,
+			final int[] placeholderOffsets, final int[] placeholderLengths,
+			final int[] repetitions, final int valuesRowStart,
+			final int valuesRowEnd) {
+		this.sql = sql;
+		this.parameterCount = parameterCount;
+		this.names = names;
+		this.positions = positions;
+		this.declaredTypes = declaredTypes;
+		this.arrayElementTypes = arrayElementTypes;
+		this.placeholderOffsets = placeholderOffsets;
+		this.placeholderLengths = placeholderLengths;
+		this.repetitions = repetitions;
+		this.valuesRowStart = valuesRowStart;
+		this.valuesRowEnd = valuesRowEnd;
+
+		int tableSize = 2;
+		while (tableSize < names.length * 2) {
+			tableSize *= 2;
+		}
+		slotTableKeys = new String[tableSize];
+		slotTableValues = new int[tableSize];
+		slotTableMask = tableSize - 1;
+		for (int slot = 0; slot < names.length; ++slot) {
+			int index = hash(names[slot]) & slotTableMask;
+			while (slotTableKeys[index] != null) {
+				index = (index + 1) & slotTableMask;
+			}
+			slotTableKeys[index] = names[slot];
+			slotTableValues[index] = slot;
+		}
+	}
+
+	/**
+	 * Returns the plan for {@code sql}. The statement is only parsed if no plan
+	 * for it is found in the cache.
+	 *
+	 * @param sql SQL statement with named parameters
+	 * @return the parameter plan for the statement
+	 */
+	static ParameterPlan forSql(final String sql) {
+		ParameterPlan plan = CACHE.get(sql);
+		if (plan == null) {
+			plan = parse(sql);
+			CACHE.put(sql, plan);
+		}
+		return plan;
+	}
+
+	static ParameterPlan parse(final String sql) {
+		return new Parser(sql).parse();
+	}
+
+	/**
+	 * Returns the SQL statement with all named parameters replaced by
+	 * {@code ?}.
+	 */
+	String getSql() {
+		return sql;
+	}
+
+	int getParameterCount() {
+		return parameterCount;
+	}
+
+	/**
+	 * Returns a plan in which each placeholder of the parameter {@code name}
+	 * is replaced by {@code count} comma-separated placeholders. The positions
+	 * of the parameter are ordered by occurrence; the copies of an occurrence
+	 * have consecutive positions.
+	 *
+	 * @param name name of the parameter to repeat
+	 * @param count number of placeholders per occurrence
+	 * @return the new plan
+	 * @throws IllegalArgumentException if the statement does not contain the
+	 * parameter or if the parameter is already repeated
+	 */
+	ParameterPlan repeatParameter(final String name, final int count) {
+		final int repeatedSlot = getSlot(name);
+		if (repeatedSlot == NO_SLOT) {
+			throw new IllegalArgumentException("Statement has no parameter " + name);
+		}
+		if (repetitions[repeatedSlot] != 1) {
+			throw new IllegalArgumentException("Parameter is already repeated: " +
+					name);
+		}
+		final int[] slotOfPosition = new int[parameterCount + 1];
+		for (int slot = 0; slot < names.length; ++slot) {
+			for (final int position : positions[slot]) {
+				slotOfPosition[position] = slot;
+			}
+		}
+
+		final int newCount = parameterCount +
+				positions[repeatedSlot].length * (count - 1);
+		final StringBuilder newSql = new StringBuilder(sql.length() +
+				newCount * 3);
+		final int[][] newPositions = new int[names.length][];
+		final int[] positionCounts = new int[names.length];
+		for (int slot = 0; slot < names.length; ++slot) {
+			final int copies = slot == repeatedSlot ? count : repetitions[slot];
+			newPositions[slot] = new int[positions[slot].length * copies /
+					repetitions[slot]];
+		}
+		final ParameterType[] newTypes = new ParameterType[newCount];
+		final String[] newElementTypes = new String[newCount];
+		final int[] newOffsets = new int[newCount];
+		final int[] newLengths = new int[newCount];
+
+		int copied = 0;
+		int newPosition = 0;
+		for (int position = 1; position <= parameterCount; ++position) {
+			final int offset = placeholderOffsets[position - 1];
+			final int placeholderLength = placeholderLengths[position - 1];
+			newSql.append(sql, copied, offset);
+			copied = offset + placeholderLength;
+			final int slot = slotOfPosition[position];
+			final int copies = slot == repeatedSlot ? count : 1;
+			for (int i = 0; i < copies; ++i) {
+				if (i > 0) {
+					newSql.append(", ");
+				}
+				newOffsets[newPosition] = newSql.length();
+				newLengths[newPosition] = placeholderLength;
+				newTypes[newPosition] = declaredTypes[position - 1];
+				newElementTypes[newPosition] = arrayElementTypes[position - 1];
+				// Copy the placeholder together with its type annotation:
+				newSql.append(sql, offset, offset + placeholderLength);
+				newPosition += 1;
+				newPositions[slot][positionCounts[slot]] = newPosition;
+				positionCounts[slot] += 1;
+			}
+		}
+		newSql.append(sql, copied, sql.length());
+
+		final int[] newRepetitions = repetitions.clone();
+		newRepetitions[repeatedSlot] = count;
+		return new ParameterPlan(newSql.toString(), newCount, names, newPositions,
+				newTypes, newElementTypes, newOffsets, newLengths, newRepetitions,
+				NO_VALUES_ROW, NO_VALUES_ROW);
+	}
+
+	/**
+	 * Returns a plan in which the first row of the VALUES list of an INSERT
+	 * statement is repeated {@code rows} times. All parameters must be in this
+	 * row. The parameters of the plan are repeated accordingly: the value of a
+	 * parameter for row {@code i} is set at index {@code i} of the repeated
+	 * placeholders.
+	 *
+	 * @param rows number of rows
+	 * @return the new plan
+	 * @throws IllegalArgumentException if the statement has no VALUES list or
+	 * if it has parameters outside of the first row of the VALUES list
+	 */
+	ParameterPlan repeatValuesRow(final int rows) {
+		if (valuesRowStart == NO_VALUES_ROW) {
+			throw new IllegalArgumentException("Statement has no VALUES list");
+		}
+		for (int i = 0; i < parameterCount; ++i) {
+			if (placeholderOffsets[i] < valuesRowStart ||
+					placeholderOffsets[i] >= valuesRowEnd) {
+				throw new IllegalArgumentException("Statement has parameters " +
+						"outside of the VALUES list");
+			}
+		}
+		final String row = sql.substring(valuesRowStart, valuesRowEnd);
+		final StringBuilder newSql = new StringBuilder(sql.length() +
+				(row.length() + 2) * (rows - 1));
+		newSql.append(sql, 0, valuesRowStart);
+		for (int i = 0; i < rows; ++i) {
+			if (i > 0) {
+				newSql.append(", ");
+			}
+			newSql.append(row);
+		}
+		newSql.append(sql, valuesRowEnd, sql.length());
+
+		final int newCount = parameterCount * rows;
+		final ParameterType[] newTypes = new ParameterType[newCount];
+		final String[] newElementTypes = new String[newCount];
+		final int[] newOffsets = new int[newCount];
+		final int[] newLengths = new int[newCount];
+		for (int i = 0; i < rows; ++i) {
+			final int rowOffset = i * (row.length() + 2);
+			for (int position = 1; position <= parameterCount; ++position) {
+				final int newPosition = i * parameterCount + position;
+				newTypes[newPosition - 1] = declaredTypes[position - 1];
+				newElementTypes[newPosition - 1] = arrayElementTypes[position - 1];
+				newOffsets[newPosition - 1] = placeholderOffsets[position - 1] +
+						rowOffset;
+				newLengths[newPosition - 1] = placeholderLengths[position - 1];
+			}
+		}
+		final int[][] newPositions = new int[names.length][];
+		final int[] newRepetitions = new int[names.length];
+		for (int slot = 0; slot < names.length; ++slot) {
+			final int[] slotPositions = positions[slot];
+			newPositions[slot] = new int[slotPositions.length * rows];
+			for (int occurrence = 0; occurrence < slotPositions.length;
+					++occurrence) {
+				for (int i = 0; i < rows; ++i) {
+					newPositions[slot][occurrence * rows + i] =
+							i * parameterCount + slotPositions[occurrence];
+				}
+			}
+			newRepetitions[slot] = rows;
+		}
+		return new ParameterPlan(newSql.toString(), newCount, names, newPositions,
+				newTypes, newElementTypes, newOffsets, newLengths, newRepetitions,
+				NO_VALUES_ROW, NO_VALUES_ROW);
+	}
+
+	/**
+	 * Returns a plan in which the placeholders of the parameter {@code name}
+	 * are bound with {@code type}. This declares types without adding casts
+	 * to the statement.
+	 *
+	 * @param name name of the parameter
+	 * @param type type for binding the values of the parameter
+	 * @return the new plan
+	 * @throws IllegalArgumentException if the statement does not contain the
+	 * parameter
+	 */
+	ParameterPlan declareType(final String name, final ParameterType type) {
+		final int slot = getSlot(name);
+		if (slot == NO_SLOT) {
+			throw new IllegalArgumentException("Statement has no parameter " + name);
+		}
+		final ParameterType[] newTypes = declaredTypes.clone();
+		for (final int position : positions[slot]) {
+			newTypes[position - 1] = type;
+		}
+		return new ParameterPlan(sql, parameterCount, names, positions, newTypes,
+				arrayElementTypes, placeholderOffsets, placeholderLengths,
+				repetitions, valuesRowStart, valuesRowEnd);
+	}
+
+	/**
+	 * Returns how often each placeholder of the parameter in {@code slot} is
+	 * repeated. This is one unless the plan was created with
+	 * {@link #repeatParameter(String, int)}.
+	 */
+	int getRepetitions(final int slot) {
+		return repetitions[slot];
+	}
+
+	/**
+	 * Returns the type declared for the placeholder at {@code position}
+	 * (starting at 1) or null if no type was declared.
+	 */
+	ParameterType getDeclaredType(final int position) {
+		return declaredTypes[position - 1];
+	}
+
+	/**
+	 * Returns the SQL type name of the elements if the placeholder at
+	 * {@code position} (starting at 1) is an array parameter or null
+	 * otherwise.
+	 */
+	String getArrayElementType(final int position) {
+		return arrayElementTypes[position - 1];
+	}
+
+	/**
+	 * Returns the number of distinct parameter names.
+	 */
+	int getSlotCount() {
+		return names.length;
+	}
+
+	String getName(final int slot) {
+		return names[slot];
+	}
+
+	/**
+	 * Returns the slot of the parameter {@code name} or {@link #NO_SLOT} if the
+	 * statement does not contain this parameter.
+	 */
+	int getSlot(final String name) {
+		int index = hash(name) & slotTableMask;
+		String key = slotTableKeys[index];
+		while (key != null) {
+			if (key.equals(name)) {
+				return slotTableValues[index];
+			}
+			index = (index + 1) & slotTableMask;
+			key = slotTableKeys[index];
+		}
+		return NO_SLOT;
+	}
+
+	/**
+	 * Returns the placeholder positions (starting at 1) of the parameter in
+	 * {@code slot}. The returned array must not be modified.
+	 */
+	int[] getPositions(final int slot) {
+		return positions[slot];
+	}
+
+	/**
+	 * Returns the placeholder positions (starting at 1) of the parameter
+	 * {@code name} or null if the statement does not contain this parameter.
+	 * The returned array must not be modified.
+	 */
+	int[] getPositions(final String name) {
+		final int slot = getSlot(name);
+		return slot == NO_SLOT ? null : positions[slot];
+	}
+
+	private static int hash(final String name) {
+		final int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Single-pass parser for named parameters.
+	 */
+	private static final class Parser {
+
+		private static final String VALUES_KEYWORD = "VALUES";
+		private static final String DEFAULT_ELEMENT_TYPE = "varchar";
+
+		private static final Set<String> TYPE_MODIFIERS = new HashSet<>(
+				Arrays.asList("precision", "varying", "with", "without"));
+
+		private final String sql;
+		private final int length;
+		private final StringBuilder jdbcSql;
+		private final Map<String, int[]> positions = new LinkedHashMap<>();
+		private final List<ParameterType> declaredTypes = new ArrayList<>();
+		private final List<String> arrayElementTypes = new ArrayList<>();
+		private final List<Integer> placeholderOffsets = new ArrayList<>();
+		private final List<Integer> placeholderLengths = new ArrayList<>();
+
+		private int pos;
+		private int parameterCount;
+		private int bracketDepth;
+		private int parenthesisDepth;
+		private boolean valuesKeywordSeen;
+		private int valuesRowDepth;
+		private int valuesRowStart = NO_VALUES_ROW;
+		private int valuesRowEnd = NO_VALUES_ROW;
+
+		Parser(final String sql) {
+			this.sql = sql;
+			length = sql.length();
+			jdbcSql = new StringBuilder(length);
+		}
+
+		ParameterPlan parse() {
+			while (pos < length) {
+				final char c = sql.charAt(pos);
+				if (c == '\'') {
+					skipQuoted('\'', isEscapeString());
+				} else if (c == '"' || c == '`') {
+					skipQuoted(c, false);
+				} else if (c == '-' && peek(1) == '-') {
+					skipLineComment();
+				} else if (c == '/' && peek(1) == '*') {
+					skipBlockComment();
+				} else if (c == '$' && isDollarQuoteStart()) {
+					skipDollarQuoted();
+				} else if (c == '[') {
+					bracketDepth += 1;
+					copy(1);
+				} else if (c == ']') {
+					bracketDepth = Math.max(0, bracketDepth - 1);
+					copy(1);
+				} else if (c == '(') {
+					if (valuesKeywordSeen && valuesRowStart == NO_VALUES_ROW) {
+						valuesRowStart = jdbcSql.length();
+						valuesRowDepth = parenthesisDepth;
+					}
+					parenthesisDepth += 1;
+					copy(1);
+				} else if (c == ')') {
+					parenthesisDepth -= 1;
+					copy(1);
+					if (valuesRowStart != NO_VALUES_ROW &&
+							valuesRowEnd == NO_VALUES_ROW &&
+							parenthesisDepth == valuesRowDepth) {
+						valuesRowEnd = jdbcSql.length();
+					}
+				} else if (isValuesKeyword()) {
+					valuesKeywordSeen = true;
+					copy(VALUES_KEYWORD.length());
+				} else if (c == ':') {
+					handleColon();
+				} else {
+					copy(1);
+				}
+			}
+			final String[] names = positions.keySet().toArray(
+					new String[positions.size()]);
+			final int[][] namePositions = new int[names.length][];
+			for (int i = 0; i < names.length; ++i) {
+				namePositions[i] = positions.get(names[i]);
+			}
+			final int[] offsets = new int[parameterCount];
+			final int[] lengths = new int[parameterCount];
+			for (int i = 0; i < parameterCount; ++i) {
+				offsets[i] = placeholderOffsets.get(i).intValue();
+				lengths[i] = placeholderLengths.get(i).intValue();
+			}
+			final int[] repetitions = new int[names.length];
+			Arrays.fill(repetitions, 1);
+			return new ParameterPlan(jdbcSql.toString(), parameterCount, names,
+					namePositions, declaredTypes.toArray(
+							new ParameterType[declaredTypes.size()]),
+					arrayElementTypes.toArray(new String[arrayElementTypes.size()]),
+					offsets, lengths, repetitions, valuesRowStart, valuesRowEnd);
+		}
+
+		private boolean isValuesKeyword() {
+			final int end = pos + VALUES_KEYWORD.length();
+			return sql.regionMatches(true, pos, VALUES_KEYWORD, 0,
+					VALUES_KEYWORD.length()) &&
+					(pos == 0 || !isNamePart(sql.charAt(pos - 1))) &&
+					(end >= length || !isNamePart(sql.charAt(end)));
+		}
+
+		private void handleColon() {
+			if (peek(1) == ':') {
+				copy(2);
+			} else if (bracketDepth == 0 && isNameStart(peek(1))) {
+				readParameter();
+			} else {
+				copy(1);
+			}
+		}
+
+		private void readParameter() {
+			int end = pos + 2;
+			while (end < length) {
+				final char c = sql.charAt(end);
+				if (isNamePart(c)) {
+					end += 1;
+				} else if (c == '-' && end + 1 < length &&
+						isNamePart(sql.charAt(end + 1))) {
+					// Names may contain hyphens for compatibility with the
+					// regular expression used by earlier versions:
+					end += 2;
+				} else {
+					break;
+				}
+			}
+			final String name = sql.substring(pos + 1, end);
+			parameterCount += 1;
+			addPosition(name, parameterCount);
+			final int offset = jdbcSql.length();
+			placeholderOffsets.add(Integer.valueOf(offset));
+			jdbcSql.append('?');
+			pos = end;
+			if (peek(0) == '[' && peek(1) == ']') {
+				pos += 2;
+				arrayElementTypes.add(readArrayCast());
+			} else {
+				arrayElementTypes.add(null);
+			}
+			declaredTypes.add(readTypeAnnotation());
+			placeholderLengths.add(Integer.valueOf(jdbcSql.length() - offset));
+		}
+
+		/**
+		 * Returns the element type of an array cast ({@code ::type[]})
+		 * following an array parameter. The cast is kept in the statement.
+		 */
+		private String readArrayCast() {
+			if (peek(0) != ':' || peek(1) != ':') {
+				return DEFAULT_ELEMENT_TYPE;
+			}
+			int end = pos + 2;
+			while (end < length && isNamePart(sql.charAt(end))) {
+				end += 1;
+			}
+			if (end == pos + 2 || end >= length || sql.charAt(end) != '[') {
+				return DEFAULT_ELEMENT_TYPE;
+			}
+			return sql.substring(pos + 2, end);
+		}
+
+		private ParameterType readTypeAnnotation() {
+			if (peek(0) != ':' || peek(1) != ':') {
+				return null;
+			}
+			int end = pos + 2;
+			while (end < length && isNamePart(sql.charAt(end))) {
+				end += 1;
+			}
+			if (end < length && (sql.charAt(end) == '[' ||
+					sql.charAt(end) == '(') || isFollowedByTypeModifier(end)) {
+				return null;
+			}
+			final String name = sql.substring(pos + 2, end);
+			final ParameterType type = ParameterType.forName(name);
+			if (type != null) {
+				if (ParameterType.isSqlTypeName(name)) {
+					copyTo(end);
+				} else {
+					pos = end;
+				}
+			}
+			return type;
+		}
+
+		private void addPosition(final String name, final int position) {
+			final int[] existing = positions.get(name);
+			if (existing == null) {
+				positions.put(name, new int[] { position });
+			} else {
+				final int[] extended = Arrays.copyOf(existing, existing.length + 1);
+				extended[existing.length] = position;
+				positions.put(name, extended);
+			}
+		}
+
+		/**
+		 * Checks for multi-word type names such as {@code double precision} or
+		 * {@code timestamp with time zone}. Such casts are left in the statement.
+		 */
+		private boolean isFollowedByTypeModifier(final int index) {
+			int start = index;
+			while (start < length && Character.isWhitespace(sql.charAt(start))) {
+				start += 1;
+			}
+			if (start == index) {
+				return false;
+			}
+			int end = start;
+			while (end < length && isNamePart(sql.charAt(end))) {
+				end += 1;
+			}
+			final String word = sql.substring(start, end).toLowerCase(Locale.ROOT);
+			return TYPE_MODIFIERS.contains(word);
+		}
+
+		private boolean isEscapeString() {
+			if (pos == 0) {
+				return false;
+			}
+			final char prefix = sql.charAt(pos - 1);
+			return (prefix == 'E' || prefix == 'e') &&
+					(pos == 1 || !isNamePart(sql.charAt(pos - 2)));
+		}
+
+		private void skipQuoted(final char quote, final boolean backslashEscapes) {
+			int end = pos + 1;
+			while (end < length) {
+				final char c = sql.charAt(end);
+				if (backslashEscapes && c == '\\') {
+					end += 2;
+				} else if (c == quote) {
+					if (end + 1 < length && sql.charAt(end + 1) == quote) {
+						end += 2;
+					} else {
+						end += 1;
+						break;
+					}
+				} else {
+					end += 1;
+				}
+			}
+			copyTo(end);
+		}
+
+		private void skipLineComment() {
+			int end = sql.indexOf('\n', pos);
+			if (end < 0) {
+				end = length;
+			}
+			copyTo(end);
+		}
+
+		private void skipBlockComment() {
+			int depth = 0;
+			int end = pos;
+			while (end < length) {
+				if (sql.startsWith("/*", end)) {
+					depth += 1;
+					end += 2;
+				} else if (sql.startsWith("*/", end)) {
+					depth -= 1;
+					end += 2;
+					if (depth == 0) {
+						break;
+					}
+				} else {
+					end += 1;
+				}
+			}
+			copyTo(end);
+		}
+
+		private boolean isDollarQuoteStart() {
+			if (pos > 0 && isNamePart(sql.charAt(pos - 1))) {
+				return false;
+			}
+			return readDollarTag() != null;
+		}
+
+		private String readDollarTag() {
+			int end = pos + 1;
+			if (end < length && Character.isDigit(sql.charAt(end))) {
+				return null;
+			}
+			while (end < length && isNamePart(sql.charAt(end))) {
+				end += 1;
+			}
+			if (end < length && sql.charAt(end) == '$') {
+				return sql.substring(pos, end + 1);
+			}
+			return null;
+		}
+
+		private void skipDollarQuoted() {
+			final String tag = readDollarTag();
+			final int close = sql.indexOf(tag, pos + tag.length());
+			copyTo(close < 0 ? length : close + tag.length());
+		}
+
+		private char peek(final int offset) {
+			final int index = pos + offset;
+			return index < length ? sql.charAt(index) : '\0';
+		}
+
+		private void copy(final int count) {
+			copyTo(pos + count);
+		}
+
+		private void copyTo(final int end) {
+			final int boundedEnd = Math.min(end, length);
+			jdbcSql.append(sql, pos, boundedEnd);
+			pos = boundedEnd;
+		}
+
+		private static boolean isNameStart(final char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+		}
+
+		private static boolean isNamePart(final char c) {
+			return isNameStart(c) || (c >= '0' && c <= '9');
+		}
+
+	}
+
+}
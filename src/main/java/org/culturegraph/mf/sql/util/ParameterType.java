@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Types with which string values of parameters are bound to prepared
+ * statements. Values are converted in Java and passed to the driver with the
+ * matching typed setter so that the database does not need to cast text
+ * values.
+ *
+ * @author Christoph Böhme
+ */
+enum ParameterType {
+
+	STRING(Types.VARCHAR) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setString(position, value);
+		}
+	},
+	INTEGER(Types.BIGINT) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setLong(position, Long.parseLong(value.trim()));
+		}
+	},
+	DECIMAL(Types.DECIMAL) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setBigDecimal(position, new BigDecimal(value.trim()));
+		}
+	},
+	DOUBLE(Types.DOUBLE) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setDouble(position, Double.parseDouble(value));
+		}
+	},
+	BOOLEAN(Types.BOOLEAN) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setBoolean(position, parseBoolean(value.trim()));
+		}
+	},
+	DATE(Types.DATE) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setDate(position, Date.valueOf(value.trim()));
+		}
+	},
+	TIME(Types.TIME) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			statement.setTime(position, Time.valueOf(value.trim()));
+		}
+	},
+	TIMESTAMP(Types.TIMESTAMP) {
+		@Override
+		void bindValue(final PreparedStatement statement, final int position,
+				final String value) throws SQLException {
+			final Timestamp timestamp = parseTimestamp(value.trim());
+			if (timestamp == null) {
+				// Leave formats with zone names to the database:
+				statement.setString(position, value);
+			} else {
+				statement.setTimestamp(position, timestamp);
+			}
+		}
+	};
+
+	private static final Map<String, ParameterType> TYPE_NAMES = new HashMap<>();
+
+	/**
+	 * Annotations which name no SQL type and must be removed from statements.
+	 */
+	private static final Set<String> PSEUDO_TYPE_NAMES =
+			new HashSet<>(Arrays.asList("string", "long"));
+
+	static {
+		// char is not included because a cast to char pads or truncates
+		// the value:
+		for (final String name : new String[] {"text", "varchar", "string"}) {
+			TYPE_NAMES.put(name, STRING);
+		}
+		for (final String name : new String[] {"int", "integer", "int2", "int4",
+				"int8", "smallint", "bigint", "long"}) {
+			TYPE_NAMES.put(name, INTEGER);
+		}
+		for (final String name : new String[] {"numeric", "decimal"}) {
+			TYPE_NAMES.put(name, DECIMAL);
+		}
+		for (final String name : new String[] {"real", "float", "float4",
+				"float8", "double"}) {
+			TYPE_NAMES.put(name, DOUBLE);
+		}
+		for (final String name : new String[] {"bool", "boolean"}) {
+			TYPE_NAMES.put(name, BOOLEAN);
+		}
+		TYPE_NAMES.put("date", DATE);
+		TYPE_NAMES.put("time", TIME);
+		TYPE_NAMES.put("timestamp", TIMESTAMP);
+	}
+
+	private final int sqlType;
+
+	ParameterType(final int sqlType) {
+		this.sqlType = sqlType;
+	}
+
+	/**
+	 * Binds {@code value} to the placeholder at {@code position}. Null values
+	 * are bound as SQL NULL.
+	 *
+	 * @throws SQLException if the driver rejects the value
+	 * @throws IllegalArgumentException if the value cannot be converted to
+	 * this type
+	 */
+	void bind(final PreparedStatement statement, final int position,
+			final String value) throws SQLException {
+		if (value == null) {
+			statement.setNull(position, sqlType);
+		} else {
+			bindValue(statement, position, value);
+		}
+	}
+
+	abstract void bindValue(PreparedStatement statement, int position,
+			String value) throws SQLException;
+
+	/**
+	 * Returns the type for a type name as used in parameter annotations such
+	 * as {@code :name::int} or null if the name is unknown. Type names are
+	 * case-insensitive.
+	 */
+	static ParameterType forName(final String name) {
+		return TYPE_NAMES.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns false if {@code name} is a type annotation which is not a SQL
+	 * type and thus cannot remain in a statement.
+	 */
+	static boolean isSqlTypeName(final String name) {
+		return !PSEUDO_TYPE_NAMES.contains(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns the type for a {@link Types} constant as reported by
+	 * {@link java.sql.ParameterMetaData}. {@link Types#BIT} maps to
+	 * {@link #BOOLEAN} only for a precision of one; wider bit strings and
+	 * unknown types map to {@link #STRING}.
+	 */
+	static ParameterType forSqlType(final int sqlType, final int precision) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+			return INTEGER;
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return DECIMAL;
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return DOUBLE;
+		case Types.BIT:
+			return precision == 1 ? BOOLEAN : STRING;
+		case Types.BOOLEAN:
+			return BOOLEAN;
+		case Types.DATE:
+			return DATE;
+		case Types.TIME:
+			return TIME;
+		case Types.TIMESTAMP:
+			return TIMESTAMP;
+		default:
+			return STRING;
+		}
+	}
+
+	/**
+	 * Parses timestamps in JDBC escape format or ISO-8601 format. ISO-8601
+	 * timestamps may include an offset or zone. Returns null if the value is
+	 * in neither format.
+	 */
+	private static Timestamp parseTimestamp(final String value) {
+		try {
+			return Timestamp.valueOf(value.replace('T', ' '));
+		} catch (final IllegalArgumentException e) {
+			// Not a local timestamp
+		}
+		try {
+			return Timestamp.from(ZonedDateTime.parse(value).toInstant());
+		} catch (final DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static boolean parseBoolean(final String value) {
+		if ("true".equalsIgnoreCase(value) || "t".equalsIgnoreCase(value) ||
+				"1".equals(value)) {
+			return true;
+		}
+		if ("false".equalsIgnoreCase(value) || "f".equalsIgnoreCase(value) ||
+				"0".equals(value)) {
+			return false;
+		}
+		throw new IllegalArgumentException("not a boolean: " + value);
+	}
+
+}
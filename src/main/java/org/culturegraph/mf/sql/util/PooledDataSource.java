@@ -0,0 +1,790 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A lightweight connection pool which opens connections through
+ * {@link DriverManager} from a JDBC URL.
+ * <p>
+ * Connections returned by {@link #getConnection()} are handles for pooled
+ * physical connections. Closing a handle returns the physical connection to
+ * the pool. Before a connection is returned, open transactions are rolled
+ * back, auto-commit is switched on and all statements created through the
+ * handle are closed. Idle connections are validated when they are borrowed.
+ * <p>
+ * Connections which have been idle longer than the idle timeout are closed
+ * lazily: the pool checks for expired connections only when a connection is
+ * borrowed or returned. There is no background thread, so the connections of
+ * a pool which is no longer used stay open until {@link #close()} is called.
+ * <p>
+ * If a statement cache size is set, each physical connection keeps its most
+ * recently used prepared statements open. Preparing the same SQL statement
+ * again reuses the open statement. The fetch size, maximum number of rows,
+ * maximum field size and query timeout of a cached statement are reset when
+ * it is returned to the cache.
+ * <p>
+ * The pool is thread-safe. It counts borrowed and created connections, waits
+ * and statement cache hits; see the getters for details.
+ *
+ * @author Christoph Böhme
+ */
+public final class PooledDataSource implements DataSource, AutoCloseable {
+
+	public static final int DEFAULT_MAXIMUM_POOL_SIZE = 10;
+	public static final int UNLIMITED_POOL_SIZE = Integer.MAX_VALUE;
+	public static final int DEFAULT_IDLE_TIMEOUT = 600000;
+	public static final int DEFAULT_BORROW_TIMEOUT = 30000;
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private final String url;
+	private final Properties properties = new Properties();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition connectionReturned = lock.newCondition();
+	private final Deque<PhysicalConnection> idleConnections = new ArrayDeque<>();
+
+	private int maximumPoolSize = DEFAULT_MAXIMUM_POOL_SIZE;
+	private long idleTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+	private long borrowTimeout =
+			TimeUnit.MILLISECONDS.toNanos(DEFAULT_BORROW_TIMEOUT);
+	private String validationQuery;
+	private int statementCacheSize;
+
+	private int totalConnections;
+	private boolean closed;
+
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+
+	private PrintWriter logWriter;
+
+	public PooledDataSource(final String url) {
+		this.url = url;
+	}
+
+	public void setUser(final String user) {
+		properties.setProperty("user", user);
+	}
+
+	public void setPassword(final String password) {
+		properties.setProperty("password", password);
+	}
+
+	/**
+	 * Sets a driver specific connection property.
+	 */
+	public void setProperty(final String name, final String value) {
+		properties.setProperty(name, value);
+	}
+
+	/**
+	 * Sets the maximum number of physical connections. The default is
+	 * {@value #DEFAULT_MAXIMUM_POOL_SIZE}. Use {@link #UNLIMITED_POOL_SIZE} to
+	 * open as many connections as are requested.
+	 */
+	public void setMaximumPoolSize(final int maximumPoolSize) {
+		this.maximumPoolSize = maximumPoolSize;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which idle connections are closed
+	 * by the next borrow or return. The default is
+	 * {@value #DEFAULT_IDLE_TIMEOUT}. A value of zero keeps idle connections
+	 * open.
+	 */
+	public void setIdleTimeout(final int idleTimeout) {
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds {@link #getConnection()} waits for
+	 * a connection if all connections are in use. The default is
+	 * {@value #DEFAULT_BORROW_TIMEOUT}.
+	 */
+	public void setBorrowTimeout(final int borrowTimeout) {
+		this.borrowTimeout = TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+	}
+
+	/**
+	 * Sets a query which is executed to check that an idle connection still
+	 * works before it is borrowed. If no query is set,
+	 * {@link Connection#isValid(int)} is used.
+	 */
+	public void setValidationQuery(final String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	/**
+	 * Sets the number of prepared statements kept open per connection. The
+	 * default of zero disables the statement cache.
+	 */
+	public void setStatementCacheSize(final int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		final PhysicalConnection connection = borrow();
+		borrowCount.incrementAndGet();
+		return new ConnectionHandle(connection).proxy;
+	}
+
+	@Override
+	public Connection getConnection(final String username,
+			final String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException(
+				"Pooled connections use the configured user");
+	}
+
+	/**
+	 * Returns the physical connection behind a connection obtained from a
+	 * {@code PooledDataSource}. Other connections are returned unchanged.
+	 */
+	public static Connection unwrapPhysical(final Connection connection) {
+		if (Proxy.isProxyClass(connection.getClass())) {
+			final InvocationHandler handler =
+					Proxy.getInvocationHandler(connection);
+			if (handler instanceof ConnectionHandle) {
+				return ((ConnectionHandle) handler).physical.connection;
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Closes all idle connections. Connections which are in use are closed
+	 * when they are returned.
+	 */
+	@Override
+	public void close() {
+		final List<PhysicalConnection> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new ArrayList<>(idleConnections);
+			idleConnections.clear();
+			totalConnections -= toClose.size();
+			connectionReturned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (final PhysicalConnection connection : toClose) {
+			connection.closeQuietly();
+		}
+	}
+
+	public int getActiveConnections() {
+		lock.lock();
+		try {
+			return totalConnections - idleConnections.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getIdleConnections() {
+		lock.lock();
+		try {
+			return idleConnections.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getTotalConnections() {
+		lock.lock();
+		try {
+			return totalConnections;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of connections handed out by the pool.
+	 */
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * Returns the number of physical connections opened by the pool.
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * Returns how often a caller had to wait because all connections were in
+	 * use.
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * Returns the total time in milliseconds callers waited for connections.
+	 */
+	public long getWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+	}
+
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	private PhysicalConnection borrow() throws SQLException {
+		final long deadline = System.nanoTime() + borrowTimeout;
+		boolean waited = false;
+		while (true) {
+			PhysicalConnection idle = null;
+			boolean create = false;
+			final List<PhysicalConnection> expired = new ArrayList<>();
+			lock.lock();
+			try {
+				collectExpired(expired);
+				if (closed) {
+					throw new SQLException("Connection pool is closed");
+				}
+				if (!idleConnections.isEmpty()) {
+					idle = idleConnections.pollFirst();
+				} else if (totalConnections < maximumPoolSize) {
+					totalConnections += 1;
+					create = true;
+				} else {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SQLException("Timeout while waiting for a connection " +
+								"to " + url);
+					}
+					if (!waited) {
+						waited = true;
+						waitCount.incrementAndGet();
+					}
+					final long start = System.nanoTime();
+					try {
+						connectionReturned.awaitNanos(remaining);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a " +
+								"connection", e);
+					} finally {
+						waitTime.addAndGet(System.nanoTime() - start);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			closeAll(expired);
+			if (create) {
+				return open();
+			}
+			if (idle != null) {
+				if (isValid(idle)) {
+					return idle;
+				}
+				discard(idle);
+			}
+		}
+	}
+
+	private PhysicalConnection open() throws SQLException {
+		try {
+			final Connection connection = DriverManager.getConnection(url,
+					properties);
+			createdCount.incrementAndGet();
+			return new PhysicalConnection(connection);
+		} catch (final SQLException | RuntimeException e) {
+			lock.lock();
+			try {
+				totalConnections -= 1;
+				connectionReturned.signal();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+	}
+
+	private boolean isValid(final PhysicalConnection physical) {
+		try {
+			if (validationQuery == null) {
+				return physical.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+			}
+			try (Statement statement = physical.connection.createStatement()) {
+				statement.execute(validationQuery);
+			}
+			return true;
+		} catch (final SQLException e) {
+			return false;
+		}
+	}
+
+	private void giveBack(final PhysicalConnection physical) {
+		if (!physical.reset()) {
+			discard(physical);
+			return;
+		}
+		final List<PhysicalConnection> expired = new ArrayList<>();
+		boolean closeNow = false;
+		lock.lock();
+		try {
+			if (closed) {
+				totalConnections -= 1;
+				closeNow = true;
+			} else {
+				physical.lastReturned = System.nanoTime();
+				idleConnections.addFirst(physical);
+				collectExpired(expired);
+			}
+			connectionReturned.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (closeNow) {
+			physical.closeQuietly();
+		}
+		closeAll(expired);
+	}
+
+	private void discard(final PhysicalConnection physical) {
+		lock.lock();
+		try {
+			totalConnections -= 1;
+			connectionReturned.signal();
+		} finally {
+			lock.unlock();
+		}
+		physical.closeQuietly();
+	}
+
+	/**
+	 * Removes connections which have been idle for longer than the idle
+	 * timeout. The connections at the end of the queue have been idle
+	 * longest. Must be called while holding the lock.
+	 */
+	private void collectExpired(final List<PhysicalConnection> expired) {
+		if (idleTimeout <= 0) {
+			return;
+		}
+		final long now = System.nanoTime();
+		final Iterator<PhysicalConnection> connections =
+				idleConnections.descendingIterator();
+		while (connections.hasNext()) {
+			final PhysicalConnection connection = connections.next();
+			if (now - connection.lastReturned < idleTimeout) {
+				break;
+			}
+			connections.remove();
+			totalConnections -= 1;
+			expired.add(connection);
+		}
+	}
+
+	private static void closeAll(final List<PhysicalConnection> connections) {
+		for (final PhysicalConnection connection : connections) {
+			connection.closeQuietly();
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter logWriter) {
+		this.logWriter = logWriter;
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) {
+		DriverManager.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() {
+		return DriverManager.getLoginTimeout();
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) {
+		return iface.isInstance(this);
+	}
+
+	private static Object invoke(final Object target, final Method method,
+			final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A connection managed by the pool together with its statement cache.
+	 */
+	private final class PhysicalConnection {
+
+		final Connection connection;
+		final Map<List<Object>, CachedStatement> statements;
+		long lastReturned;
+
+		PhysicalConnection(final Connection connection) {
+			this.connection = connection;
+			statements = new LinkedHashMap<List<Object>, CachedStatement>(16,
+					0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						final Map.Entry<List<Object>, CachedStatement> eldest) {
+					if (size() > statementCacheSize) {
+						eldest.getValue().evict();
+						return true;
+					}
+					return false;
+				}
+
+			};
+		}
+
+		/**
+		 * Prepares the connection for the next borrower.
+		 *
+		 * @return false if the connection is not usable anymore
+		 */
+		boolean reset() {
+			try {
+				if (connection.isClosed()) {
+					return false;
+				}
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+				connection.clearWarnings();
+				return true;
+			} catch (final SQLException e) {
+				return false;
+			}
+		}
+
+		void closeQuietly() {
+			for (final CachedStatement statement : statements.values()) {
+				statement.evict();
+			}
+			statements.clear();
+			try {
+				connection.close();
+			} catch (final SQLException e) {
+				// Connection is discarded anyway
+			}
+		}
+
+	}
+
+	/**
+	 * A prepared statement in the statement cache of a connection.
+	 */
+	private static final class CachedStatement {
+
+		final PreparedStatement statement;
+		boolean inUse;
+		boolean evicted;
+
+		private int fetchSize;
+		private int maxRows;
+		private int maxFieldSize;
+		private int queryTimeout;
+
+		CachedStatement(final PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		/**
+		 * Remembers the initial settings of the statement so that they can be
+		 * restored for the next borrower.
+		 */
+		void saveSettings() throws SQLException {
+			fetchSize = statement.getFetchSize();
+			maxRows = statement.getMaxRows();
+			maxFieldSize = statement.getMaxFieldSize();
+			queryTimeout = statement.getQueryTimeout();
+		}
+
+		void evict() {
+			evicted = true;
+			if (!inUse) {
+				closeQuietly(statement);
+			}
+		}
+
+		void release() {
+			inUse = false;
+			if (evicted) {
+				closeQuietly(statement);
+				return;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.clearWarnings();
+				// Some drivers reject fetch sizes above the maximum number of rows:
+				statement.setMaxRows(maxRows);
+				statement.setMaxFieldSize(maxFieldSize);
+				statement.setQueryTimeout(queryTimeout);
+				statement.setFetchSize(fetchSize);
+			} catch (final SQLException e) {
+				evicted = true;
+				closeQuietly(statement);
+			}
+		}
+
+		private static void closeQuietly(final Statement statement) {
+			try {
+				statement.close();
+			} catch (final SQLException e) {
+				// Statement is not used anymore
+			}
+		}
+
+	}
+
+	/**
+	 * The connection handed out to a borrower. Closing the handle returns the
+	 * physical connection to the pool.
+	 */
+	private final class ConnectionHandle implements InvocationHandler {
+
+		final PhysicalConnection physical;
+		final Connection proxy;
+		final List<StatementHandle> statements = new ArrayList<>();
+		boolean closed;
+
+		ConnectionHandle(final PhysicalConnection physical) {
+			this.physical = physical;
+			proxy = (Connection) Proxy.newProxyInstance(
+					PooledDataSource.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, this);
+		}
+
+		@Override
+		public Object invoke(final Object target, final Method method,
+				final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("close".equals(name)) {
+				close();
+				return null;
+			}
+			if ("isClosed".equals(name)) {
+				return Boolean.valueOf(closed);
+			}
+			if ("equals".equals(name)) {
+				return Boolean.valueOf(target == args[0]);
+			}
+			if ("hashCode".equals(name)) {
+				return Integer.valueOf(System.identityHashCode(target));
+			}
+			if ("toString".equals(name)) {
+				return "Pooled connection to " + url;
+			}
+			if (closed) {
+				throw new SQLException("Connection is closed");
+			}
+			if ("prepareStatement".equals(name) && statementCacheSize > 0) {
+				return prepareCached(method, args);
+			}
+			final Object result = PooledDataSource.invoke(physical.connection,
+					method, args);
+			if (result instanceof Statement) {
+				return track((Statement) result, null, method.getReturnType());
+			}
+			return result;
+		}
+
+		private Object prepareCached(final Method method, final Object[] args)
+				throws Throwable {
+			final List<Object> key = new ArrayList<>(args.length + 1);
+			key.add(Arrays.asList(method.getParameterTypes()));
+			key.addAll(Arrays.asList(args));
+			CachedStatement cached = physical.statements.get(key);
+			if (cached != null && cached.evicted) {
+				physical.statements.remove(key);
+				cached = null;
+			}
+			if (cached == null || cached.inUse) {
+				statementCacheMisses.incrementAndGet();
+				final PreparedStatement statement = (PreparedStatement)
+						PooledDataSource.invoke(physical.connection, method, args);
+				if (cached != null) {
+					return track(statement, null, PreparedStatement.class);
+				}
+				cached = new CachedStatement(statement);
+				cached.saveSettings();
+				physical.statements.put(key, cached);
+			} else {
+				statementCacheHits.incrementAndGet();
+			}
+			cached.inUse = true;
+			return track(cached.statement, cached, PreparedStatement.class);
+		}
+
+		private Object track(final Statement statement,
+				final CachedStatement cached, final Class<?> type) {
+			final StatementHandle handle = new StatementHandle(this, statement,
+					cached, type);
+			statements.add(handle);
+			return handle.proxy;
+		}
+
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (final StatementHandle statement : statements) {
+				statement.close();
+			}
+			statements.clear();
+			giveBack(physical);
+		}
+
+	}
+
+	/**
+	 * A statement created through a connection handle. Closing a cached
+	 * statement returns it to the statement cache.
+	 */
+	private static final class StatementHandle implements InvocationHandler {
+
+		final ConnectionHandle connection;
+		final Statement statement;
+		final CachedStatement cached;
+		final Statement proxy;
+		boolean closed;
+
+		StatementHandle(final ConnectionHandle connection,
+				final Statement statement, final CachedStatement cached,
+				final Class<?> type) {
+			this.connection = connection;
+			this.statement = statement;
+			this.cached = cached;
+			proxy = (Statement) Proxy.newProxyInstance(
+					PooledDataSource.class.getClassLoader(),
+					new Class<?>[] { type }, this);
+		}
+
+		@Override
+		public Object invoke(final Object target, final Method method,
+				final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("close".equals(name)) {
+				close();
+				connection.statements.remove(this);
+				return null;
+			}
+			if ("isClosed".equals(name)) {
+				return Boolean.valueOf(closed);
+			}
+			if ("getConnection".equals(name)) {
+				return connection.proxy;
+			}
+			if ("equals".equals(name)) {
+				return Boolean.valueOf(target == args[0]);
+			}
+			if ("hashCode".equals(name)) {
+				return Integer.valueOf(System.identityHashCode(target));
+			}
+			if ("toString".equals(name)) {
+				return statement.toString();
+			}
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+			return PooledDataSource.invoke(statement, method, args);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (cached != null) {
+				cached.release();
+			} else {
+				CachedStatement.closeQuietly(statement);
+			}
+		}
+
+	}
+
+}
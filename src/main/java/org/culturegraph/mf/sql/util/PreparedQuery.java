@@ -15,31 +15,45 @@
  */
 package org.culturegraph.mf.sql.util;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.ParameterMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
 
 import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 
 /**
  * A class to simplify handling prepared statements.
+ * <p>
+ * Parameter values are bound as strings unless a type is declared for the
+ * parameter in the statement (e.g. {@code :id::int}) or type inference is
+ * switched on with {@link #setInferParameterTypes(boolean)}. Values of typed
+ * parameters are converted before they are passed to the driver.
  *
  * @author Christoph Böhme
  */
 public final class PreparedQuery extends QueryBase {
 
-	private static final Pattern PARAMETER = Pattern.compile(
-			":([a-zA-Z_]+[a-z-A-Z_0-9]*)");
+	public static final int NO_PARAMETER = ParameterPlan.NO_SLOT;
+
+	private static final String FEATURE_NOT_SUPPORTED_STATE = "HYC00";
 
 	private final PreparedStatement statement;
-	private final Map<String, List<Integer>> parameterMap = new HashMap<>();
+	private final ParameterPlan parameterPlan;
+	private final ParameterType[] bindingTypes;
+
+	private int batchedStatements;
+	private boolean createArrayUnsupported;
+	private int boundValueCount;
+	private long boundCharacterCount;
+	private Object[] capturedValues;
+	private CapturedParameters capturedParameters;
 
 	public PreparedQuery(final Connection connection, final String sql,
 			final boolean emitGeneratedKeys) {
@@ -48,51 +62,299 @@ public PreparedQuery(final Connection connection, final String sql,
 
 	public PreparedQuery(final Connection connection, final String sql,
 			final String idColumnLabel, final boolean emitGeneratedKeys) {
+		this(connection, ParameterPlan.forSql(sql), idColumnLabel,
+				emitGeneratedKeys);
+	}
+
+	/**
+	 * Creates a query in which each placeholder of the parameter
+	 * {@code repeatedParameter} is replaced by a comma-separated list of
+	 * {@code repetitions} placeholders. The values of the list are set with
+	 * {@link #setParameter(int, int, String)}. This allows to look up several
+	 * keys at once with statements such as
+	 * {@code SELECT * FROM t WHERE key IN (:_ID)}.
+	 *
+	 * @throws MetafactureException if the statement does not contain the
+	 * parameter
+	 */
+	public PreparedQuery(final Connection connection, final String sql,
+			final String idColumnLabel, final boolean emitGeneratedKeys,
+			final String repeatedParameter, final int repetitions) {
+		this(connection, repeatParameter(ParameterPlan.forSql(sql),
+				repeatedParameter, repetitions), idColumnLabel, emitGeneratedKeys);
+	}
+
+	PreparedQuery(final Connection connection,
+			final ParameterPlan parameterPlan, final String idColumnLabel,
+			final boolean emitGeneratedKeys) {
 		super(connection, idColumnLabel, emitGeneratedKeys);
-		final String mappedSql = initParameterMap(sql);
+		this.parameterPlan = parameterPlan;
 		try {
-			statement = connection.prepareStatement(mappedSql,
-					getAutoGeneratedKeysSetting());
+			statement = prepareStatement(parameterPlan.getSql());
 		} catch (final SQLException e) {
 			throw new MetafactureException(e);
 		}
 		configureWorkaroundsOn(statement);
+		bindingTypes = new ParameterType[parameterPlan.getParameterCount() + 1];
+		resolveBindingTypes(false);
+		captureValues(isLogging());
 	}
 
-	private String initParameterMap(final String sql) {
-		// TODO: Handle escape sequences. Exclude parameters within string literals
-		parameterMap.clear();
-		int pos = 1;
-		final Matcher parameters = PARAMETER.matcher(sql);
-		while (parameters.find()) {
-			final String parameter = parameters.group(1);
-			if (!parameterMap.containsKey(parameter)) {
-				parameterMap.put(parameter, new LinkedList<Integer>());
+	/**
+	 * Creates a query from an INSERT statement in which the row of the VALUES
+	 * list is repeated {@code rows} times. The value of a parameter for row
+	 * {@code i} is set with {@link #setParameter(int, int, String)}.
+	 *
+	 * @throws MetafactureException if the statement has no VALUES list or has
+	 * parameters outside of it
+	 */
+	public static PreparedQuery multiRowInsert(final Connection connection,
+			final String sql, final int rows) {
+		final ParameterPlan plan;
+		try {
+			plan = ParameterPlan.forSql(sql).repeatValuesRow(rows);
+		} catch (final IllegalArgumentException e) {
+			throw new MetafactureException(e.getMessage(), e);
+		}
+		return new PreparedQuery(connection, plan, DEFAULT_ID_COLUMN, false);
+	}
+
+	private static ParameterPlan repeatParameter(final ParameterPlan plan,
+			final String name, final int repetitions) {
+		try {
+			return plan.repeatParameter(name, repetitions);
+		} catch (final IllegalArgumentException e) {
+			throw new MetafactureException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Sets whether the types of parameters without a type annotation are
+	 * inferred from the {@link java.sql.ParameterMetaData} of the statement.
+	 * The types are resolved once when this method is called. Parameters
+	 * whose type the driver does not report are bound as strings.
+	 *
+	 * @param inferParameterTypes true to infer parameter types
+	 */
+	public void setInferParameterTypes(final boolean inferParameterTypes) {
+		resolveBindingTypes(inferParameterTypes);
+	}
+
+	/**
+	 * Returns the number of placeholders in the prepared statement.
+	 */
+	public int getParameterCount() {
+		return parameterPlan.getParameterCount();
+	}
+
+	ParameterType getBindingType(final int position) {
+		return bindingTypes[position];
+	}
+
+	private void resolveBindingTypes(final boolean infer) {
+		ParameterMetaData metaData = null;
+		if (infer) {
+			try {
+				metaData = statement.getParameterMetaData();
+			} catch (final SQLException e) {
+				// Driver cannot describe parameters. Bind values as strings.
+			}
+		}
+		for (int position = 1; position < bindingTypes.length; ++position) {
+			ParameterType type = parameterPlan.getDeclaredType(position);
+			if (type == null) {
+				type = inferType(metaData, position);
 			}
-			parameterMap.get(parameter).add(Integer.valueOf(pos));
-			pos += 1;
+			bindingTypes[position] = type;
+		}
+	}
+
+	private static ParameterType inferType(final ParameterMetaData metaData,
+			final int position) {
+		if (metaData == null) {
+			return ParameterType.STRING;
+		}
+		try {
+			return ParameterType.forSqlType(metaData.getParameterType(position),
+					metaData.getPrecision(position));
+		} catch (final SQLException e) {
+			return ParameterType.STRING;
+		}
+	}
+
+	/**
+	 * Sets the number of rows which are fetched from the database at once when
+	 * reading result sets. See {@link java.sql.Statement#setFetchSize(int)}.
+	 *
+	 * @param fetchSize number of rows to fetch. Zero lets the driver decide.
+	 */
+	public void setFetchSize(final int fetchSize) {
+		configureFetchSizeOn(statement, fetchSize);
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns in emitted records.
+	 * The default is {@link BinaryEncoding#DRIVER}.
+	 *
+	 * @param binaryEncoding encoding of binary values
+	 */
+	public void setBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		configureBinaryEncoding(binaryEncoding);
+	}
+
+	/**
+	 * Sets the metrics which receive the execution times, batch sizes, bound
+	 * values and result set statistics of this query. The default is
+	 * {@link QueryMetrics#NONE}.
+	 *
+	 * @param metrics metrics of the module using the query
+	 */
+	public void setMetrics(final QueryMetrics metrics) {
+		configureMetrics(metrics);
+	}
+
+	/**
+	 * Sets the log for slow statements. Parameter values are kept until the
+	 * next statement so that they can be logged. The default log is configured
+	 * by system properties (see {@link SlowQueryLog}).
+	 *
+	 * @param slowQueryLog log for slow statements
+	 */
+	public void setSlowQueryLog(final SlowQueryLog slowQueryLog) {
+		configureSlowQueryLog(slowQueryLog);
+		captureValues(isLogging());
+	}
+
+	private void captureValues(final boolean capture) {
+		if (!capture) {
+			capturedValues = null;
+			capturedParameters = null;
+		} else if (capturedValues == null) {
+			capturedValues = new Object[parameterPlan.getParameterCount() + 1];
+			capturedParameters = new CapturedParameters();
 		}
-		return parameters.replaceAll("?");
+	}
+
+	/**
+	 * Returns the parameter values captured for the slow query log or null if
+	 * values are not captured. The values are formatted by
+	 * {@code toString()}.
+	 */
+	Object getCapturedParameters() {
+		return capturedParameters;
 	}
 
 	public void execute() {
+		executeStatement();
+		completeStatement(parameterPlan.getSql(), capturedParameters);
+	}
+
+	public void execute(final StreamReceiver receiver) {
+		executeStatement();
+		processResults(statement, receiver);
+		completeStatement(parameterPlan.getSql(), capturedParameters);
+	}
+
+	private void executeStatement() {
+		reportBoundValues();
+		final long start = startMeasurement();
 		try {
 			statement.execute();
 		} catch (final SQLException e) {
+			endReadTransaction(false);
 			throw new MetafactureException(e);
 		}
+		recordExecution(start);
 	}
 
-	public void execute(final StreamReceiver receiver) {
-		execute();
-		processResults(statement, receiver);
+	/**
+	 * Adds the current parameter values to the batch of the statement. The batch
+	 * is sent to the database by calling {@link #executeBatch()}.
+	 */
+	public void addBatch() {
+		reportBoundValues();
+		try {
+			statement.addBatch();
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+		batchedStatements += 1;
+	}
+
+	/**
+	 * Executes all statements added to the batch since the last call of this
+	 * method.
+	 *
+	 * @return the update counts of the statements in the batch
+	 * @throws MetafactureException if the batch could not be executed. The
+	 * message reports which statements of the batch failed.
+	 */
+	public int[] executeBatch() {
+		final int batchSize = batchedStatements;
+		batchedStatements = 0;
+		if (batchSize == 0) {
+			return new int[0];
+		}
+		final long start = startMeasurement();
+		try {
+			final int[] updateCounts = statement.executeBatch();
+			recordBatch(parameterPlan.getSql(), batchSize, start);
+			return updateCounts;
+		} catch (final BatchUpdateException e) {
+			throw new MetafactureException(describeFailedBatch(batchSize,
+					e.getUpdateCounts()), e);
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+	}
+
+	private static String describeFailedBatch(final int batchSize,
+			final int[] updateCounts) {
+		if (updateCounts == null || updateCounts.length < batchSize) {
+			final int executed = updateCounts == null ? 0 : updateCounts.length;
+			return "Batch execution failed at statement " + (executed + 1) +
+					" of " + batchSize + "; " + executed +
+					" statements were executed before the failure";
+		}
+		int failed = 0;
+		int firstFailed = -1;
+		for (int i = 0; i < updateCounts.length; ++i) {
+			if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+				failed += 1;
+				if (firstFailed < 0) {
+					firstFailed = i + 1;
+				}
+			}
+		}
+		return "Batch execution failed: " + failed + " of " + batchSize +
+				" statements failed, the first failure was statement " + firstFailed;
+	}
+
+	public int getBatchedStatementCount() {
+		return batchedStatements;
 	}
 
 	public void close() {
 		close(statement);
 	}
 
+	/**
+	 * Asks the database to abort the statement if it is running. This method
+	 * may be called from another thread. Drivers which cannot cancel
+	 * statements are ignored.
+	 */
+	public void cancel() {
+		try {
+			statement.cancel();
+		} catch (final SQLException e) {
+			/* Ignore exception */
+		}
+	}
+
 	public void clearParameters() {
+		if (capturedValues != null) {
+			Arrays.fill(capturedValues, null);
+		}
 		try {
 			statement.clearParameters();
 		} catch (final SQLException e) {
@@ -100,18 +362,231 @@ public void clearParameters() {
 		}
 	}
 
+	/**
+	 * Returns the slot of the parameter {@code name}. Parameters can be set more
+	 * efficiently through their slot with {@link #setParameter(int, String)}
+	 * than through their name.
+	 *
+	 * @param name name of the parameter
+	 * @return the slot of the parameter or {@link #NO_PARAMETER} if the query
+	 * does not contain a parameter with this name.
+	 */
+	public int getParameterSlot(final String name) {
+		return parameterPlan.getSlot(name);
+	}
+
+	/**
+	 * Returns the number of distinct parameters of the query. Parameter slots
+	 * range from zero to this number minus one.
+	 */
+	public int getParameterSlotCount() {
+		return parameterPlan.getSlotCount();
+	}
+
 	public void setParameter(final String name, final String value) {
-		final List<Integer> paramPos = parameterMap.get(name);
-		if (paramPos == null) {
+		setParameter(parameterPlan.getSlot(name), value);
+	}
+
+	public void setParameter(final int slot, final String value) {
+		if (slot == NO_PARAMETER) {
 			return;
 		}
+		bind(slot, 0, 1, value);
+	}
+
+	/**
+	 * Sets one value of a parameter whose placeholders were repeated (see
+	 * {@link #PreparedQuery(Connection, String, String, boolean, String, int)}).
+	 *
+	 * @param slot slot of the parameter
+	 * @param index index of the placeholder within the list of repeated
+	 * placeholders
+	 * @param value value to bind
+	 */
+	public void setParameter(final int slot, final int index,
+			final String value) {
+		if (slot == NO_PARAMETER) {
+			return;
+		}
+		bind(slot, index, parameterPlan.getRepetitions(slot), value);
+	}
+
+	/**
+	 * Returns true if the parameter in {@code slot} was declared as array
+	 * parameter ({@code :name[]}).
+	 */
+	public boolean isArrayParameter(final int slot) {
+		if (slot == NO_PARAMETER) {
+			return false;
+		}
+		return parameterPlan.getArrayElementType(
+				parameterPlan.getPositions(slot)[0]) != null;
+	}
+
+	/**
+	 * Binds {@code values} to an array parameter using the element type
+	 * declared in the statement. Single values set with
+	 * {@link #setParameter(int, String)} are bound as array with one element.
+	 *
+	 * @param slot slot of the parameter
+	 * @param values elements of the array
+	 */
+	public void setArrayParameter(final int slot, final String[] values) {
+		if (slot == NO_PARAMETER) {
+			return;
+		}
+		setArrayParameter(slot, parameterPlan.getArrayElementType(
+				parameterPlan.getPositions(slot)[0]), values);
+	}
+
+	/**
+	 * Binds {@code values} as SQL array to all placeholders of a parameter.
+	 * The array is created with {@link Connection#createArrayOf(String,
+	 * Object[])}. If the driver does not support this method, the values are
+	 * passed to {@link PreparedStatement#setObject(int, Object)} instead.
+	 *
+	 * @param slot slot of the parameter
+	 * @param elementTypeName SQL type name of the array elements
+	 * @param values elements of the array
+	 */
+	public void setArrayParameter(final int slot, final String elementTypeName,
+			final String[] values) {
+		if (slot == NO_PARAMETER) {
+			return;
+		}
+		if (isMeasuring()) {
+			for (final String value : values) {
+				countBoundValue(value);
+			}
+		}
 		try {
-			for (final Integer pos : paramPos) {
-				statement.setString(pos.intValue(), value);
+			final Object array = createArray(elementTypeName, values);
+			for (final int position : parameterPlan.getPositions(slot)) {
+				statement.setObject(position, array);
+				if (capturedValues != null) {
+					capturedValues[position] = values;
+				}
 			}
 		} catch (final SQLException e) {
 			throw new MetafactureException(e);
 		}
 	}
 
+	private void bindArray(final int position, final String elementType,
+			final String value) {
+		try {
+			if (value == null) {
+				statement.setNull(position, Types.ARRAY);
+			} else {
+				statement.setObject(position, createArray(elementType,
+						new String[] { value }));
+			}
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+	}
+
+	private Object createArray(final String elementTypeName,
+			final String[] values) throws SQLException {
+		if (!createArrayUnsupported) {
+			try {
+				return getConnection().createArrayOf(elementTypeName, values);
+			} catch (final SQLFeatureNotSupportedException e) {
+				createArrayUnsupported = true;
+			} catch (final SQLException e) {
+				if (!FEATURE_NOT_SUPPORTED_STATE.equals(e.getSQLState())) {
+					throw e;
+				}
+				createArrayUnsupported = true;
+			}
+		}
+		return values;
+	}
+
+	private void countBoundValue(final String value) {
+		boundValueCount += 1;
+		if (value != null) {
+			boundCharacterCount += value.length();
+		}
+	}
+
+	private void reportBoundValues() {
+		if (boundValueCount > 0) {
+			getMetrics().parametersBound(boundValueCount, boundCharacterCount);
+			boundValueCount = 0;
+			boundCharacterCount = 0;
+		}
+	}
+
+	private void bind(final int slot, final int first, final int step,
+			final String value) {
+		if (isMeasuring()) {
+			countBoundValue(value);
+		}
+		final int[] positions = parameterPlan.getPositions(slot);
+		for (int i = first; i < positions.length; i += step) {
+			final int position = positions[i];
+			if (capturedValues != null) {
+				capturedValues[position] = value;
+			}
+			final String elementType = parameterPlan.getArrayElementType(position);
+			if (elementType != null) {
+				bindArray(position, elementType, value);
+				continue;
+			}
+			final ParameterType type = bindingTypes[position];
+			try {
+				type.bind(statement, position, value);
+			} catch (final IllegalArgumentException e) {
+				throw new MetafactureException("Cannot bind value '" + value +
+						"' to parameter '" + parameterPlan.getName(slot) + "' as " +
+						type, e);
+			} catch (final SQLException e) {
+				throw new MetafactureException(e);
+			}
+		}
+	}
+
+	/**
+	 * Formats the captured parameter values for the slow query log. The
+	 * values are only formatted if a statement is logged.
+	 */
+	private final class CapturedParameters {
+
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			for (int slot = 0; slot < parameterPlan.getSlotCount(); ++slot) {
+				if (slot > 0) {
+					builder.append(", ");
+				}
+				builder.append(parameterPlan.getName(slot)).append('=');
+				final int[] positions = parameterPlan.getPositions(slot);
+				if (positions.length == 1) {
+					appendValue(builder, capturedValues[positions[0]]);
+					continue;
+				}
+				builder.append('[');
+				for (int i = 0; i < positions.length; ++i) {
+					if (i > 0) {
+						builder.append(", ");
+					}
+					appendValue(builder, capturedValues[positions[i]]);
+				}
+				builder.append(']');
+			}
+			return builder.toString();
+		}
+
+		private void appendValue(final StringBuilder builder,
+				final Object value) {
+			if (value instanceof Object[]) {
+				builder.append(Arrays.toString((Object[]) value));
+			} else {
+				builder.append(value);
+			}
+		}
+
+	}
+
 }
@@ -16,14 +16,15 @@
 package org.culturegraph.mf.sql.util;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Set;
 
 import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.helpers.ForwardingStreamPipe;
 import org.culturegraph.mf.sql.util.JdbcUtil.Bug;
 
 /**
@@ -35,15 +36,27 @@ class QueryBase {
 
 	public static final String DEFAULT_ID_COLUMN = "_id";
 
+	private final Connection connection;
 	private final String idColumnLabel;
 	private final boolean emitGeneratedKeys;
 	private final Set<Bug> driverBugs;
 
+	private boolean readsInTransaction;
+	private BinaryEncoding binaryEncoding = BinaryEncoding.DRIVER;
+	private QueryMetrics metrics = QueryMetrics.NONE;
+	private SlowQueryLog slowQueryLog = SlowQueryLog.getDefault();
+	private boolean measuring;
+	private boolean logging;
+	private long executeNanos;
+	private long fetchNanos;
+
 	QueryBase(final Connection connection, final String idColumnLabel,
 			final boolean emitGeneratedKeys) {
+		this.connection = connection;
 		this.idColumnLabel = idColumnLabel;
 		this.emitGeneratedKeys = emitGeneratedKeys;
 		driverBugs = JdbcUtil.getDriverBugs(connection);
+		configureSlowQueryLog(slowQueryLog);
 	}
 
 	void configureWorkaroundsOn(final Statement statement) {
@@ -57,6 +70,134 @@ void configureWorkaroundsOn(final Statement statement) {
 		}
 	}
 
+	/**
+	 * Creates a prepared statement whose result sets are of type
+	 * {@code TYPE_FORWARD_ONLY} and {@code CONCUR_READ_ONLY}. Statements
+	 * returning generated keys use these settings by default.
+	 */
+	PreparedStatement prepareStatement(final String sql) throws SQLException {
+		final int autoGeneratedKeys = getAutoGeneratedKeysSetting();
+		if (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) {
+			return connection.prepareStatement(sql, autoGeneratedKeys);
+		}
+		return connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+	}
+
+	Connection getConnection() {
+		return connection;
+	}
+
+	Statement createStatement() throws SQLException {
+		return connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+	}
+
+	/**
+	 * Sets the number of rows fetched from the database in one go. A fetch size
+	 * of zero leaves the choice to the driver. Drivers which only use
+	 * server-side cursors within transactions are switched out of auto-commit
+	 * mode. Each read is then wrapped in its own transaction.
+	 */
+	void configureFetchSizeOn(final Statement statement, final int fetchSize) {
+		if (fetchSize <= 0 ||
+				hasDriverBug(Bug.RESULT_SET_STREAMING_ONLY_IF_FETCH_SIZE_IS_MIN_VALUE)) {
+			return;
+		}
+		try {
+			if (hasDriverBug(Bug.RESULT_SET_STREAMING_ONLY_WITHOUT_AUTO_COMMIT)
+					&& !readsInTransaction && connection.getAutoCommit()) {
+				connection.setAutoCommit(false);
+				readsInTransaction = true;
+			}
+			statement.setFetchSize(fetchSize);
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+	}
+
+	/**
+	 * Sets the encoding of the values of binary columns in emitted records.
+	 */
+	void configureBinaryEncoding(final BinaryEncoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	/**
+	 * Sets the metrics which receive the measurements of this query. No
+	 * measurements are taken if the metrics are {@link QueryMetrics#NONE}.
+	 */
+	void configureMetrics(final QueryMetrics queryMetrics) {
+		metrics = queryMetrics;
+		measuring = metrics != QueryMetrics.NONE || logging;
+	}
+
+	/**
+	 * Sets the log for slow statements. The default log is configured by
+	 * system properties (see {@link SlowQueryLog}).
+	 */
+	void configureSlowQueryLog(final SlowQueryLog log) {
+		slowQueryLog = log;
+		logging = log.isEnabled();
+		measuring = metrics != QueryMetrics.NONE || logging;
+	}
+
+	QueryMetrics getMetrics() {
+		return metrics;
+	}
+
+	boolean isMeasuring() {
+		return measuring;
+	}
+
+	/**
+	 * Returns true if statements are timed and parameter values are kept for
+	 * the slow query log.
+	 */
+	boolean isLogging() {
+		return logging;
+	}
+
+	/**
+	 * Returns the start time for a measurement or zero if no measurements are
+	 * taken.
+	 */
+	long startMeasurement() {
+		return measuring ? System.nanoTime() : 0;
+	}
+
+	void recordExecution(final long start) {
+		if (measuring) {
+			executeNanos = System.nanoTime() - start;
+			fetchNanos = 0;
+			metrics.statementExecuted(executeNanos);
+		}
+	}
+
+	void recordBatch(final String sql, final int statementCount,
+			final long start) {
+		if (measuring) {
+			final long nanos = System.nanoTime() - start;
+			metrics.batchExecuted(statementCount, nanos);
+			if (logging) {
+				slowQueryLog.logBatch(sql, statementCount, nanos);
+			}
+		}
+	}
+
+	/**
+	 * Passes the timings of the last statement to the slow query log. Must be
+	 * called after the results of the statement have been read.
+	 *
+	 * @param sql the statement
+	 * @param parameters bound parameter values or null
+	 */
+	void completeStatement(final String sql, final Object parameters) {
+		if (logging) {
+			slowQueryLog.log(sql, parameters, executeNanos, fetchNanos);
+		}
+	}
+
 	private void closeQuietly(final Statement statement) {
 		try {
 			statement.close();
@@ -75,9 +216,38 @@ int getAutoGeneratedKeysSetting() {
 
 	void processResults(final Statement statement,
 			final StreamReceiver receiver) {
-		processResultSet(statement, receiver);
-		if (emitGeneratedKeys) {
-			processGeneratedKeys(statement, receiver);
+		try {
+			processResultSet(statement, receiver);
+			if (emitGeneratedKeys) {
+				processGeneratedKeys(statement, receiver);
+			}
+		} catch (final RuntimeException e) {
+			endReadTransaction(false);
+			throw e;
+		}
+		endReadTransaction(true);
+	}
+
+	/**
+	 * Commits or rolls back the transaction which was started for reading
+	 * with a fetch size. Must also be called if executing the statement
+	 * failed, since the aborted transaction would break later statements.
+	 */
+	void endReadTransaction(final boolean commit) {
+		if (!readsInTransaction) {
+			return;
+		}
+		try {
+			if (commit) {
+				connection.commit();
+			} else {
+				connection.rollback();
+			}
+		} catch (final SQLException e) {
+			if (commit) {
+				throw new MetafactureException(e);
+			}
+			/* Ignore exception */
 		}
 	}
 
@@ -112,26 +282,39 @@ private void processGeneratedKeys(Statement statement,
 
 	private void emitRecords(final ResultSet resultSet,
 			final StreamReceiver receiver) {
+		if (!measuring) {
+			readRecords(resultSet, receiver);
+			return;
+		}
+		final long start = System.nanoTime();
+		final TimingReceiver timingReceiver = new TimingReceiver();
+		timingReceiver.setReceiver(receiver);
+		readRecords(resultSet, timingReceiver);
+		final long fetch = System.nanoTime() - start - timingReceiver.nanos;
+		fetchNanos += fetch;
+		metrics.resultSetRead(timingReceiver.records, fetch, timingReceiver.nanos);
+	}
+
+	private void readRecords(final ResultSet resultSet,
+			final StreamReceiver receiver) {
 		try {
-			boolean hasIdColumnLabel = false;
-			final ResultSetMetaData resultSetMeta = resultSet.getMetaData();
-			for (int i = 1; i <= resultSetMeta.getColumnCount(); ++i) {
-				if (idColumnLabel.equalsIgnoreCase(resultSetMeta.getColumnLabel(i))) {
-					hasIdColumnLabel = true;
-					break;
-				}
-			}
+			final ResultColumns columns = ResultColumns.read(
+					resultSet.getMetaData(), idColumnLabel, binaryEncoding);
+			final String[] labels = columns.getLabels();
+			final ColumnReader[] readers = columns.getReaders();
+			final int columnCount = columns.getColumnCount();
+			final int idColumn = columns.getIdColumn();
 
 			while (resultSet.next()) {
-				if (hasIdColumnLabel) {
-					receiver.startRecord(resultSet.getString(idColumnLabel));
+				if (idColumn != ResultColumns.NO_ID_COLUMN) {
+					receiver.startRecord(resultSet.getString(idColumn));
 				} else {
 					receiver.startRecord("");
 				}
-				for (int i = 1; i <= resultSetMeta.getColumnCount(); ++i) {
-					final String value = resultSet.getString(i);
+				for (int i = 1; i <= columnCount; ++i) {
+					final String value = readers[i].read(resultSet, i);
 					if (value != null) {
-						receiver.literal(resultSetMeta.getColumnLabel(i), value);
+						receiver.literal(labels[i], value);
 					}
 				}
 				receiver.endRecord();
@@ -145,9 +328,45 @@ private boolean hasDriverBug(final Bug bug) {
 		return driverBugs.contains(bug);
 	}
 
+	/**
+	 * Measures the time spent in the downstream receiver.
+	 */
+	private static final class TimingReceiver extends ForwardingStreamPipe {
+
+		long records;
+		long nanos;
+
+		@Override
+		public void startRecord(final String id) {
+			final long start = System.nanoTime();
+			super.startRecord(id);
+			records += 1;
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void endRecord() {
+			final long start = System.nanoTime();
+			super.endRecord();
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			final long start = System.nanoTime();
+			super.literal(name, value);
+			nanos += System.nanoTime() - start;
+		}
+
+	}
+
 	protected void close(final Statement statement) {
 		try {
 			statement.close();
+			if (readsInTransaction) {
+				connection.setAutoCommit(true);
+				readsInTransaction = false;
+			}
 		} catch (final SQLException e) {
 			throw new MetafactureException(e);
 		}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+/**
+ * Receives measurements from the queries of a module. Durations are in
+ * nanoseconds. Implementations must be thread-safe because queries of
+ * several module instances may report to the same object. All methods do
+ * nothing by default.
+ * <p>
+ * Queries only take measurements if their metrics are not {@link #NONE}, so
+ * that unused metrics do not slow down the modules.
+ *
+ * @author Christoph Böhme
+ * @see Metrics
+ */
+public interface QueryMetrics {
+
+	/**
+	 * Metrics which discard all measurements.
+	 */
+	QueryMetrics NONE = new QueryMetrics() { };
+
+	/**
+	 * Called after a statement was executed.
+	 *
+	 * @param nanos time spent waiting for the driver to execute the statement
+	 */
+	default void statementExecuted(final long nanos) { }
+
+	/**
+	 * Called after a batch of statements was executed.
+	 *
+	 * @param statementCount number of statements in the batch
+	 * @param nanos time spent waiting for the driver to execute the batch
+	 */
+	default void batchExecuted(final int statementCount, final long nanos) { }
+
+	/**
+	 * Called before a statement is executed or added to a batch with the
+	 * parameter values bound since the last call.
+	 *
+	 * @param valueCount number of values bound
+	 * @param characterCount total length of the values bound
+	 */
+	default void parametersBound(final int valueCount,
+			final long characterCount) { }
+
+	/**
+	 * Called after all rows of a result set were emitted.
+	 *
+	 * @param rowCount number of rows emitted as records
+	 * @param fetchNanos time spent fetching and reading rows
+	 * @param emitNanos time spent in the downstream receiver
+	 */
+	default void resultSetRead(final long rowCount, final long fetchNanos,
+			final long emitNanos) { }
+
+}
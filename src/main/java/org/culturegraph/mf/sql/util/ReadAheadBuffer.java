@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+
+/**
+ * Decouples reading a result set from processing its records. The records
+ * are produced on a background thread and buffered in a bounded queue from
+ * which the calling thread passes them to the receiver. While the receiver
+ * is busy, the producer already fetches the next rows.
+ * <p>
+ * Records are buffered as {@link Record} objects. If reuse is enabled, the
+ * records are returned to a pool after they have been sent to the receiver
+ * and their arrays are reused for later rows.
+ * <p>
+ * Only one transfer can run at a time. The buffer is not thread-safe.
+ *
+ * @author Christoph Böhme
+ */
+public final class ReadAheadBuffer {
+
+	private static final Record END_OF_RESULTS = new Record(null);
+	private static final long OFFER_TIMEOUT = 100;
+	private static final long CLOSE_TIMEOUT = 10;
+
+	private final int depth;
+	private final boolean reuseRecords;
+	private final BlockingQueue<Record> freeRecords;
+
+	private ExecutorService executor;
+
+	/**
+	 * Creates a buffer for {@code depth} records.
+	 *
+	 * @param depth maximum number of records read ahead
+	 * @param reuseRecords true to reuse record objects
+	 */
+	public ReadAheadBuffer(final int depth, final boolean reuseRecords) {
+		this.depth = depth;
+		this.reuseRecords = reuseRecords;
+		freeRecords = new ArrayBlockingQueue<>(depth + 1);
+	}
+
+	/**
+	 * Runs {@code producer} on a background thread and sends the records it
+	 * produces to {@code receiver} on the calling thread. Returns when all
+	 * records have been sent. Entities produced by {@code producer} are not
+	 * preserved.
+	 *
+	 * @param producer writes records into the stream receiver it is given
+	 * @param receiver receiver of the records
+	 * @throws MetafactureException if the producer fails
+	 */
+	public void transfer(final Consumer<StreamReceiver> producer,
+			final StreamReceiver receiver) {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "sql-read-ahead");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		final Producer task = new Producer(producer);
+		executor.execute(task);
+		try {
+			Record record = task.take();
+			while (record != END_OF_RESULTS) {
+				record.replay(receiver);
+				if (reuseRecords) {
+					freeRecords.offer(record);
+				}
+				record = task.take();
+			}
+		} catch (final RuntimeException e) {
+			task.cancel();
+			throw e;
+		}
+		if (task.error != null) {
+			throw new MetafactureException("Reading results failed", task.error);
+		}
+	}
+
+	/**
+	 * Stops the background thread. Waits for a cancelled producer to finish
+	 * so that the connection it uses can be closed safely.
+	 */
+	public void close() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+	}
+
+	/**
+	 * Collects the records of the producer on the background thread. Each
+	 * transfer has its own queue so that a cancelled producer cannot pass
+	 * records to a later transfer.
+	 */
+	private final class Producer extends DefaultStreamReceiver
+			implements Runnable {
+
+		private final Consumer<StreamReceiver> producer;
+		private final BlockingQueue<Record> filledRecords =
+				new ArrayBlockingQueue<>(depth);
+
+		private volatile boolean cancelled;
+		private volatile Throwable error;
+		private Record currentRecord;
+
+		Producer(final Consumer<StreamReceiver> producer) {
+			this.producer = producer;
+		}
+
+		@Override
+		public void run() {
+			try {
+				producer.accept(this);
+			} catch (final Throwable e) {
+				// Errors must be reported as well. Otherwise the results would
+				// silently end at the failed row:
+				if (!cancelled) {
+					error = e;
+				}
+			} finally {
+				put(END_OF_RESULTS);
+			}
+		}
+
+		Record take() {
+			try {
+				return filledRecords.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			filledRecords.clear();
+		}
+
+		@Override
+		public void startRecord(final String id) {
+			if (cancelled) {
+				throw new MetafactureException("Reading results was cancelled");
+			}
+			currentRecord = reuseRecords ? freeRecords.poll() : null;
+			if (currentRecord == null) {
+				currentRecord = new Record(id);
+			} else {
+				currentRecord.reset(id);
+			}
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			currentRecord.addLiteral(name, value);
+		}
+
+		@Override
+		public void endRecord() {
+			put(currentRecord);
+			currentRecord = null;
+		}
+
+		private void put(final Record record) {
+			try {
+				while (!cancelled) {
+					if (filledRecords.offer(record, OFFER_TIMEOUT,
+							TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.Arrays;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+
+/**
+ * A buffered record consisting of an id and a list of literals. Entities are
+ * not preserved; literals within entities are stored without the entity
+ * name just as the SQL modules process them.
+ *
+ * @author Christoph Böhme
+ */
+public final class Record {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String id;
+	private String[] literals = new String[INITIAL_CAPACITY];
+	private int literalCount;
+
+	public Record(final String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Removes all literals from the record and sets a new id so that the record
+	 * object can be reused.
+	 *
+	 * @param newId the id of the record
+	 */
+	public void reset(final String newId) {
+		Arrays.fill(literals, 0, literalCount * 2, null);
+		id = newId;
+		literalCount = 0;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void addLiteral(final String name, final String value) {
+		final int index = literalCount * 2;
+		if (index == literals.length) {
+			literals = Arrays.copyOf(literals, literals.length * 2);
+		}
+		literals[index] = name;
+		literals[index + 1] = value;
+		literalCount += 1;
+	}
+
+	public int getLiteralCount() {
+		return literalCount;
+	}
+
+	public String getLiteralName(final int index) {
+		return literals[index * 2];
+	}
+
+	public String getLiteralValue(final int index) {
+		return literals[index * 2 + 1];
+	}
+
+	/**
+	 * Sends the record to {@code receiver}.
+	 *
+	 * @param receiver the receiver of the record events
+	 */
+	public void replay(final StreamReceiver receiver) {
+		receiver.startRecord(id);
+		for (int i = 0; i < literalCount * 2; i += 2) {
+			receiver.literal(literals[i], literals[i + 1]);
+		}
+		receiver.endRecord();
+	}
+
+}
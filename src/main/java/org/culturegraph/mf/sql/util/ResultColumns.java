@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Column metadata of a result set. The metadata is read once when a result set
+ * is opened so that rows can be processed by column index only.
+ *
+ * @author Christoph Böhme
+ */
+final class ResultColumns {
+
+	static final int NO_ID_COLUMN = 0;
+
+	private final String[] labels;
+	private final ColumnReader[] readers;
+	private final int idColumn;
+
+	private ResultColumns(final String[] labels, final ColumnReader[] readers,
+			final int idColumn) {
+		this.labels = labels;
+		this.readers = readers;
+		this.idColumn = idColumn;
+	}
+
+	static ResultColumns read(final ResultSetMetaData resultSetMeta,
+			final String idColumnLabel) throws SQLException {
+		return read(resultSetMeta, idColumnLabel, BinaryEncoding.DRIVER);
+	}
+
+	static ResultColumns read(final ResultSetMetaData resultSetMeta,
+			final String idColumnLabel, final BinaryEncoding binaryEncoding)
+			throws SQLException {
+		final int columnCount = resultSetMeta.getColumnCount();
+		final String[] labels = new String[columnCount + 1];
+		final ColumnReader[] readers = new ColumnReader[columnCount + 1];
+		int idColumn = NO_ID_COLUMN;
+		for (int i = 1; i <= columnCount; ++i) {
+			labels[i] = resultSetMeta.getColumnLabel(i);
+			readers[i] = ColumnReader.forType(resultSetMeta.getColumnType(i),
+					resultSetMeta.isSigned(i), binaryEncoding);
+			if (idColumn == NO_ID_COLUMN && idColumnLabel.equalsIgnoreCase(labels[i])) {
+				idColumn = i;
+			}
+		}
+		return new ResultColumns(labels, readers, idColumn);
+	}
+
+	int getColumnCount() {
+		return labels.length - 1;
+	}
+
+	/**
+	 * Returns the labels of the columns. The array is indexed like the columns
+	 * of the result set, i.e. the first label is at index 1.
+	 */
+	String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Returns the readers which convert the column values to literal values.
+	 * The array is indexed like the columns of the result set.
+	 */
+	ColumnReader[] getReaders() {
+		return readers;
+	}
+
+	/**
+	 * Returns the index of the id column or {@link #NO_ID_COLUMN} if the result
+	 * set does not contain an id column.
+	 */
+	int getIdColumn() {
+		return idColumn;
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs statements which take longer than a threshold and a random sample of
+ * all statements. Entries contain the SQL, the bound parameter values and the
+ * time spent executing the statement and fetching its results. Slow
+ * statements are logged as warnings, sampled statements as info messages.
+ * <p>
+ * The default log is configured with the system properties
+ * {@value #THRESHOLD_PROPERTY} (threshold in milliseconds) and
+ * {@value #SAMPLE_PERCENTAGE_PROPERTY}. If neither is set, the log is disabled
+ * and queries neither take timings nor keep their parameter values.
+ *
+ * @author Christoph Böhme
+ */
+public final class SlowQueryLog {
+
+	public static final String THRESHOLD_PROPERTY =
+			"org.culturegraph.mf.sql.slowQueryThreshold";
+	public static final String SAMPLE_PERCENTAGE_PROPERTY =
+			"org.culturegraph.mf.sql.slowQuerySamplePercentage";
+
+	public static final SlowQueryLog DISABLED = new SlowQueryLog(0, 0);
+
+	private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+	private static final SlowQueryLog DEFAULT = createDefault();
+
+	private final long thresholdNanos;
+	private final double sampleRate;
+
+	/**
+	 * Creates a log.
+	 *
+	 * @param thresholdMillis statements taking at least this time are logged.
+	 *                        Zero disables logging of slow statements
+	 * @param samplePercentage percentage of all statements which is logged
+	 */
+	public SlowQueryLog(final long thresholdMillis,
+			final double samplePercentage) {
+		thresholdNanos = thresholdMillis > 0 ?
+				TimeUnit.MILLISECONDS.toNanos(thresholdMillis) : Long.MAX_VALUE;
+		sampleRate = samplePercentage / 100.0;
+	}
+
+	private static SlowQueryLog createDefault() {
+		final String threshold = System.getProperty(THRESHOLD_PROPERTY);
+		final String samplePercentage =
+				System.getProperty(SAMPLE_PERCENTAGE_PROPERTY);
+		if (threshold == null && samplePercentage == null) {
+			return DISABLED;
+		}
+		try {
+			return new SlowQueryLog(
+					threshold == null ? 0 : Long.parseLong(threshold.trim()),
+					samplePercentage == null ? 0 :
+							Double.parseDouble(samplePercentage.trim()));
+		} catch (final NumberFormatException e) {
+			LOG.warn("Invalid slow query log settings; logging is disabled", e);
+			return DISABLED;
+		}
+	}
+
+	/**
+	 * Returns the log configured by system properties.
+	 */
+	public static SlowQueryLog getDefault() {
+		return DEFAULT;
+	}
+
+	public boolean isEnabled() {
+		return thresholdNanos != Long.MAX_VALUE || sampleRate > 0;
+	}
+
+	/**
+	 * Logs a statement if it was slow or is part of the sample.
+	 *
+	 * @param sql the statement
+	 * @param parameters bound parameter values. They are only converted to a
+	 *                   string if the statement is logged
+	 * @param executeNanos time spent executing the statement
+	 * @param fetchNanos time spent reading the results
+	 * @return true if the statement was logged
+	 */
+	boolean log(final String sql, final Object parameters,
+			final long executeNanos, final long fetchNanos) {
+		if (executeNanos + fetchNanos >= thresholdNanos) {
+			LOG.warn("Slow statement (execute {} ms, fetch {} ms): {}; " +
+					"parameters: {}", toMillis(executeNanos), toMillis(fetchNanos),
+					sql, parameters);
+			return true;
+		}
+		if (isSampled()) {
+			LOG.info("Sampled statement (execute {} ms, fetch {} ms): {}; " +
+					"parameters: {}", toMillis(executeNanos), toMillis(fetchNanos),
+					sql, parameters);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Logs a batch if it was slow or is part of the sample. Parameter values
+	 * of batches are not logged.
+	 *
+	 * @return true if the batch was logged
+	 */
+	boolean logBatch(final String sql, final int statementCount,
+			final long executeNanos) {
+		if (executeNanos >= thresholdNanos) {
+			LOG.warn("Slow batch of {} statements (execute {} ms): {}",
+					Integer.valueOf(statementCount), toMillis(executeNanos), sql);
+			return true;
+		}
+		if (isSampled()) {
+			LOG.info("Sampled batch of {} statements (execute {} ms): {}",
+					Integer.valueOf(statementCount), toMillis(executeNanos), sql);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean isSampled() {
+		return sampleRate > 0 &&
+				ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	private static Long toMillis(final long nanos) {
+		return Long.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+}
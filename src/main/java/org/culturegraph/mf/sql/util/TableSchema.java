@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Column metadata of a table. The metadata is read once from the
+ * {@link DatabaseMetaData} of the connection. Columns are numbered from zero
+ * in the order of the table definition and looked up by name ignoring case.
+ * <p>
+ * The table name may be qualified with a schema ({@code schema.table}).
+ * Otherwise the table is looked up in the current schema and catalog of the
+ * connection. Column names are quoted in generated statements so that
+ * mixed-case and reserved column names work.
+ * <p>
+ * The schema generates INSERT statements for arbitrary subsets of the columns.
+ * The value of column {@code i} is passed as parameter
+ * {@link #getParameterName(int)}. The statements prepared by
+ * {@link #prepareInsert(Connection, BitSet)} bind the values of
+ * non-character columns with typed setters.
+ *
+ * @author Christoph Böhme
+ */
+public final class TableSchema {
+
+	public static final int NO_COLUMN = -1;
+
+	private static final String ARRAY_TYPE_PREFIX = "_";
+	private static final String ARRAY_TYPE_SUFFIX = "[]";
+	private static final String DEFAULT_ELEMENT_TYPE = "VARCHAR";
+	private static final int CASE_ATTEMPTS = 3;
+
+	private final String table;
+	private final String quote;
+	private final String[] names;
+	private final int[] types;
+	private final int[] sizes;
+	private final String[] typeNames;
+	private final Map<String, Integer> indices;
+
+	private TableSchema(final String table, final String quote,
+			final List<String> names, final List<Integer> types,
+			final List<Integer> sizes, final List<String> typeNames) {
+		this.table = table;
+		this.quote = quote;
+		this.names = names.toArray(new String[names.size()]);
+		this.types = new int[types.size()];
+		this.sizes = new int[sizes.size()];
+		this.typeNames = typeNames.toArray(new String[typeNames.size()]);
+		indices = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < this.names.length; ++i) {
+			this.types[i] = types.get(i).intValue();
+			this.sizes[i] = sizes.get(i).intValue();
+			indices.put(this.names[i], Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * Reads the columns of {@code table}. If the database stores unquoted
+	 * identifiers in upper or lower case, the schema and table name are looked
+	 * up in this case as well.
+	 *
+	 * @param connection connection to the database
+	 * @param table name of the table
+	 * @return the schema of the table
+	 * @throws MetafactureException if the table does not exist
+	 */
+	public static TableSchema read(final Connection connection,
+			final String table) {
+		final int separator = table.lastIndexOf('.');
+		try {
+			final DatabaseMetaData metaData = connection.getMetaData();
+			final String catalog = connection.getCatalog();
+			final String schemaName = separator < 0 ?
+					getCurrentSchema(connection) : table.substring(0, separator);
+			final String tableName = table.substring(separator + 1);
+			for (int i = 0; i < CASE_ATTEMPTS; ++i) {
+				final TableSchema schema = read(metaData, table, catalog,
+						changeCase(schemaName, i), changeCase(tableName, i));
+				if (schema != null) {
+					return schema;
+				}
+			}
+		} catch (final SQLException e) {
+			throw new MetafactureException(e);
+		}
+		throw new MetafactureException("Table not found: " + table);
+	}
+
+	private static String getCurrentSchema(final Connection connection) {
+		try {
+			return connection.getSchema();
+		} catch (final SQLException | AbstractMethodError e) {
+			// Driver predates JDBC 4.1
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the name unchanged, in upper case or in lower case for the
+	 * attempts 0, 1 and 2.
+	 */
+	private static String changeCase(final String name, final int attempt) {
+		if (name == null || attempt == 0) {
+			return name;
+		}
+		return attempt == 1 ? name.toUpperCase(Locale.ROOT) :
+				name.toLowerCase(Locale.ROOT);
+	}
+
+	private static TableSchema read(final DatabaseMetaData metaData,
+			final String table, final String catalog, final String schemaName,
+			final String tableName) throws SQLException {
+		final String escape = metaData.getSearchStringEscape();
+		final List<String> names = new ArrayList<>();
+		final List<Integer> types = new ArrayList<>();
+		final List<Integer> sizes = new ArrayList<>();
+		final List<String> typeNames = new ArrayList<>();
+		try (ResultSet columns = metaData.getColumns(catalog,
+				escapePattern(schemaName, escape), escapePattern(tableName, escape),
+				null)) {
+			while (columns.next()) {
+				names.add(columns.getString("COLUMN_NAME"));
+				types.add(Integer.valueOf(columns.getInt("DATA_TYPE")));
+				sizes.add(Integer.valueOf(columns.getInt("COLUMN_SIZE")));
+				typeNames.add(columns.getString("TYPE_NAME"));
+			}
+		}
+		if (names.isEmpty()) {
+			return null;
+		}
+		String quote = metaData.getIdentifierQuoteString();
+		if (quote == null || quote.trim().isEmpty()) {
+			quote = "";
+		}
+		return new TableSchema(table, quote, names, types, sizes,
+				typeNames);
+	}
+
+	/**
+	 * Escapes the wildcards {@code _} and {@code %} so that names are matched
+	 * literally by {@link DatabaseMetaData#getColumns}.
+	 */
+	private static String escapePattern(final String name, final String escape) {
+		if (name == null || escape == null || escape.isEmpty()) {
+			return name;
+		}
+		final StringBuilder pattern = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); ++i) {
+			final char c = name.charAt(i);
+			if (c == '_' || c == '%' || escape.indexOf(c) >= 0) {
+				pattern.append(escape);
+			}
+			pattern.append(c);
+		}
+		return pattern.toString();
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public int getColumnCount() {
+		return names.length;
+	}
+
+	public String getColumnName(final int column) {
+		return names[column];
+	}
+
+	/**
+	 * Returns the index of the column {@code name} or {@link #NO_COLUMN} if the
+	 * table has no such column. Case is ignored.
+	 */
+	public int getColumnIndex(final String name) {
+		final Integer index = indices.get(name);
+		return index == null ? NO_COLUMN : index.intValue();
+	}
+
+	public boolean isArrayColumn(final int column) {
+		return types[column] == Types.ARRAY;
+	}
+
+	/**
+	 * Returns the type name of the elements of an array column as expected by
+	 * {@link Connection#createArrayOf(String, Object[])}. PostgreSQL reports
+	 * array types as {@code _type}, other databases as {@code type[]}. If the
+	 * element type is not part of the type name, {@code VARCHAR} is returned.
+	 */
+	public String getElementTypeName(final int column) {
+		final String typeName = typeNames[column];
+		if (typeName == null) {
+			return DEFAULT_ELEMENT_TYPE;
+		}
+		if (typeName.startsWith(ARRAY_TYPE_PREFIX)) {
+			return typeName.substring(ARRAY_TYPE_PREFIX.length());
+		}
+		if (typeName.endsWith(ARRAY_TYPE_SUFFIX)) {
+			return typeName.substring(0,
+					typeName.length() - ARRAY_TYPE_SUFFIX.length());
+		}
+		return DEFAULT_ELEMENT_TYPE;
+	}
+
+	/**
+	 * Returns the name of the parameter which receives the value of
+	 * {@code column} in statements created by {@link #createInsert(BitSet)}.
+	 */
+	public static String getParameterName(final int column) {
+		return "c" + column;
+	}
+
+	/**
+	 * Creates an INSERT statement for the columns whose bits are set in
+	 * {@code columns}.
+	 *
+	 * @param columns indices of the columns to insert
+	 * @return INSERT statement with named parameters
+	 */
+	public String createInsert(final BitSet columns) {
+		final StringBuilder columnList = new StringBuilder();
+		final StringBuilder valueList = new StringBuilder();
+		for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+			if (columnList.length() > 0) {
+				columnList.append(", ");
+				valueList.append(", ");
+			}
+			appendQuoted(columnList, names[i]);
+			valueList.append(':').append(getParameterName(i));
+		}
+		return "INSERT INTO " + table + " (" + columnList + ") VALUES (" +
+				valueList + ")";
+	}
+
+	/**
+	 * Prepares the INSERT statement created by {@link #createInsert(BitSet)}.
+	 * The values of non-character columns are bound with typed setters.
+	 *
+	 * @param connection connection to the database
+	 * @param columns indices of the columns to insert
+	 * @return the prepared INSERT statement
+	 */
+	public PreparedQuery prepareInsert(final Connection connection,
+			final BitSet columns) {
+		ParameterPlan plan = ParameterPlan.forSql(createInsert(columns));
+		for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+			final ParameterType type = ParameterType.forSqlType(types[i],
+					sizes[i]);
+			if (type != ParameterType.STRING && !isArrayColumn(i)) {
+				plan = plan.declareType(getParameterName(i), type);
+			}
+		}
+		return new PreparedQuery(connection, plan, PreparedQuery.DEFAULT_ID_COLUMN,
+				false);
+	}
+
+	private void appendQuoted(final StringBuilder builder, final String name) {
+		if (quote.isEmpty()) {
+			builder.append(name);
+			return;
+		}
+		builder.append(quote).append(name.replace(quote, quote + quote))
+				.append(quote);
+	}
+
+}
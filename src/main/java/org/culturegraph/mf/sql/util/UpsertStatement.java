@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.sql.util.JdbcUtil.Dialect;
+
+/**
+ * Generates a statement which inserts a row or updates the existing row with
+ * the same key. The native upsert statement of the database dialect is used:
+ * <ul>
+ *   <li>PostgreSQL and SQLite:
+ *   {@code INSERT ... ON CONFLICT (...) DO UPDATE},
+ *   <li>MySQL: {@code INSERT ... ON DUPLICATE KEY UPDATE},
+ *   <li>H2: {@code MERGE INTO ... KEY (...)}.
+ * </ul>
+ * The values are passed as named parameters. All parameters are in the
+ * VALUES list of the statement. For PostgreSQL and SQLite the key columns
+ * must have a unique constraint; for MySQL any unique index is used.
+ *
+ * @author Christoph Böhme
+ */
+public final class UpsertStatement {
+
+	private final String table;
+	private final List<String> keyColumns = new ArrayList<>();
+	private final List<String> valueColumns = new ArrayList<>();
+	private final List<String> parameters = new ArrayList<>();
+
+	public UpsertStatement(final String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Adds a column which identifies the row. Key columns are added before
+	 * value columns to the column list of the statement.
+	 *
+	 * @param column name of the column
+	 * @param parameter name of the parameter holding the value
+	 * @return this object
+	 */
+	public UpsertStatement addKeyColumn(final String column,
+			final String parameter) {
+		keyColumns.add(column);
+		parameters.add(keyColumns.size() - 1, parameter);
+		return this;
+	}
+
+	/**
+	 * Adds a column which is updated if the row exists.
+	 *
+	 * @param column name of the column
+	 * @param parameter name of the parameter holding the value
+	 * @return this object
+	 */
+	public UpsertStatement addValueColumn(final String column,
+			final String parameter) {
+		valueColumns.add(column);
+		parameters.add(parameter);
+		return this;
+	}
+
+	/**
+	 * Returns the upsert statement for {@code dialect}.
+	 *
+	 * @throws MetafactureException if no key column was added or if the
+	 * dialect has no upsert statement
+	 */
+	public String toSql(final Dialect dialect) {
+		if (keyColumns.isEmpty()) {
+			throw new MetafactureException("Upsert requires key columns");
+		}
+		final StringBuilder sql = new StringBuilder();
+		switch (dialect) {
+		case POSTGRESQL:
+		case SQLITE:
+			appendInsert(sql);
+			sql.append(" ON CONFLICT (");
+			appendList(sql, keyColumns, "");
+			if (valueColumns.isEmpty()) {
+				sql.append(") DO NOTHING");
+			} else {
+				sql.append(") DO UPDATE SET ");
+				appendAssignments(sql, "EXCLUDED.", "");
+			}
+			break;
+		case MYSQL:
+			appendInsert(sql);
+			sql.append(" ON DUPLICATE KEY UPDATE ");
+			if (valueColumns.isEmpty()) {
+				sql.append(keyColumns.get(0)).append(" = ").append(keyColumns.get(0));
+			} else {
+				appendAssignments(sql, "VALUES(", ")");
+			}
+			break;
+		case H2:
+			sql.append("MERGE INTO ").append(table);
+			appendColumns(sql);
+			sql.append(" KEY (");
+			appendList(sql, keyColumns, "");
+			sql.append(')');
+			appendValues(sql);
+			break;
+		default:
+			throw new MetafactureException("Upsert is not supported for " +
+					"dialect " + dialect);
+		}
+		return sql.toString();
+	}
+
+	private void appendInsert(final StringBuilder sql) {
+		sql.append("INSERT INTO ").append(table);
+		appendColumns(sql);
+		appendValues(sql);
+	}
+
+	private void appendColumns(final StringBuilder sql) {
+		sql.append(" (");
+		appendList(sql, keyColumns, "");
+		if (!valueColumns.isEmpty()) {
+			sql.append(", ");
+			appendList(sql, valueColumns, "");
+		}
+		sql.append(')');
+	}
+
+	private void appendValues(final StringBuilder sql) {
+		sql.append(" VALUES (");
+		appendList(sql, parameters, ":");
+		sql.append(')');
+	}
+
+	private void appendAssignments(final StringBuilder sql, final String prefix,
+			final String suffix) {
+		for (int i = 0; i < valueColumns.size(); ++i) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			final String column = valueColumns.get(i);
+			sql.append(column).append(" = ").append(prefix).append(column)
+					.append(suffix);
+		}
+	}
+
+	private static void appendList(final StringBuilder sql,
+			final List<String> items, final String prefix) {
+		for (int i = 0; i < items.size(); ++i) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(prefix).append(items.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Passes items to a writer which runs on a dedicated thread. Items are
+ * buffered in a bounded queue; {@link #put(Object)} blocks if the queue is
+ * full.
+ * <p>
+ * If the writer fails, the remaining items are discarded. The error is
+ * thrown by the next call of {@link #put(Object)} or by {@link #close()}.
+ * <p>
+ * The queue reports its depth and the lag of the writer, i.e. the time
+ * between queueing and writing the most recently written item.
+ *
+ * @param <T> type of the items
+ *
+ * @author Christoph Böhme
+ */
+public final class WriteBehindQueue<T> {
+
+	private static final Entry<Object> END_OF_QUEUE = new Entry<>(null, 0);
+
+	private final BlockingQueue<Entry<T>> queue;
+	private final Consumer<T> writer;
+	private final Thread thread;
+	private final AtomicReference<Throwable> error = new AtomicReference<>();
+	private final AtomicLong writtenCount = new AtomicLong();
+
+	private long queuedCount;
+	private volatile long lag;
+	private boolean closed;
+
+	/**
+	 * Creates a queue and starts the writer thread.
+	 *
+	 * @param name name of the writer thread
+	 * @param capacity maximum number of queued items
+	 * @param writer writes an item
+	 */
+	public WriteBehindQueue(final String name, final int capacity,
+			final Consumer<T> writer) {
+		this.writer = writer;
+		queue = new ArrayBlockingQueue<>(capacity);
+		thread = new Thread(this::writeItems, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues {@code item} for writing.
+	 *
+	 * @throws MetafactureException if the writer failed
+	 */
+	public void put(final T item) {
+		throwIfFailed();
+		enqueue(new Entry<>(item, System.nanoTime()));
+		queuedCount += 1;
+	}
+
+	/**
+	 * Waits until all queued items have been written and stops the writer
+	 * thread.
+	 *
+	 * @throws MetafactureException if the writer failed
+	 */
+	@SuppressWarnings("unchecked")
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		enqueue((Entry<T>) (Entry<?>) END_OF_QUEUE);
+		try {
+			thread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		}
+		throwIfFailed();
+	}
+
+	/**
+	 * Returns the number of items waiting in the queue.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of items which were queued but not yet written.
+	 * Unlike {@link #getQueueDepth()} this includes the item which is being
+	 * written.
+	 */
+	public long getPendingCount() {
+		return queuedCount - writtenCount.get();
+	}
+
+	/**
+	 * Returns the time in milliseconds between queueing and writing the most
+	 * recently written item.
+	 */
+	public long getLag() {
+		return TimeUnit.NANOSECONDS.toMillis(lag);
+	}
+
+	private void enqueue(final Entry<T> entry) {
+		try {
+			queue.put(entry);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		}
+	}
+
+	private void throwIfFailed() {
+		final Throwable firstError = error.get();
+		if (firstError != null) {
+			throw new MetafactureException("Write-behind failed", firstError);
+		}
+	}
+
+	/**
+	 * Consumes items until the end of the queue is reached, even after the
+	 * writer failed. Otherwise {@link #put(Object)} and {@link #close()} would
+	 * block forever once the queue is full.
+	 */
+	private void writeItems() {
+		Entry<T> entry = take();
+		while (entry != END_OF_QUEUE) {
+			if (entry != null && error.get() == null) {
+				lag = System.nanoTime() - entry.queued;
+				try {
+					writer.accept(entry.item);
+				} catch (final Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}
+			if (entry != null) {
+				writtenCount.incrementAndGet();
+			}
+			entry = take();
+		}
+	}
+
+	private Entry<T> take() {
+		try {
+			return queue.take();
+		} catch (final InterruptedException e) {
+			error.compareAndSet(null, e);
+			return null;
+		}
+	}
+
+	private static final class Entry<T> {
+
+		final T item;
+		final long queued;
+
+		Entry(final T item, final long queued) {
+			this.item = item;
+			this.queued = queued;
+		}
+
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.sql.util.DataSet;
+import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.culturegraph.mf.sql.util.JdbcUtil.Dialect;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SqlBulkLoadSink}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SqlBulkLoadSinkTest extends DatabaseBasedTest {
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key VARCHAR(10), name VARCHAR(50), note VARCHAR(50))";
+
+	private static final String SELECT =
+			"SELECT * FROM Test ORDER BY key";
+
+	private static final String NAME1 = "al-Chwarizmi, \"the\" mathematician";
+	private static final String NAME2 = "Ibn an-Nadīm\nbibliographer";
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE);
+	}
+
+	@Test
+	public void shouldLoadRecordsWithNativeBulkLoader() throws SQLException {
+		final SqlBulkLoadSink sink = new SqlBulkLoadSink(
+				getDatabase().getClosableConnection());
+
+		writeRecords(sink);
+
+		assertEquals(Dialect.H2, sink.getLoadDialect());
+		assertEquals(expectedRecords(), new DataSet(getDatabase(), SELECT));
+	}
+
+	@Test
+	public void shouldLoadRecordsWithBatchedInserts() throws SQLException {
+		final SqlBulkLoadSink sink = new SqlBulkLoadSink(
+				getDatabase().getClosableConnection());
+		sink.setNativeLoad(false);
+
+		writeRecords(sink);
+
+		assertEquals(Dialect.GENERIC, sink.getLoadDialect());
+		assertEquals(expectedRecords(), new DataSet(getDatabase(), SELECT));
+	}
+
+	private static void writeRecords(final SqlBulkLoadSink sink) {
+		sink.setTable("Test");
+		sink.setColumns("key=_ID, name, note");
+		sink.setChunkSize(2);
+
+		sink.startRecord("1");
+		sink.literal("name", NAME1);
+		sink.literal("note", "");
+		sink.endRecord();
+		sink.startRecord("2");
+		sink.literal("name", NAME2);
+		sink.literal("ignored", "value");
+		sink.endRecord();
+		sink.startRecord("3");
+		sink.literal("name", "first");
+		sink.literal("name", "al-Biruni");
+		sink.endRecord();
+		sink.closeStream();
+	}
+
+	private static DataSet expectedRecords() {
+		return new DataSet()
+			.addRow()
+				.put("key", "1")
+				.put("name", NAME1)
+				.put("note", "")
+			.addRow()
+				.put("key", "2")
+				.put("name", NAME2)
+				.put("note", null)
+			.addRow()
+				.put("key", "3")
+				.put("name", "al-Biruni")
+				.put("note", null);
+	}
+
+}
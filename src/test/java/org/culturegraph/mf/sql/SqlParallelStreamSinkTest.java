@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.sql.util.DataSet;
+import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SqlParallelStreamSink}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SqlParallelStreamSinkTest extends DatabaseBasedTest {
+
+	private static final String COLUMN1 = "key";
+	private static final String COLUMN2 = "name";
+	private static final int RECORDS = 95;
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key VARCHAR(10), name VARCHAR(50))";
+
+	private static final String INSERT =
+			"INSERT INTO Test (key, name) VALUES (:_ID, :name)";
+
+	private static final String INVALID_INSERT =
+			"INSERT INTO Test (unknown) VALUES (:_ID)";
+
+	private static final String SELECT =
+			"SELECT * FROM Test ORDER BY key";
+
+	private JdbcDataSource dataSource;
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE);
+		dataSource = new JdbcDataSource();
+		dataSource.setURL(getDatabase().getUrl());
+	}
+
+	@Test
+	public void shouldWriteAllRecords() throws SQLException {
+		final SqlParallelStreamSink sink = new SqlParallelStreamSink(dataSource);
+		sink.setQuery(INSERT);
+		sink.setWorkers(3);
+		sink.setBatchSize(10);
+
+		writeRecords(sink);
+
+		assertEquals(expectedRecords(), new DataSet(getDatabase(), SELECT));
+	}
+
+	@Test
+	public void shouldWriteAllRecordsInOrderedMode() throws SQLException {
+		final SqlParallelStreamSink sink = new SqlParallelStreamSink(dataSource);
+		sink.setQuery(INSERT);
+		sink.setWorkers(3);
+		sink.setBatchSize(10);
+		sink.setOrdered(true);
+
+		writeRecords(sink);
+
+		assertEquals(expectedRecords(), new DataSet(getDatabase(), SELECT));
+	}
+
+	@Test
+	public void shouldWriteRecordsWithoutId() throws SQLException {
+		final SqlParallelStreamSink sink = new SqlParallelStreamSink(dataSource);
+		sink.setQuery(INSERT);
+		sink.setWorkers(2);
+		sink.setOrdered(true);
+
+		sink.startRecord(null);
+		sink.literal(COLUMN2, name(0));
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, null)
+				.put(COLUMN2, name(0));
+		assertEquals(expected, new DataSet(getDatabase(), SELECT));
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldPropagateWorkerErrors() {
+		final SqlParallelStreamSink sink = new SqlParallelStreamSink(dataSource);
+		sink.setQuery(INVALID_INSERT);
+		sink.setWorkers(2);
+
+		writeRecords(sink);
+	}
+
+	private void writeRecords(final SqlParallelStreamSink sink) {
+		for (int i = 0; i < RECORDS; ++i) {
+			sink.startRecord(key(i));
+			sink.literal(COLUMN2, name(i));
+			sink.endRecord();
+		}
+		sink.closeStream();
+	}
+
+	private DataSet expectedRecords() {
+		final DataSet expected = new DataSet();
+		for (int i = 0; i < RECORDS; ++i) {
+			expected.addRow()
+				.put(COLUMN1, key(i))
+				.put(COLUMN2, name(i));
+		}
+		return expected;
+	}
+
+	private static String key(final int i) {
+		return String.format("%03d", Integer.valueOf(i));
+	}
+
+	private static String name(final int i) {
+		return "name" + i;
+	}
+
+}
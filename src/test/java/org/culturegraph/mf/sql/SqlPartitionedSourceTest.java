@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.helpers.ForwardingStreamPipe;
+import org.culturegraph.mf.javaintegration.EventList;
+import org.culturegraph.mf.javaintegration.EventList.Event;
+import org.culturegraph.mf.sql.SqlPartitionedSource.SplitMode;
+import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SqlPartitionedSource}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SqlPartitionedSourceTest extends DatabaseBasedTest {
+
+	private static final int ROWS = 25;
+	private static final int FIRST_PARTITION_ROWS = 8;
+	private static final int PARTITIONS = 3;
+	private static final String LAST_MODULO_PARTITION = ", 3)) = 2";
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key INT, name VARCHAR(50))";
+
+	private static final String INSERT =
+			"INSERT INTO Test (key, name) VALUES (%s, 'name%s')";
+
+	private static final String SELECT =
+			"SELECT key, name FROM Test WHERE name <> :obj";
+
+	private JdbcDataSource dataSource;
+	private EventList receiver;
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE);
+		for (int i = 1; i <= ROWS; ++i) {
+			getDatabase().run(String.format(INSERT, Integer.valueOf(i),
+					Integer.valueOf(i)));
+		}
+		getDatabase().run(String.format(INSERT, "NULL", "-null"));
+		dataSource = new JdbcDataSource();
+		dataSource.setURL(getDatabase().getUrl());
+		receiver = new EventList();
+	}
+
+	@Test
+	public void shouldReadAllRowsOfRangePartitions() {
+		final SqlPartitionedSource<String> source = createSource();
+		source.setSplitMode(SplitMode.RANGE);
+
+		source.process("name5");
+		source.closeStream();
+
+		final List<String> ids = getRecordIds();
+		Collections.sort(ids, Comparator.nullsFirst(Comparator.naturalOrder()));
+		assertEquals(expectedIds(), ids);
+	}
+
+	@Test
+	public void shouldReadAllRowsOfModuloPartitions() {
+		final SqlPartitionedSource<String> source = createSource();
+		source.setSplitMode(SplitMode.MODULO);
+
+		source.process("name5");
+		source.closeStream();
+
+		final List<String> ids = getRecordIds();
+		Collections.sort(ids, Comparator.nullsFirst(Comparator.naturalOrder()));
+		assertEquals(expectedIds(), ids);
+	}
+
+	@Test
+	public void shouldEmitRecordsOrderedByPartition() {
+		final SqlPartitionedSource<String> source = createSource();
+		source.setSplitMode(SplitMode.RANGE);
+		source.setOrdered(true);
+		source.setQueueCapacity(2);
+
+		source.process("name5");
+		source.closeStream();
+
+		final List<String> expected = new ArrayList<>();
+		for (int i = 1; i <= ROWS; ++i) {
+			if (i != 5) {
+				expected.add(Integer.toString(i));
+			}
+		}
+		expected.add(null);
+		assertEquals(expected, getRecordIds());
+	}
+
+	@Test(timeout = 10000)
+	public void shouldSplitTheFullRangeOfLongValues() throws SQLException {
+		getDatabase()
+			.run("CREATE TABLE Extremes (key BIGINT)")
+			.run("INSERT INTO Extremes VALUES (" + Long.MIN_VALUE + ")")
+			.run("INSERT INTO Extremes VALUES (0)")
+			.run("INSERT INTO Extremes VALUES (" + Long.MAX_VALUE + ")");
+		final SqlPartitionedSource<String> source = createSource();
+		source.setStatement("SELECT key FROM Extremes " +
+				"WHERE CAST(key AS VARCHAR) <> :obj");
+		source.setSplitMode(SplitMode.RANGE);
+
+		source.process("name5");
+		source.closeStream();
+
+		final List<String> ids = getRecordIds();
+		Collections.sort(ids);
+		assertEquals(Arrays.asList(Long.toString(Long.MIN_VALUE), "0",
+				Long.toString(Long.MAX_VALUE)), ids);
+	}
+
+	@Test(timeout = 10000)
+	public void shouldNoticeFailingPartitionsBeforeEmittingThem()
+			throws SQLException {
+		final SqlPartitionedSource<String> source = createSource(
+				createFailingDataSource());
+		source.setSplitMode(SplitMode.MODULO);
+		source.setOrdered(true);
+		source.setQueueCapacity(1);
+		source.setReceiver(new ForwardingStreamPipe() {
+			@Override
+			public void startRecord(final String id) {
+				if (receiver.getEvents().isEmpty()) {
+					waitForOtherPartitions();
+				}
+				super.startRecord(id);
+			}
+		}).setReceiver(receiver);
+
+		try {
+			source.process("name5");
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			assertTrue(getRecordIds().size() < FIRST_PARTITION_ROWS);
+		} finally {
+			source.closeStream();
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void shouldCancelRunningQueriesIfAPartitionFails()
+			throws SQLException {
+		final SqlPartitionedSource<String> source = createSource(
+				createFailingDataSource());
+		source.setStatement("SELECT key FROM Test WHERE name <> :obj AND " +
+				"(SELECT COUNT(*) FROM SYSTEM_RANGE(1, 1000000) a, " +
+				"SYSTEM_RANGE(1, 1000000) b) > 0");
+		source.setSplitMode(SplitMode.MODULO);
+
+		try {
+			source.process("name5");
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			// Expected
+		} finally {
+			source.closeStream();
+		}
+	}
+
+	/**
+	 * Returns a data source whose connections fail to prepare the query of
+	 * the last modulo partition. The connections are opened in advance because
+	 * H2 cannot open connections while another session runs a statement.
+	 */
+	private DataSource createFailingDataSource() throws SQLException {
+		final Connection[] connections = new Connection[PARTITIONS];
+		for (int i = 0; i < PARTITIONS; ++i) {
+			connections[i] = spy(dataSource.getConnection());
+			doThrow(new SQLException("Failing partition")).when(connections[i])
+					.prepareStatement(contains(LAST_MODULO_PARTITION), anyInt(),
+							anyInt());
+		}
+		final DataSource failingDataSource = mock(DataSource.class);
+		when(failingDataSource.getConnection()).thenReturn(connections[0],
+				Arrays.copyOfRange(connections, 1, PARTITIONS));
+		return failingDataSource;
+	}
+
+	private static void waitForOtherPartitions() {
+		try {
+			Thread.sleep(500);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private SqlPartitionedSource<String> createSource() {
+		return createSource(dataSource);
+	}
+
+	private SqlPartitionedSource<String> createSource(
+			final DataSource dataSource) {
+		final SqlPartitionedSource<String> source =
+				new SqlPartitionedSource<>(dataSource);
+		source.setStatement(SELECT);
+		source.setSplitColumn("key");
+		source.setPartitions(PARTITIONS);
+		source.setIdColumnLabel("key");
+		source.setReceiver(receiver);
+		return source;
+	}
+
+	private List<String> getRecordIds() {
+		final List<String> ids = new ArrayList<>();
+		for (final Event event : receiver.getEvents()) {
+			if (event.getType() == Event.Type.START_RECORD) {
+				ids.add(event.getName());
+			}
+		}
+		return ids;
+	}
+
+	private static List<String> expectedIds() {
+		final List<String> ids = new ArrayList<>();
+		for (int i = 1; i <= ROWS; ++i) {
+			if (i != 5) {
+				ids.add(Integer.toString(i));
+			}
+		}
+		ids.add(null);
+		Collections.sort(ids, Comparator.nullsFirst(Comparator.naturalOrder()));
+		return ids;
+	}
+
+}
@@ -16,14 +16,20 @@
 package org.culturegraph.mf.sql;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.spy;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.sql.SqlStatementSink;
 import org.culturegraph.mf.sql.util.DataSet;
 import org.culturegraph.mf.sql.util.DatabaseBasedTest;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 /**
  * Tests for {@link SqlStatementSink}.
@@ -39,6 +45,8 @@ public final class SqlStatementSinkTest extends DatabaseBasedTest {
 	private static final String KEY2 = "102";
 	private static final String NAME1 = "al-Chwarizmi";
 	private static final String NAME2 = "Ibn an-Nadīm";
+	private static final String KEY3 = "103";
+	private static final String NAME3 = "al-Biruni";
 
 	private static final String CREATE_TABLE =
 			"CREATE TABLE Test (key VARCHAR(10), name VARCHAR(50))";
@@ -46,6 +54,9 @@ public final class SqlStatementSinkTest extends DatabaseBasedTest {
 	private static final String INSERT =
 			"INSERT INTO Test (key, name) VALUES ('%s', '%s')";
 
+	private static final String INVALID_INSERT =
+			"INSERT INTO Test (unknown) VALUES ('%s')";
+
 	private static final String SELECT =
 			"SELECT * FROM Test";
 
@@ -74,4 +85,84 @@ public void testSqlStatementSink() throws SQLException {
 		assertEquals(expected, actual);
 	}
 
+	@Test
+	public void shouldCommitStatementsInChunks() throws SQLException {
+		final SqlStatementSink sink = new SqlStatementSink(getDatabase().getClosableConnection());
+		sink.setCommitInterval(2);
+		sink.process(String.format(INSERT, KEY1, NAME1));
+		sink.process(String.format(INSERT, KEY2, NAME2));
+		sink.process(String.format(INSERT, KEY3, NAME3));
+
+		final DataSet committed = new DataSet(getDatabase(), SELECT);
+		final DataSet expectedCommitted = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2);
+		assertEquals(expectedCommitted, committed);
+
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2)
+			.addRow()
+				.put(COLUMN1, KEY3)
+				.put(COLUMN2, NAME3);
+		assertEquals(expected, actual);
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldReportWriteBehindErrorsWhenClosing() throws SQLException {
+		final SqlStatementSink sink = new SqlStatementSink(getDatabase().getClosableConnection());
+		sink.setWriteBehind(4);
+		sink.process(String.format(INVALID_INSERT, KEY1));
+		sink.closeStream();
+	}
+
+	@Test
+	public void shouldRollbackOpenChunkIfStatementFails() throws SQLException {
+		final SqlStatementSink sink = new SqlStatementSink(getDatabase().getClosableConnection());
+		sink.setCommitInterval(10);
+		sink.process(String.format(INSERT, KEY1, NAME1));
+		try {
+			sink.process(String.format(INVALID_INSERT, KEY2));
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			// Expected
+		}
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		assertEquals(new DataSet(), actual);
+	}
+
+	@Test
+	public void shouldRestoreAutoCommitIfClosingFails() throws SQLException {
+		final Connection connection = spy(getDatabase().getClosableConnection());
+		final SqlStatementSink sink = new SqlStatementSink(connection);
+		sink.setCommitInterval(10);
+		sink.setWriteBehind(4);
+		sink.process(String.format(INVALID_INSERT, KEY1));
+		try {
+			sink.closeStream();
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			// Expected
+		}
+
+		final InOrder ordered = inOrder(connection);
+		ordered.verify(connection).setAutoCommit(false);
+		ordered.verify(connection).rollback();
+		ordered.verify(connection).setAutoCommit(true);
+		ordered.verify(connection).close();
+	}
+
 }
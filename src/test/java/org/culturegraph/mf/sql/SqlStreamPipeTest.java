@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.inOrder;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/**
+ * Tests for {@link SqlStreamPipe}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SqlStreamPipeTest extends DatabaseBasedTest {
+
+	private static final String COLUMN1 = "KEY";
+	private static final String COLUMN2 = "NAME";
+	private static final String KEY1 = "101";
+	private static final String KEY2 = "102";
+	private static final String NAME1 = "al-Chwarizmi";
+	private static final String NAME2 = "Ibn an-Nadīm";
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key VARCHAR(10), name VARCHAR(50))";
+
+	private static final String INSERT =
+			"INSERT INTO Test (key, name) VALUES ('%s', '%s')";
+
+	private static final String SELECT =
+			"SELECT key, name FROM Test WHERE key = :_ID";
+
+	@Rule
+	public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+	@Mock
+	private StreamReceiver receiver;
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE)
+			.run(String.format(INSERT, KEY1, NAME1))
+			.run(String.format(INSERT, KEY2, NAME2));
+	}
+
+	@Test
+	public void shouldReplayCachedResults() throws SQLException {
+		final SqlStreamPipe pipe = new SqlStreamPipe(getDatabase().getClosableConnection());
+		pipe.setQuery(SELECT);
+		pipe.setIdColumnLabel(COLUMN1);
+		pipe.setCacheSize(10);
+		pipe.setReceiver(receiver);
+
+		lookup(pipe, KEY1);
+		getDatabase().run("DELETE FROM Test");
+		lookup(pipe, KEY1);
+		lookup(pipe, KEY2);
+
+		assertEquals(1, pipe.getCacheHits());
+		assertEquals(2, pipe.getCacheMisses());
+		pipe.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord(KEY1);
+			ordered.verify(receiver).literal(COLUMN1, KEY1);
+			ordered.verify(receiver).literal(COLUMN2, NAME1);
+			ordered.verify(receiver).endRecord();
+		}
+		ordered.verify(receiver).closeStream();
+		ordered.verifyNoMoreInteractions();
+	}
+
+	@Test
+	public void shouldExpireCachedResults() throws SQLException,
+			InterruptedException {
+		final SqlStreamPipe pipe = new SqlStreamPipe(getDatabase().getClosableConnection());
+		pipe.setQuery(SELECT);
+		pipe.setCacheSize(10);
+		pipe.setCacheTimeToLive(1);
+		pipe.setReceiver(receiver);
+
+		lookup(pipe, KEY1);
+		Thread.sleep(5);
+		lookup(pipe, KEY1);
+
+		assertEquals(0, pipe.getCacheHits());
+		assertEquals(2, pipe.getCacheMisses());
+		pipe.closeStream();
+	}
+
+	@Test
+	public void shouldBatchLookupsAndPreserveOrder() throws SQLException {
+		final SqlStreamPipe pipe = new SqlStreamPipe(getDatabase().getClosableConnection());
+		pipe.setQuery("SELECT key, name FROM Test WHERE key IN (:_ID)");
+		pipe.setIdColumnLabel(COLUMN1);
+		pipe.setLookupBatchSize(2);
+		pipe.setReceiver(receiver);
+
+		lookup(pipe, KEY2);
+		lookup(pipe, KEY1);
+		lookup(pipe, "999");
+		lookup(pipe, KEY2);
+		lookup(pipe, KEY1);
+		pipe.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			verifyRecord(ordered, KEY2, NAME2);
+			verifyRecord(ordered, KEY1, NAME1);
+		}
+		ordered.verify(receiver).closeStream();
+		ordered.verifyNoMoreInteractions();
+	}
+
+	@Test
+	public void shouldLookUpKeysSeparatelyIfReturnedKeysDiffer()
+			throws SQLException {
+		final SqlStreamPipe pipe = new SqlStreamPipe(getDatabase().getClosableConnection());
+		pipe.setQuery("SELECT key, name FROM Test " +
+				"WHERE CAST(key AS INT) IN (:_ID)");
+		pipe.setIdColumnLabel(COLUMN1);
+		pipe.setLookupBatchSize(2);
+		pipe.setReceiver(receiver);
+
+		lookup(pipe, "0" + KEY2);
+		lookup(pipe, KEY1);
+		pipe.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		verifyRecord(ordered, KEY2, NAME2);
+		verifyRecord(ordered, KEY1, NAME1);
+		ordered.verify(receiver).closeStream();
+		ordered.verifyNoMoreInteractions();
+	}
+
+	@Test
+	public void shouldStartNewBatchIfOtherParametersChange()
+			throws SQLException {
+		final SqlStreamPipe pipe = new SqlStreamPipe(getDatabase().getClosableConnection());
+		pipe.setQuery("SELECT key, name FROM Test " +
+				"WHERE key IN (:keys) AND name <> :exclude");
+		pipe.setKeyParameter("keys");
+		pipe.setKeyColumnLabel(COLUMN1);
+		pipe.setLookupBatchSize(10);
+		pipe.setReceiver(receiver);
+
+		pipe.startRecord("1");
+		pipe.literal("keys", KEY1);
+		pipe.literal("exclude", NAME2);
+		pipe.endRecord();
+		pipe.startRecord("2");
+		pipe.literal("keys", KEY1);
+		pipe.literal("exclude", NAME1);
+		pipe.endRecord();
+		pipe.startRecord("3");
+		pipe.literal("keys", KEY2);
+		pipe.literal("exclude", NAME1);
+		pipe.endRecord();
+		pipe.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("");
+		ordered.verify(receiver).literal(COLUMN1, KEY1);
+		ordered.verify(receiver).literal(COLUMN2, NAME1);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord("");
+		ordered.verify(receiver).literal(COLUMN1, KEY2);
+		ordered.verify(receiver).literal(COLUMN2, NAME2);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).closeStream();
+		ordered.verifyNoMoreInteractions();
+	}
+
+	@Test
+	public void shouldEmitConcurrentLookupsInInputOrder() {
+		final SqlStreamPipe pipe = new SqlStreamPipe(createDataSource());
+		pipe.setQuery(SELECT);
+		pipe.setIdColumnLabel(COLUMN1);
+		pipe.setConcurrency(3);
+		pipe.setReceiver(receiver);
+
+		for (int i = 0; i < 10; ++i) {
+			lookup(pipe, KEY1);
+			lookup(pipe, "999");
+			lookup(pipe, KEY2);
+		}
+		pipe.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 10; ++i) {
+			verifyRecord(ordered, KEY1, NAME1);
+			verifyRecord(ordered, KEY2, NAME2);
+		}
+		ordered.verify(receiver).closeStream();
+		ordered.verifyNoMoreInteractions();
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldReportFailedConcurrentLookup() {
+		final SqlStreamPipe pipe = new SqlStreamPipe(createDataSource());
+		pipe.setQuery("SELECT CAST(:_ID AS INT) AS key FROM Test");
+		pipe.setConcurrency(2);
+		pipe.setReceiver(receiver);
+
+		try {
+			lookup(pipe, "not a number");
+		} finally {
+			pipe.closeStream();
+		}
+	}
+
+	private JdbcDataSource createDataSource() {
+		final JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL(getDatabase().getUrl());
+		return dataSource;
+	}
+
+	private void verifyRecord(final InOrder ordered, final String key,
+			final String name) {
+		ordered.verify(receiver).startRecord(key);
+		ordered.verify(receiver).literal(COLUMN1, key);
+		ordered.verify(receiver).literal(COLUMN2, name);
+		ordered.verify(receiver).endRecord();
+	}
+
+	private static void lookup(final SqlStreamPipe pipe, final String key) {
+		pipe.startRecord(key);
+		pipe.literal("unused", "value");
+		pipe.endRecord();
+	}
+
+}
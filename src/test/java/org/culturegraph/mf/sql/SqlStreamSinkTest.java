@@ -22,6 +22,9 @@
 import org.culturegraph.mf.sql.SqlStreamSink;
 import org.culturegraph.mf.sql.util.DataSet;
 import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.culturegraph.mf.sql.util.JmxQueryMetrics;
+import org.culturegraph.mf.sql.util.Metrics;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -41,6 +44,8 @@ public final class SqlStreamSinkTest extends DatabaseBasedTest {
 	private static final String KEY2 = "102";
 	private static final String NAME1 = "al-Chwarizmi";
 	private static final String NAME2 = "Ibn an-Nadīm";
+	private static final String KEY3 = "103";
+	private static final String NAME3 = "al-Biruni";
 
 	private static final String CREATE_TABLE =
 			"CREATE TABLE Test (key VARCHAR(10), name VARCHAR(50))";
@@ -57,6 +62,11 @@ public void populateDatabase() throws SQLException {
 			.run(CREATE_TABLE);
 	}
 
+	@After
+	public void resetMetrics() {
+		Metrics.setProvider(null);
+	}
+
 	@Test
 	public void testSqlStreamSink() throws SQLException {
 		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
@@ -84,4 +94,258 @@ public void testSqlStreamSink() throws SQLException {
 		assertEquals(expected, actual);
 	}
 
+	@Test
+	public void shouldExecuteStatementsInBatches() throws SQLException {
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery(INSERT);
+		sink.setBatchSize(2);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.startRecord(KEY3);
+		sink.literal(COLUMN2, NAME3);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2)
+			.addRow()
+				.put(COLUMN1, KEY3)
+				.put(COLUMN2, NAME3);
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldWriteRecordsBehind() throws SQLException {
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery(INSERT);
+		sink.setBatchSize(2);
+		sink.setWriteBehind(1);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.startRecord(KEY3);
+		sink.literal(COLUMN2, NAME3);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2)
+			.addRow()
+				.put(COLUMN1, KEY3)
+				.put(COLUMN2, NAME3);
+
+		assertEquals(expected, actual);
+		assertEquals(0, sink.getWriteBehindQueueDepth());
+	}
+
+	@Test
+	public void shouldInsertSeveralRowsPerStatement() throws SQLException {
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery(INSERT);
+		sink.setRowsPerStatement(2);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.literal(IGNORED_LITERAL, IGNORED_VALUE);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.startRecord(KEY3);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2)
+			.addRow()
+				.put(COLUMN1, KEY3)
+				.put(COLUMN2, null);
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldReportMetricsOfMultiRowStatements() throws SQLException {
+		final JmxQueryMetrics metrics = new JmxQueryMetrics();
+		Metrics.setProvider(name -> metrics);
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery(INSERT);
+		sink.setRowsPerStatement(2);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.closeStream();
+
+		assertEquals(4, metrics.getValuesBound());
+	}
+
+	@Test
+	public void shouldUpsertRecords() throws SQLException {
+		getDatabase()
+			.run("INSERT INTO Test (key, name) VALUES ('" + KEY1 + "', 'old')");
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setTable("Test");
+		sink.setKeyColumns("key=_ID");
+		sink.setValueColumns(COLUMN2);
+		sink.setRowsPerStatement(2);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME2);
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldStartNewUpsertIfKeyRepeats() throws SQLException {
+		final JmxQueryMetrics metrics = new JmxQueryMetrics();
+		Metrics.setProvider(name -> metrics);
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setTable("Test");
+		sink.setKeyColumns("key=_ID");
+		sink.setValueColumns(COLUMN2);
+		sink.setRowsPerStatement(3);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME3);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME2)
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put(COLUMN2, NAME3);
+
+		assertEquals(expected, actual);
+		assertEquals(2, metrics.getStatementsExecuted());
+	}
+
+	@Test
+	public void shouldExpandRepeatedLiterals() throws SQLException {
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery(INSERT);
+		sink.setExpandRepeatedLiterals(true);
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.literal(COLUMN2, NAME2);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1)
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME2);
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldBindRepeatedLiteralsToArrayParameters() throws SQLException {
+		getDatabase()
+			.run("CREATE TABLE Names (key VARCHAR(10), names ARRAY)");
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery("INSERT INTO Names (key, names) VALUES (:_ID, :name[])");
+
+		sink.startRecord(KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.literal(COLUMN2, NAME2);
+		sink.literal(COLUMN2, NAME3);
+		sink.endRecord();
+		sink.startRecord(KEY2);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), "SELECT key, " +
+				"CAST(ARRAY_LENGTH(names) AS VARCHAR) AS names FROM Names ORDER BY key");
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put("names", "3")
+			.addRow()
+				.put(COLUMN1, KEY2)
+				.put("names", "1");
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldBindValuesOfTypedParameters() throws SQLException {
+		final SqlStreamSink sink = new SqlStreamSink(getDatabase().getClosableConnection());
+		sink.setQuery("INSERT INTO Test (key, name) VALUES (:_ID::int, :name)");
+
+		sink.startRecord("0" + KEY1);
+		sink.literal(COLUMN2, NAME1);
+		sink.endRecord();
+		sink.closeStream();
+
+		final DataSet actual = new DataSet(getDatabase(), SELECT);
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put(COLUMN1, KEY1)
+				.put(COLUMN2, NAME1);
+
+		assertEquals(expected, actual);
+	}
+
 }
@@ -1,13 +1,19 @@
 package org.culturegraph.mf.sql;
 
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 
 import org.apache.commons.dbutils.DbUtils;
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.sql.SqlStreamSource;
+import org.culturegraph.mf.sql.util.BinaryEncoding;
 import org.culturegraph.mf.sql.util.DatabaseBasedTest;
 import org.junit.After;
 import org.junit.Before;
@@ -45,6 +51,10 @@ public final class SqlStreamSourceTest extends DatabaseBasedTest {
 	private static final String SELECT_ALL =
 			"SELECT key, name FROM Test WHERE key = :obj";
 
+	private static final String SELECT_TYPED =
+			"SELECT CAST(42 AS BIGINT) AS num, CAST(X'0aff' AS BINARY) AS bin, " +
+			"CAST(name AS CLOB) AS txt FROM Test WHERE key = :obj";
+
 	@Rule
 	public MockitoRule mockitoRule = MockitoJUnit.rule();
 
@@ -108,4 +118,100 @@ public void shouldSetIdNameToColumnLabel() throws SQLException {
 		ordered.verify(receiver).endRecord();
 	}
 
+	@Test
+	public void shouldReadResultsAhead() throws SQLException {
+		final SqlStreamSource<String> source = new SqlStreamSource<>(connection);
+		source.setStatement("SELECT key, name FROM Test WHERE key >= :obj " +
+				"ORDER BY key");
+		source.setIdColumnLabel(COLUMN1);
+		source.setReadAhead(1);
+		source.setReceiver(receiver);
+
+		source.process(KEY1);
+		source.process(KEY2);
+		source.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord(KEY1);
+		ordered.verify(receiver).literal(COLUMN1, KEY1);
+		ordered.verify(receiver).literal(COLUMN2, NAME1);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord(KEY2);
+		ordered.verify(receiver).literal(COLUMN2, NAME2);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord(KEY2);
+		ordered.verify(receiver).literal(COLUMN2, NAME2);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).closeStream();
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldReportErrorsOfReadAhead() throws SQLException {
+		final SqlStreamSource<String> source = new SqlStreamSource<>(connection);
+		source.setStatement("SELECT CAST(name AS INT) FROM Test WHERE key = :obj");
+		source.setReadAhead(4);
+		source.setReceiver(receiver);
+
+		try {
+			source.process(KEY1);
+		} finally {
+			source.closeStream();
+		}
+	}
+
+	@Test
+	public void shouldEmitTypedColumns() throws SQLException {
+		final SqlStreamSource<String> source = new SqlStreamSource<>(connection);
+		source.setStatement(SELECT_TYPED);
+		source.setBinaryEncoding(BinaryEncoding.BASE64);
+		source.setReceiver(receiver);
+
+		source.process(KEY1);
+		source.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("");
+		ordered.verify(receiver).literal("NUM", "42");
+		ordered.verify(receiver).literal("BIN", "Cv8=");
+		ordered.verify(receiver).literal("TXT", NAME1);
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldSkipBinaryColumns() throws SQLException {
+		final SqlStreamSource<String> source = new SqlStreamSource<>(connection);
+		source.setStatement(SELECT_TYPED);
+		source.setBinaryEncoding(BinaryEncoding.SKIP);
+		source.setReceiver(receiver);
+
+		source.process(KEY1);
+		source.closeStream();
+
+		verify(receiver).literal("NUM", "42");
+		verify(receiver, never()).literal(eq("BIN"), anyString());
+	}
+
+	@Test
+	public void shouldReturnRecordsIfFetchSizeIsSet() throws SQLException {
+		final SqlStreamSource<String> source = new SqlStreamSource<>(connection);
+		source.setStatement(SELECT_ALL);
+		source.setIdColumnLabel(COLUMN1);
+		source.setFetchSize(1);
+		source.setReceiver(receiver);
+
+		source.process(KEY1);
+		source.process(KEY2);
+		source.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord(KEY1);
+		ordered.verify(receiver).literal(COLUMN1, KEY1);
+		ordered.verify(receiver).literal(COLUMN2, NAME1);
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord(KEY2);
+		ordered.verify(receiver).literal(COLUMN1, KEY2);
+		ordered.verify(receiver).literal(COLUMN2, NAME2);
+		ordered.verify(receiver).endRecord();
+	}
+
 }
@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.sql.util.DataSet;
+import org.culturegraph.mf.sql.util.DatabaseBasedTest;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SqlTableWriter}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SqlTableWriterTest extends DatabaseBasedTest {
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (id VARCHAR(10), name VARCHAR(50), " +
+			"born INT, note VARCHAR(50) DEFAULT 'none', tags ARRAY)";
+
+	private static final String CREATE_CHILD_TABLE =
+			"CREATE TABLE Child (record_id VARCHAR(10), name VARCHAR(50), " +
+			"value VARCHAR(50))";
+
+	private static final String SELECT =
+			"SELECT id, name, CAST(born AS VARCHAR) AS born, note, " +
+			"CAST(ARRAY_LENGTH(tags) AS VARCHAR) AS tags FROM Test ORDER BY id";
+
+	private static final String SELECT_CHILD =
+			"SELECT * FROM Child ORDER BY value";
+
+	private SqlTableWriter writer;
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE)
+			.run(CREATE_CHILD_TABLE);
+		writer = new SqlTableWriter(getDatabase().getClosableConnection());
+		writer.setTable("Test");
+		writer.setIdColumn("id");
+	}
+
+	@Test
+	public void shouldMapLiteralsToColumns() throws SQLException {
+		writer.setBatchSize(2);
+
+		writer.startRecord("1");
+		writer.literal("name", "al-Chwarizmi");
+		writer.literal("born", "780");
+		writer.literal("tag", "unknown");
+		writer.literal("tags", "mathematician");
+		writer.literal("tags", "astronomer");
+		writer.endRecord();
+		writer.startRecord("2");
+		writer.literal("NAME", "Ibn an-Nadīm");
+		writer.literal("tag", "unknown");
+		writer.endRecord();
+		writer.startRecord("3");
+		writer.literal("name", "al-Biruni");
+		writer.endRecord();
+		writer.closeStream();
+
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put("id", "1")
+				.put("name", "al-Chwarizmi")
+				.put("born", "780")
+				.put("note", "none")
+				.put("tags", "2")
+			.addRow()
+				.put("id", "2")
+				.put("name", "Ibn an-Nadīm")
+				.put("born", null)
+				.put("note", "none")
+				.put("tags", null)
+			.addRow()
+				.put("id", "3")
+				.put("name", "al-Biruni")
+				.put("born", null)
+				.put("note", "none")
+				.put("tags", null);
+
+		assertEquals(expected, new DataSet(getDatabase(), SELECT));
+		assertEquals(2, writer.getInsertStatementCount());
+		assertEquals(2, writer.getUnmappedLiteralCount());
+		assertEquals(Long.valueOf(2), writer.getUnmappedLiterals().get("tag"));
+	}
+
+	@Test
+	public void shouldWriteChildColumnsToChildTable() throws SQLException {
+		writer.setChildTable("Child");
+		writer.setChildColumns("note");
+
+		writer.startRecord("1");
+		writer.literal("name", "al-Chwarizmi");
+		writer.literal("note", "mathematician");
+		writer.literal("note", "astronomer");
+		writer.endRecord();
+		writer.startRecord("2");
+		writer.literal("name", "Ibn an-Nadīm");
+		writer.literal("note", "bibliographer");
+		writer.endRecord();
+		writer.closeStream();
+
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put("id", "1")
+				.put("name", "al-Chwarizmi")
+				.put("born", null)
+				.put("note", "none")
+				.put("tags", null)
+			.addRow()
+				.put("id", "2")
+				.put("name", "Ibn an-Nadīm")
+				.put("born", null)
+				.put("note", "none")
+				.put("tags", null);
+		final DataSet expectedChild = new DataSet()
+			.addRow()
+				.put("record_id", "1")
+				.put("name", "NOTE")
+				.put("value", "astronomer")
+			.addRow()
+				.put("record_id", "2")
+				.put("name", "NOTE")
+				.put("value", "bibliographer")
+			.addRow()
+				.put("record_id", "1")
+				.put("name", "NOTE")
+				.put("value", "mathematician");
+
+		assertEquals(expected, new DataSet(getDatabase(), SELECT));
+		assertEquals(expectedChild, new DataSet(getDatabase(), SELECT_CHILD));
+	}
+
+	@Test
+	public void shouldOnlyReadColumnsOfTheNamedTable() throws SQLException {
+		getDatabase()
+			.run("CREATE SCHEMA Other")
+			.run("CREATE TABLE Other.Test_ (id VARCHAR(10), name VARCHAR(50))")
+			.run("CREATE TABLE TestX (id VARCHAR(10), name VARCHAR(50))")
+			.run("CREATE TABLE Test_ (id VARCHAR(10))");
+		writer.setTable("Test_");
+
+		writer.startRecord("1");
+		writer.literal("name", "al-Chwarizmi");
+		writer.endRecord();
+		writer.closeStream();
+
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put("id", "1");
+
+		assertEquals(expected,
+				new DataSet(getDatabase(), "SELECT * FROM Test_"));
+		assertEquals(1, writer.getUnmappedLiteralCount());
+	}
+
+	@Test
+	public void shouldWriteToSchemaQualifiedTables() throws SQLException {
+		getDatabase()
+			.run("CREATE SCHEMA Other")
+			.run("CREATE TABLE Other.Test (id VARCHAR(10), \"Mixed Case\" INT)");
+		writer.setTable("Other.Test");
+
+		writer.startRecord("1");
+		writer.literal("mixed case", "42");
+		writer.endRecord();
+		writer.closeStream();
+
+		final DataSet expected = new DataSet()
+			.addRow()
+				.put("id", "1")
+				.put("value", "42");
+
+		assertEquals(expected, new DataSet(getDatabase(),
+				"SELECT id, CAST(\"Mixed Case\" AS VARCHAR) AS value FROM Other.Test"));
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.junit.Test;
+
+/**
+ * Tests for class {@link ColumnReader}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class ColumnReaderTest {
+
+	private static final String MAX_UNSIGNED_BIGINT = "18446744073709551615";
+	private static final String POSTGRES_BYTEA = "\\x0aff";
+
+	@Test
+	public void shouldReadSignedBigintsAsLongs() throws SQLException {
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getLong(1)).thenReturn(Long.valueOf(Long.MIN_VALUE));
+
+		final ColumnReader reader = ColumnReader.forType(Types.BIGINT, true,
+				BinaryEncoding.HEX);
+
+		assertEquals(Long.toString(Long.MIN_VALUE), reader.read(resultSet, 1));
+		verify(resultSet, never()).getString(1);
+	}
+
+	@Test
+	public void shouldReadUnsignedBigintsAsStrings() throws SQLException {
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getLong(1)).thenThrow(new SQLException("Out of range"));
+		when(resultSet.getString(1)).thenReturn(MAX_UNSIGNED_BIGINT);
+
+		final ColumnReader reader = ColumnReader.forType(Types.BIGINT, false,
+				BinaryEncoding.HEX);
+
+		assertEquals(MAX_UNSIGNED_BIGINT, reader.read(resultSet, 1));
+	}
+
+	@Test
+	public void shouldReturnNullForNullIntegers() throws SQLException {
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getLong(1)).thenReturn(Long.valueOf(0));
+		when(Boolean.valueOf(resultSet.wasNull())).thenReturn(Boolean.TRUE);
+
+		final ColumnReader reader = ColumnReader.forType(Types.INTEGER, true,
+				BinaryEncoding.HEX);
+
+		assertNull(reader.read(resultSet, 1));
+	}
+
+	@Test
+	public void shouldReadBinariesAsStringsByDefault() throws SQLException {
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getString(1)).thenReturn(POSTGRES_BYTEA);
+
+		final ColumnReader reader = ColumnReader.forType(Types.BINARY, false,
+				BinaryEncoding.DRIVER);
+
+		assertEquals(POSTGRES_BYTEA, reader.read(resultSet, 1));
+		verify(resultSet, never()).getBytes(1);
+	}
+
+	@Test
+	public void shouldReadLargeClobsRepeatedly() throws SQLException {
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 300000; ++i) {
+			builder.append("text");
+		}
+		final String largeValue = builder.toString();
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getCharacterStream(1)).thenReturn(
+				new StringReader(largeValue), new StringReader("small"));
+
+		final ColumnReader reader = ColumnReader.forType(Types.CLOB, false,
+				BinaryEncoding.DRIVER);
+
+		assertEquals(largeValue, reader.read(resultSet, 1));
+		assertEquals("small", reader.read(resultSet, 1));
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+/**
+ * Tests for class {@link ConcurrentLookupExecutor}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class ConcurrentLookupExecutorTest extends DatabaseBasedTest {
+
+	private static final String LONG_LOOKUP =
+			"SELECT COUNT(*) AS n FROM SYSTEM_RANGE(1, 1000000) a, " +
+			"SYSTEM_RANGE(1, 1000000) b WHERE a.x + b.x > CAST(:_ID AS INT)";
+
+	@Test(timeout = 5000)
+	public void shouldCancelRunningLookupsOnClose() throws SQLException {
+		final JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL(getDatabase().getUrl());
+		final ConcurrentLookupExecutor executor = new ConcurrentLookupExecutor(
+				dataSource, connection -> new PreparedQuery(connection, LONG_LOOKUP,
+						false), 2);
+
+		final String[] values = new String[executor.getParameterSlotCount()];
+		values[executor.getParameterSlot("_ID")] = "0";
+		executor.submit(values, new DefaultStreamReceiver());
+		executor.close();
+	}
+
+}
@@ -48,6 +48,10 @@ public Database(final String url) throws SQLException {
 		}
 	}
 
+	public String getUrl() {
+		return url;
+	}
+
 	/**
 	 * Returns a new connection to the database. The caller is
 	 * responsible for closing the connection.
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for class {@link JdbcUtil}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class JdbcUtilTest extends DatabaseBasedTest {
+
+	private static final String JNDI_NAME = "java:comp/env/jdbc/test";
+
+	private static Context context;
+
+	private String previousFactory;
+
+	@Before
+	public void setupNamingContext() throws NamingException {
+		context = mock(Context.class);
+		when(context.lookup(JNDI_NAME)).thenReturn(mock(DataSource.class));
+		previousFactory = System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
+				MockContextFactory.class.getName());
+	}
+
+	@After
+	public void restoreNamingContext() {
+		JdbcUtil.unregisterDataSource(JNDI_NAME);
+		if (previousFactory == null) {
+			System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+		} else {
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, previousFactory);
+		}
+	}
+
+	@Test
+	public void shouldLookUpJndiDataSourcesOnlyOnce() throws NamingException {
+		final DataSource first = JdbcUtil.getDataSource(JNDI_NAME);
+		final DataSource second = JdbcUtil.getDataSource(JNDI_NAME);
+
+		assertSame(first, second);
+		verify(context, times(1)).lookup(JNDI_NAME);
+	}
+
+	@Test
+	public void shouldDetectDriverBugsOncePerDriver() throws SQLException {
+		try (Connection connection = getDatabase().getClosableConnection()) {
+			assertSame(JdbcUtil.getDriverBugs(getDatabase().getConnection()),
+					JdbcUtil.getDriverBugs(connection));
+		}
+	}
+
+	@Test
+	public void shouldReadDriverNameOncePerConnection() throws SQLException {
+		final Connection connection = mockConnection("H2 JDBC Driver");
+
+		JdbcUtil.getDriverBugs(connection);
+		JdbcUtil.getDriverBugs(connection);
+		JdbcUtil.getDialect(connection);
+
+		verify(connection, times(1)).getMetaData();
+	}
+
+	@Test
+	public void shouldDistinguishDriversBehindTheSameWrapperClass()
+			throws SQLException {
+		final Connection postgres = mockConnection("PostgreSQL JDBC Driver");
+		final Connection mysql = mockConnection("MySQL Connector/J");
+
+		assertSame(postgres.getClass(), mysql.getClass());
+		assertEquals(JdbcUtil.Dialect.POSTGRESQL, JdbcUtil.getDialect(postgres));
+		assertEquals(JdbcUtil.Dialect.MYSQL, JdbcUtil.getDialect(mysql));
+	}
+
+	private static Connection mockConnection(final String driverName)
+			throws SQLException {
+		final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+		when(metaData.getDriverName()).thenReturn(driverName);
+		final Connection connection = mock(Connection.class);
+		when(connection.getMetaData()).thenReturn(metaData);
+		return connection;
+	}
+
+	/**
+	 * Provides the mocked naming context to {@code InitialContext}.
+	 */
+	public static final class MockContextFactory
+			implements InitialContextFactory {
+
+		@Override
+		public Context getInitialContext(final Hashtable<?, ?> environment) {
+			return context;
+		}
+
+	}
+
+}
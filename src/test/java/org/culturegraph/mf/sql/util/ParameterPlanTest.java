@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests for class {@link ParameterPlan}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class ParameterPlanTest {
+
+	@Test
+	public void shouldReplaceParametersWithPlaceholders() {
+		final ParameterPlan plan = ParameterPlan.parse(
+				"INSERT INTO t (a, b, c) VALUES (:_ID, :name, :_ID)");
+
+		assertEquals("INSERT INTO t (a, b, c) VALUES (?, ?, ?)", plan.getSql());
+		assertEquals(3, plan.getParameterCount());
+		assertArrayEquals(new int[] { 1, 3 }, plan.getPositions("_ID"));
+		assertArrayEquals(new int[] { 2 }, plan.getPositions("name"));
+		assertNull(plan.getPositions("unknown"));
+	}
+
+	@Test
+	public void shouldIgnoreColonsInStringLiteralsAndIdentifiers() {
+		final String sql = "SELECT ':a', 'it''s :b', E'\\' :c', \"d:e\", `:f` " +
+				"FROM t WHERE x = :x";
+		final ParameterPlan plan = ParameterPlan.parse(sql);
+
+		assertEquals(sql.replace(":x", "?"), plan.getSql());
+		assertEquals(1, plan.getParameterCount());
+		assertArrayEquals(new int[] { 1 }, plan.getPositions("x"));
+	}
+
+	@Test
+	public void shouldIgnoreColonsInComments() {
+		final String sql = "SELECT a -- :b\n" +
+				"FROM t /* :c /* :d */ :e */ WHERE x = :x";
+		final ParameterPlan plan = ParameterPlan.parse(sql);
+
+		assertEquals(sql.replace(":x", "?"), plan.getSql());
+		assertEquals(1, plan.getParameterCount());
+	}
+
+	@Test
+	public void shouldIgnoreColonsInDollarQuotedStrings() {
+		final String sql = "SELECT $$ :a $$, $tag$ :b $ $tag$, $1 FROM t " +
+				"WHERE x = :x";
+		final ParameterPlan plan = ParameterPlan.parse(sql);
+
+		assertEquals(sql.replace(":x", "?"), plan.getSql());
+		assertEquals(1, plan.getParameterCount());
+	}
+
+	@Test
+	public void shouldNotTreatCastsAndArraySlicesAsParameters() {
+		final ParameterPlan plan = ParameterPlan.parse(
+				"SELECT a::text, b[lo:hi], c[1:2] FROM t WHERE x = :x::custom");
+
+		assertEquals("SELECT a::text, b[lo:hi], c[1:2] FROM t WHERE x = ?::custom",
+				plan.getSql());
+		assertEquals(1, plan.getParameterCount());
+		assertArrayEquals(new int[] { 1 }, plan.getPositions("x"));
+		assertNull(plan.getDeclaredType(1));
+	}
+
+	@Test
+	public void shouldKeepTypeAnnotationsOfParameters() {
+		final ParameterPlan plan = ParameterPlan.parse("SELECT * FROM t " +
+				"WHERE a = :a::INT AND b = substr(:b, :n::int) AND c = :c::text");
+
+		assertEquals("SELECT * FROM t WHERE a = ?::INT AND " +
+				"b = substr(?, ?::int) AND c = ?::text", plan.getSql());
+		assertEquals(ParameterType.INTEGER, plan.getDeclaredType(1));
+		assertNull(plan.getDeclaredType(2));
+		assertEquals(ParameterType.INTEGER, plan.getDeclaredType(3));
+		assertEquals(ParameterType.STRING, plan.getDeclaredType(4));
+	}
+
+	@Test
+	public void shouldStripPseudoTypeAnnotationsOfParameters() {
+		final ParameterPlan plan = ParameterPlan.parse("SELECT * FROM t " +
+				"WHERE a = :a::long AND b = :b::timestamp AND c = :a AND d = :d");
+
+		assertEquals("SELECT * FROM t WHERE a = ? AND b = ?::timestamp " +
+				"AND c = ? AND d = ?", plan.getSql());
+		assertEquals(ParameterType.INTEGER, plan.getDeclaredType(1));
+		assertEquals(ParameterType.TIMESTAMP, plan.getDeclaredType(2));
+		assertNull(plan.getDeclaredType(3));
+		assertNull(plan.getDeclaredType(4));
+	}
+
+	@Test
+	public void shouldKeepMultiWordAndArrayCasts() {
+		final String sql = "SELECT * FROM t WHERE a = :a::double precision " +
+				"AND b = :b::timestamp with time zone AND c = ANY(:c::int[])";
+		final ParameterPlan plan = ParameterPlan.parse(sql);
+
+		assertEquals(sql.replace(":a:", "?:").replace(":b:", "?:")
+				.replace(":c:", "?:"), plan.getSql());
+		assertNull(plan.getDeclaredType(1));
+		assertNull(plan.getDeclaredType(2));
+		assertNull(plan.getDeclaredType(3));
+	}
+
+	@Test
+	public void shouldKeepCastsWithLengthAndCharCasts() {
+		final String sql = "SELECT * FROM t WHERE a = :a::varchar(10) " +
+				"AND b = :b::char AND c = :c::numeric(10, 2)";
+		final ParameterPlan plan = ParameterPlan.parse(sql);
+
+		assertEquals(sql.replace(":a:", "?:").replace(":b:", "?:")
+				.replace(":c:", "?:"), plan.getSql());
+		assertNull(plan.getDeclaredType(1));
+		assertNull(plan.getDeclaredType(2));
+		assertNull(plan.getDeclaredType(3));
+	}
+
+	@Test
+	public void shouldRecognizeArrayParameters() {
+		final ParameterPlan plan = ParameterPlan.parse("SELECT * FROM t " +
+				"WHERE a = ANY(:a[]::text[]) AND b = :b[] AND c = :c");
+
+		assertEquals("SELECT * FROM t WHERE a = ANY(?::text[]) AND b = ? " +
+				"AND c = ?", plan.getSql());
+		assertArrayEquals(new int[] { 1 }, plan.getPositions("a"));
+		assertEquals("text", plan.getArrayElementType(1));
+		assertEquals("varchar", plan.getArrayElementType(2));
+		assertNull(plan.getArrayElementType(3));
+	}
+
+	@Test
+	public void shouldAcceptHyphensInParameterNames() {
+		final ParameterPlan plan = ParameterPlan.parse(
+				"SELECT * FROM t WHERE x = :first-name");
+
+		assertEquals("SELECT * FROM t WHERE x = ?", plan.getSql());
+		assertArrayEquals(new int[] { 1 }, plan.getPositions("first-name"));
+	}
+
+	@Test
+	public void shouldAssignSlotsToDistinctNames() {
+		final ParameterPlan plan = ParameterPlan.parse(
+				"SELECT * FROM t WHERE a = :a OR b = :b OR c = :a");
+
+		assertEquals(2, plan.getSlotCount());
+		final int slot = plan.getSlot(new String("a"));
+		assertEquals("a", plan.getName(slot));
+		assertArrayEquals(new int[] { 1, 3 }, plan.getPositions(slot));
+		assertEquals(ParameterPlan.NO_SLOT, plan.getSlot("c"));
+	}
+
+	@Test
+	public void shouldRepeatPlaceholdersOfParameter() {
+		final ParameterPlan plan = ParameterPlan.parse("SELECT * FROM t " +
+				"WHERE a IN (:_ID::int) AND b = :b AND c IN (:_ID::int)")
+				.repeatParameter("_ID", 3);
+
+		assertEquals("SELECT * FROM t WHERE a IN (?::int, ?::int, ?::int) " +
+				"AND b = ? AND c IN (?::int, ?::int, ?::int)", plan.getSql());
+		assertEquals(7, plan.getParameterCount());
+		final int slot = plan.getSlot("_ID");
+		assertEquals(3, plan.getRepetitions(slot));
+		assertArrayEquals(new int[] { 1, 2, 3, 5, 6, 7 }, plan.getPositions(slot));
+		assertArrayEquals(new int[] { 4 }, plan.getPositions("b"));
+		assertEquals(ParameterType.INTEGER, plan.getDeclaredType(7));
+		assertNull(plan.getDeclaredType(4));
+	}
+
+	@Test
+	public void shouldRepeatRowOfValuesList() {
+		final ParameterPlan plan = ParameterPlan.parse("INSERT INTO t (a, b) " +
+				"values (:a::int, lower(:b))").repeatValuesRow(3);
+
+		assertEquals("INSERT INTO t (a, b) values (?::int, lower(?)), " +
+				"(?::int, lower(?)), (?::int, lower(?))", plan.getSql());
+		assertEquals(6, plan.getParameterCount());
+		assertArrayEquals(new int[] { 1, 3, 5 }, plan.getPositions("a"));
+		assertArrayEquals(new int[] { 2, 4, 6 }, plan.getPositions("b"));
+		assertEquals(3, plan.getRepetitions(plan.getSlot("b")));
+		assertEquals(ParameterType.INTEGER, plan.getDeclaredType(5));
+		assertNull(plan.getDeclaredType(6));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldNotRepeatRowIfParametersAreOutsideOfValuesList() {
+		ParameterPlan.parse("INSERT INTO t (a, b) VALUES (:a, 1) " +
+				"ON CONFLICT (a) DO UPDATE SET b = :b").repeatValuesRow(2);
+	}
+
+	@Test
+	public void shouldCachePlans() {
+		final String sql = "SELECT * FROM t WHERE x = :x";
+
+		assertSame(ParameterPlan.forSql(sql), ParameterPlan.forSql(sql));
+	}
+
+}
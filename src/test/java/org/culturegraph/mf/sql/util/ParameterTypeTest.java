@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+
+import org.junit.Test;
+
+/**
+ * Tests for class {@link ParameterType}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class ParameterTypeTest {
+
+	@Test
+	public void shouldMapOnlySingleBitsToBoolean() {
+		assertEquals(ParameterType.BOOLEAN, ParameterType.forSqlType(Types.BIT, 1));
+		assertEquals(ParameterType.STRING, ParameterType.forSqlType(Types.BIT, 8));
+		assertEquals(ParameterType.BOOLEAN,
+				ParameterType.forSqlType(Types.BOOLEAN, 0));
+	}
+
+	@Test
+	public void shouldBindTimestampsWithOffsets() throws SQLException {
+		final PreparedStatement statement = mock(PreparedStatement.class);
+
+		ParameterType.TIMESTAMP.bind(statement, 1, "2017-01-01T10:00:00+02:00");
+
+		verify(statement).setTimestamp(1,
+				Timestamp.from(Instant.parse("2017-01-01T08:00:00Z")));
+	}
+
+	@Test
+	public void shouldBindLocalTimestamps() throws SQLException {
+		final PreparedStatement statement = mock(PreparedStatement.class);
+
+		ParameterType.TIMESTAMP.bind(statement, 1, "2017-01-01T10:00:00");
+
+		verify(statement).setTimestamp(1,
+				Timestamp.valueOf("2017-01-01 10:00:00"));
+	}
+
+	@Test
+	public void shouldBindOtherTimestampFormatsAsStrings() throws SQLException {
+		final PreparedStatement statement = mock(PreparedStatement.class);
+
+		ParameterType.TIMESTAMP.bind(statement, 1, "2017-01-01 10:00:00+02");
+
+		verify(statement).setString(1, "2017-01-01 10:00:00+02");
+	}
+
+}
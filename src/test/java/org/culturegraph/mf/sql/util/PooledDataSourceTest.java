@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for class {@link PooledDataSource}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class PooledDataSourceTest extends DatabaseBasedTest {
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key VARCHAR(10))";
+
+	private PooledDataSource pool;
+
+	@Before
+	public void createPool() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE);
+		pool = new PooledDataSource(getDatabase().getUrl());
+	}
+
+	@After
+	public void closePool() {
+		pool.close();
+	}
+
+	@Test
+	public void shouldReuseReturnedConnections() throws SQLException {
+		final Connection first = pool.getConnection();
+		final Connection physical = PooledDataSource.unwrapPhysical(first);
+		first.close();
+		final Connection second = pool.getConnection();
+
+		assertTrue(first.isClosed());
+		assertSame(physical, PooledDataSource.unwrapPhysical(second));
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(2, pool.getBorrowCount());
+		assertEquals(1, pool.getActiveConnections());
+		second.close();
+		assertEquals(1, pool.getIdleConnections());
+	}
+
+	@Test
+	public void shouldRollBackAndResetAutoCommitOnReturn() throws SQLException {
+		final Connection first = pool.getConnection();
+		first.setAutoCommit(false);
+		first.createStatement().execute("INSERT INTO Test VALUES ('1')");
+		first.close();
+
+		try (Connection second = pool.getConnection()) {
+			assertTrue(second.getAutoCommit());
+			try (ResultSet resultSet = second.createStatement().executeQuery(
+					"SELECT COUNT(*) FROM Test")) {
+				resultSet.next();
+				assertEquals(0, resultSet.getInt(1));
+			}
+		}
+	}
+
+	@Test
+	public void shouldTimeOutIfAllConnectionsAreInUse() throws SQLException {
+		pool.setMaximumPoolSize(1);
+		pool.setBorrowTimeout(20);
+
+		try (Connection connection = pool.getConnection()) {
+			pool.getConnection();
+			fail("Expected SQLException");
+		} catch (final SQLException e) {
+			assertEquals(1, pool.getWaitCount());
+		}
+	}
+
+	@Test
+	public void shouldReusePreparedStatements() throws SQLException {
+		pool.setStatementCacheSize(2);
+		final String sql = "SELECT * FROM Test WHERE key = ?";
+
+		try (Connection connection = pool.getConnection()) {
+			final PreparedStatement first = connection.prepareStatement(sql);
+			final PreparedStatement concurrent = connection.prepareStatement(sql);
+			first.close();
+			concurrent.close();
+			final PreparedStatement second = connection.prepareStatement(sql);
+			second.setString(1, "1");
+			second.executeQuery().close();
+			second.close();
+		}
+
+		assertEquals(1, pool.getStatementCacheHits());
+		assertEquals(2, pool.getStatementCacheMisses());
+	}
+
+	@Test
+	public void shouldResetSettingsOfCachedStatements() throws SQLException {
+		pool.setStatementCacheSize(1);
+		final String sql = "SELECT * FROM Test";
+
+		try (Connection connection = pool.getConnection()) {
+			final PreparedStatement first = connection.prepareStatement(sql);
+			final int fetchSize = first.getFetchSize();
+			first.setFetchSize(fetchSize + 50);
+			first.setMaxRows(1);
+			first.setQueryTimeout(7);
+			first.close();
+			final PreparedStatement second = connection.prepareStatement(sql);
+
+			assertEquals(fetchSize, second.getFetchSize());
+			assertEquals(0, second.getMaxRows());
+			assertEquals(0, second.getQueryTimeout());
+			second.close();
+		}
+		assertEquals(1, pool.getStatementCacheHits());
+	}
+
+	@Test
+	public void shouldCloseIdleConnectionsAfterTimeout() throws SQLException,
+			InterruptedException {
+		pool.setIdleTimeout(1);
+
+		pool.getConnection().close();
+		Thread.sleep(5);
+		pool.getConnection().close();
+
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(1, pool.getTotalConnections());
+	}
+
+	@Test
+	public void shouldDiscardBrokenConnections() throws SQLException {
+		pool.setValidationQuery("SELECT 1");
+		final Connection connection = pool.getConnection();
+		PooledDataSource.unwrapPhysical(connection).close();
+		connection.close();
+
+		assertEquals(0, pool.getTotalConnections());
+		try (Connection replacement = pool.getConnection()) {
+			assertFalse(replacement.isClosed());
+		}
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test
+	public void shouldShareOnePoolPerJdbcUrl() {
+		final String url = getDatabase().getUrl();
+		try {
+			assertSame(JdbcUtil.getDataSource(url), JdbcUtil.getDataSource(url));
+		} finally {
+			JdbcUtil.unregisterDataSource(url);
+		}
+	}
+
+	@Test
+	public void shouldNotLimitConnectionsOfSharedPools() throws SQLException {
+		final String url = getDatabase().getUrl();
+		final List<Connection> connections = new ArrayList<>();
+		try {
+			for (int i = 0; i <= PooledDataSource.DEFAULT_MAXIMUM_POOL_SIZE; ++i) {
+				connections.add(JdbcUtil.getConnection(url));
+			}
+			assertEquals(PooledDataSource.DEFAULT_MAXIMUM_POOL_SIZE + 1,
+					((PooledDataSource) JdbcUtil.getDataSource(url))
+							.getActiveConnections());
+		} finally {
+			for (final Connection connection : connections) {
+				connection.close();
+			}
+			JdbcUtil.unregisterDataSource(url);
+		}
+	}
+
+}
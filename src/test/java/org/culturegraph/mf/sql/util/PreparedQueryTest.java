@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for class {@link PreparedQuery}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class PreparedQueryTest extends DatabaseBasedTest {
+
+	private static final String CREATE_TABLE =
+			"CREATE TABLE Test (key INT, name VARCHAR(50), created DATE)";
+
+	private static final String INSERT =
+			"INSERT INTO Test (key, name, created) VALUES (:_ID, :name, :created)";
+
+	private PreparedQuery query;
+
+	@Before
+	public void populateDatabase() throws SQLException {
+		getDatabase()
+			.run(CREATE_TABLE);
+	}
+
+	@After
+	public void closeQuery() {
+		if (query != null) {
+			query.close();
+		}
+	}
+
+	@Test
+	public void shouldBindParametersAsStringsByDefault() throws SQLException {
+		query = new PreparedQuery(getDatabase().getConnection(), INSERT, false);
+
+		assertEquals(ParameterType.STRING, query.getBindingType(1));
+		assertEquals(ParameterType.STRING, query.getBindingType(3));
+	}
+
+	@Test
+	public void shouldInferParameterTypesFromMetaData() throws SQLException {
+		query = new PreparedQuery(getDatabase().getConnection(), INSERT, false);
+		query.setInferParameterTypes(true);
+
+		assertEquals(ParameterType.INTEGER, query.getBindingType(1));
+		assertEquals(ParameterType.STRING, query.getBindingType(2));
+		assertEquals(ParameterType.DATE, query.getBindingType(3));
+	}
+
+	@Test
+	public void shouldPreferDeclaredTypesOverInferredTypes()
+			throws SQLException {
+		query = new PreparedQuery(getDatabase().getConnection(),
+				"INSERT INTO Test (key, name) VALUES (:_ID::text, :name)", false);
+		query.setInferParameterTypes(true);
+
+		assertEquals(ParameterType.STRING, query.getBindingType(1));
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldReportValuesWhichCannotBeConverted() throws SQLException {
+		query = new PreparedQuery(getDatabase().getConnection(), INSERT, false);
+		query.setInferParameterTypes(true);
+
+		query.setParameter("created", "yesterday");
+	}
+
+	@Test
+	public void shouldCaptureParameterValuesForSlowQueryLog()
+			throws SQLException {
+		query = new PreparedQuery(getDatabase().getConnection(), INSERT, false);
+		query.setSlowQueryLog(new SlowQueryLog(1000, 0));
+		query.setParameter("_ID", "1");
+		query.setParameter("name", "Ibn an-Nadīm");
+		query.setParameter("created", null);
+		query.execute();
+
+		assertEquals("_ID=1, name=Ibn an-Nadīm, created=null",
+				query.getCapturedParameters().toString());
+	}
+
+	@Test
+	public void shouldReportMetrics() throws SQLException {
+		final JmxQueryMetrics metrics = new JmxQueryMetrics();
+		query = new PreparedQuery(getDatabase().getConnection(), INSERT, false);
+		query.setMetrics(metrics);
+		for (int i = 1; i <= 2; ++i) {
+			query.setParameter("_ID", Integer.toString(i));
+			query.setParameter("name", "name" + i);
+			query.setParameter("created", "2017-01-0" + i);
+			query.addBatch();
+		}
+		query.executeBatch();
+		query.close();
+		query = new PreparedQuery(getDatabase().getConnection(),
+				"SELECT key AS _id, name FROM Test", false);
+		query.setMetrics(metrics);
+		query.execute(new DefaultStreamReceiver());
+
+		assertEquals(1, metrics.getBatchesExecuted());
+		assertEquals(2, metrics.getBatchedStatements());
+		assertEquals(6, metrics.getValuesBound());
+		assertEquals(2 * (1 + 5 + 10), metrics.getCharactersBound());
+		assertEquals(1, metrics.getStatementsExecuted());
+		assertEquals(2, metrics.getRowsEmitted());
+	}
+
+}
@@ -16,14 +16,26 @@
 package org.culturegraph.mf.sql.util;
 
 import static org.hamcrest.Matchers.equalToIgnoringCase;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 import static org.mockito.hamcrest.MockitoHamcrest.argThat;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.junit.Before;
 import org.junit.Test;
@@ -48,6 +60,8 @@ public final class QueryBaseTest extends DatabaseBasedTest {
 	private static final String SELECT_ALL =
 			"SELECT key, name FROM Test";
 
+	private static final int FETCH_SIZE = 100;
+
 	private QueryBase sut;
 
 	private Statement statement;
@@ -83,4 +97,106 @@ public void testShouldIgnoreNullValuesInColumns() throws SQLException {
 		verifyNoMoreInteractions(receiver);
 	}
 
+	@Test
+	public void testShouldUseIdColumnAsRecordId() throws SQLException {
+		sut = new QueryBase(getDatabase().getConnection(), "key", true);
+
+		statement.execute(SELECT_ALL);
+		sut.processResults(statement, receiver);
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).literal(
+				argThat(equalToIgnoringCase("key")), eq("1"));
+		ordered.verify(receiver).endRecord();
+		verifyNoMoreInteractions(receiver);
+	}
+
+	@Test
+	public void shouldReadInTransactionIfDriverStreamsOnlyWithoutAutoCommit()
+			throws SQLException {
+		final Connection connection = mockStreamingConnection();
+		final Statement streamingStatement = mockStatement();
+		sut = new QueryBase(connection, QueryBase.DEFAULT_ID_COLUMN, false);
+
+		sut.configureFetchSizeOn(streamingStatement, FETCH_SIZE);
+		sut.processResults(streamingStatement, receiver);
+		sut.close(streamingStatement);
+
+		final InOrder ordered = inOrder(connection, streamingStatement);
+		ordered.verify(connection).setAutoCommit(false);
+		ordered.verify(streamingStatement).setFetchSize(FETCH_SIZE);
+		ordered.verify(connection).commit();
+		ordered.verify(streamingStatement).close();
+		ordered.verify(connection).setAutoCommit(true);
+		verify(connection, never()).rollback();
+	}
+
+	@Test
+	public void shouldRollBackReadTransactionIfReadingFails()
+			throws SQLException {
+		final Connection connection = mockStreamingConnection();
+		final Statement streamingStatement = mockStatement();
+		when(Boolean.valueOf(streamingStatement.getResultSet().next()))
+				.thenThrow(new SQLException("Reading failed"));
+		sut = new QueryBase(connection, QueryBase.DEFAULT_ID_COLUMN, false);
+
+		sut.configureFetchSizeOn(streamingStatement, FETCH_SIZE);
+		try {
+			sut.processResults(streamingStatement, receiver);
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			// Expected
+		}
+		sut.close(streamingStatement);
+
+		final InOrder ordered = inOrder(connection);
+		ordered.verify(connection).setAutoCommit(false);
+		ordered.verify(connection).rollback();
+		ordered.verify(connection).setAutoCommit(true);
+		verify(connection, never()).commit();
+	}
+
+	@Test
+	public void shouldRollBackReadTransactionIfExecutionFails()
+			throws SQLException {
+		final Connection connection = mockStreamingConnection();
+		final Statement streamingStatement = mockStatement();
+		when(connection.createStatement(anyInt(), anyInt()))
+				.thenReturn(streamingStatement);
+		when(Boolean.valueOf(streamingStatement.execute(anyString(), anyInt())))
+				.thenThrow(new SQLException("Execution failed"));
+		final DirectQuery query = new DirectQuery(connection, false);
+		query.setFetchSize(FETCH_SIZE);
+
+		try {
+			query.execute(SELECT_ALL, receiver);
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			// Expected
+		}
+
+		final InOrder ordered = inOrder(connection);
+		ordered.verify(connection).setAutoCommit(false);
+		ordered.verify(connection).rollback();
+		verify(connection, never()).commit();
+	}
+
+	private static Connection mockStreamingConnection() throws SQLException {
+		final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+		when(metaData.getDriverName()).thenReturn("PostgreSQL JDBC Driver");
+		final Connection connection = mock(Connection.class);
+		when(connection.getMetaData()).thenReturn(metaData);
+		when(Boolean.valueOf(connection.getAutoCommit())).thenReturn(Boolean.TRUE);
+		return connection;
+	}
+
+	private static Statement mockStatement() throws SQLException {
+		final ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getMetaData()).thenReturn(mock(ResultSetMetaData.class));
+		final Statement statement = mock(Statement.class);
+		when(statement.getResultSet()).thenReturn(resultSet);
+		return statement;
+	}
+
 }
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/**
+ * Tests for class {@link ReadAheadBuffer}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class ReadAheadBufferTest {
+
+	@Rule
+	public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+	@Mock
+	private StreamReceiver receiver;
+
+	private final ReadAheadBuffer buffer = new ReadAheadBuffer(2, true);
+
+	@After
+	public void closeBuffer() {
+		buffer.close();
+	}
+
+	@Test
+	public void shouldReportErrorsOfTheProducer() {
+		final Error error = new AssertionError("producer failed");
+
+		try {
+			buffer.transfer(producer -> {
+				producer.startRecord("1");
+				producer.literal("name", "value");
+				producer.endRecord();
+				throw error;
+			}, receiver);
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			assertSame(error, e.getCause());
+		}
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).literal("name", "value");
+		ordered.verify(receiver).endRecord();
+		ordered.verifyNoMoreInteractions();
+	}
+
+}
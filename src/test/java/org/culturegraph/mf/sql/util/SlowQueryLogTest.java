@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for class {@link SlowQueryLog}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class SlowQueryLogTest {
+
+	private static final String SQL = "SELECT * FROM Test WHERE key = ?";
+
+	@Test
+	public void shouldLogStatementsExceedingThreshold() {
+		final SlowQueryLog log = new SlowQueryLog(10, 0);
+
+		assertTrue(log.log(SQL, "key=1", millis(6), millis(4)));
+		assertFalse(log.log(SQL, "key=2", millis(6), millis(3)));
+	}
+
+	@Test
+	public void shouldLogAllStatementsIfSamplePercentageIsHundred() {
+		final SlowQueryLog log = new SlowQueryLog(0, 100);
+
+		assertTrue(log.log(SQL, "key=1", 0, 0));
+		assertTrue(log.logBatch(SQL, 10, 0));
+	}
+
+	@Test
+	public void shouldBeDisabledWithoutThresholdAndSampling() {
+		final SlowQueryLog log = new SlowQueryLog(0, 0);
+
+		assertFalse(log.isEnabled());
+		assertFalse(log.log(SQL, "key=1", millis(60000), 0));
+	}
+
+	private static long millis(final long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.sql.util.JdbcUtil.Dialect;
+import org.junit.Test;
+
+/**
+ * Tests for {@link UpsertStatement}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class UpsertStatementTest {
+
+	private final UpsertStatement upsert = new UpsertStatement("t")
+			.addValueColumn("name", "name")
+			.addKeyColumn("id", "_ID");
+
+	@Test
+	public void shouldGenerateOnConflictForPostgresql() {
+		assertEquals("INSERT INTO t (id, name) VALUES (:_ID, :name) " +
+				"ON CONFLICT (id) DO UPDATE SET name = EXCLUDED.name",
+				upsert.toSql(Dialect.POSTGRESQL));
+	}
+
+	@Test
+	public void shouldGenerateOnDuplicateKeyForMysql() {
+		assertEquals("INSERT INTO t (id, name) VALUES (:_ID, :name) " +
+				"ON DUPLICATE KEY UPDATE name = VALUES(name)",
+				upsert.toSql(Dialect.MYSQL));
+	}
+
+	@Test
+	public void shouldGenerateMergeForH2() {
+		assertEquals("MERGE INTO t (id, name) KEY (id) VALUES (:_ID, :name)",
+				upsert.toSql(Dialect.H2));
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldFailForGenericDialect() {
+		upsert.toSql(Dialect.GENERIC);
+	}
+
+}
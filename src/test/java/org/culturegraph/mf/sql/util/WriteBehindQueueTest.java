@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2013 Christoph Böhme
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.sql.util;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.junit.Test;
+
+/**
+ * Tests for class {@link WriteBehindQueue}.
+ *
+ * @author Christoph Böhme
+ *
+ */
+public final class WriteBehindQueueTest {
+
+	private static final int MAX_PUTS = 1000;
+
+	@Test(timeout = 10000)
+	public void shouldReportWriterErrorsOnPut() {
+		final Error error = new AssertionError("writer failed");
+		final WriteBehindQueue<String> queue = new WriteBehindQueue<>(
+				"write-behind-test", 1, item -> { throw error; });
+
+		try {
+			for (int i = 0; i < MAX_PUTS; ++i) {
+				queue.put("item" + i);
+			}
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			assertSame(error, e.getCause());
+		}
+		try {
+			queue.close();
+			fail("Expected exception");
+		} catch (final MetafactureException e) {
+			assertSame(error, e.getCause());
+		}
+	}
+
+}